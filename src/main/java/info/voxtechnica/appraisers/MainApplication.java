@@ -24,16 +24,34 @@ import info.voxtechnica.appraisers.config.ApplicationConfiguration;
 import info.voxtechnica.appraisers.config.RealmConfiguration;
 import info.voxtechnica.appraisers.config.ThreadPoolConfiguration;
 import info.voxtechnica.appraisers.db.CassandraMetricSet;
+import info.voxtechnica.appraisers.db.CounterAggregator;
+import info.voxtechnica.appraisers.db.MetricAggregator;
+import info.voxtechnica.appraisers.db.MetricCompactor;
+import info.voxtechnica.appraisers.db.NodeLeaseKeeper;
+import info.voxtechnica.appraisers.db.EventAuditor;
+import info.voxtechnica.appraisers.db.EventWriter;
+import info.voxtechnica.appraisers.db.SpillLog;
+import info.voxtechnica.appraisers.db.StatementLatencyTracker;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.PageCursor;
 import info.voxtechnica.appraisers.db.dao.*;
+import info.voxtechnica.appraisers.filter.RequestInstrumentation;
 import info.voxtechnica.appraisers.health.*;
+import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Metric;
-import info.voxtechnica.appraisers.model.Node;
+import info.voxtechnica.appraisers.model.NodeLease;
 import info.voxtechnica.appraisers.model.User;
 import info.voxtechnica.appraisers.resource.*;
 import info.voxtechnica.appraisers.service.LicenseService;
+import info.voxtechnica.appraisers.service.RecentEventFeed;
+import info.voxtechnica.appraisers.servlet.PrometheusServlet;
+import info.voxtechnica.appraisers.servlet.SlowQueryServlet;
 import info.voxtechnica.appraisers.task.ImportLicenseFileTask;
 import info.voxtechnica.appraisers.task.ImportLicensesTask;
 import info.voxtechnica.appraisers.task.ImportUsersTask;
+import info.voxtechnica.appraisers.task.MigrateStorageTask;
+import info.voxtechnica.appraisers.task.RebuildLicenseStatsTask;
+import info.voxtechnica.appraisers.util.EvictingRing;
 import info.voxtechnica.appraisers.util.JsonSerializer;
 import info.voxtechnica.appraisers.util.NetworkUtils;
 import info.voxtechnica.appraisers.util.TuidFactory;
@@ -79,8 +97,11 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 
 public class MainApplication extends Application<ApplicationConfiguration> {
@@ -127,15 +148,19 @@ public class MainApplication extends Application<ApplicationConfiguration> {
         environment.lifecycle().manage(cassandraClient); // managed for graceful shutdown
         environment.healthChecks().register("cassandra", new CassandraHealthCheck(cassandraClient));
         environment.metrics().registerAll(new CassandraMetricSet(cassandraClient.getCluster()));
+        StatementRegistry.initialize(configuration.getCassandra());
+        cassandraClient.getCluster().register(new StatementLatencyTracker(environment.metrics()));
+        PageCursor.initialize(configuration.getCassandra());
+        environment.lifecycle().manage(CounterAggregator.initialize(cassandraClient.getSession(), configuration.getCassandra(), environment.metrics()));
         Session dbSession = cassandraClient.getSession();
         if (dbSession == null) {
             LOG.error("Error connecting to Cassandra keyspace {}. Does it exist?", cassandraClient.getKeyspaceName());
             System.exit(1);
         }
 
-        // Fetch an auto-assigned TuidFactory Node ID from Cassandra
+        // Lease an auto-assigned TuidFactory Node ID from Cassandra
         long startTime = System.currentTimeMillis();
-        Nodes.initialize(cassandraClient);
+        Nodes.initialize(cassandraClient, configuration.getNodeLease());
         InetAddress ipAddress = NetworkUtils.getIpAddress(configuration.getNetworkInterface());
         if (ipAddress == null) {
             LOG.error("Unable to identify IP Address for Network Interface {}. Available:", configuration.getNetworkInterface());
@@ -144,17 +169,30 @@ public class MainApplication extends Application<ApplicationConfiguration> {
                 LOG.info("Available: interface {} address {}", networkInterface, addresses.get(networkInterface));
             System.exit(1);
         }
-        Node node = Nodes.getNode(ipAddress);
-        if (node == null) {
+        NodeLease nodeLease = Nodes.acquireLease(ipAddress, UUID.randomUUID().toString());
+        if (nodeLease == null) {
             LOG.error("No available TuidFactory Node IDs for IP Address {}", ipAddress);
             System.exit(1);
         }
         Long duration = System.currentTimeMillis() - startTime;
-        LOG.info("Auto-assigned TuidFactory Node ID {} for {} {} in {} ms", node.getId(), configuration.getNetworkInterface(), node.getIpAddress(), duration);
+        LOG.info("Leased TuidFactory Node ID {} for {} {} in {} ms", nodeLease.getId(), configuration.getNetworkInterface(), nodeLease.getIpAddress(), duration);
 
-        // Initialize the TUID factory for this node in the cluster and register its health check:
-        TuidFactory.initialize(node.getId());
+        // Paging cursors signed with a per-node random key would fail on every other node, so a cluster needs cursorSecret
+        if (!PageCursor.hasSharedSecret()) {
+            long activeNodes = Nodes.readLeases().stream().filter(lease -> lease.getState() == NodeLease.State.ACTIVE).count();
+            if (activeNodes > 1) {
+                LOG.error("No cassandra.cursorSecret configured, with {} nodes running. Configure the same secret on every node.", activeNodes);
+                Nodes.releaseLease(nodeLease);
+                System.exit(1);
+            }
+        }
+
+        // Initialize the TUID factory for this node in the cluster, keep its lease renewed, and register health checks:
+        TuidFactory.initialize(nodeLease.getId());
+        NodeLeaseKeeper nodeLeaseKeeper = new NodeLeaseKeeper(nodeLease, configuration.getNodeLease(), environment.metrics());
+        environment.lifecycle().manage(nodeLeaseKeeper); // releases the lease on shutdown
         environment.healthChecks().register("tuidFactory", new TuidFactoryHealthCheck());
+        environment.healthChecks().register("nodeLease", new NodeLeaseHealthCheck(nodeLeaseKeeper));
 
         // Configure the JSON ObjectMapper
         ObjectMapper mapper = environment.getObjectMapper();
@@ -179,16 +217,43 @@ public class MainApplication extends Application<ApplicationConfiguration> {
         environment.admin().addTask(new ImportUsersTask());
         environment.admin().addTask(new ImportLicenseFileTask());
         environment.admin().addTask(new ImportLicensesTask(httpClient));
+        environment.admin().addTask(new MigrateStorageTask(cassandraClient));
+        environment.admin().addTask(new RebuildLicenseStatsTask());
+
+        // Expose metrics for Prometheus scraping, and recent slow queries, on the admin connector
+        environment.admin().addServlet("prometheus", new PrometheusServlet(environment.metrics())).addMapping("/metrics/prometheus");
+        environment.admin().addServlet("slowQueries", new SlowQueryServlet()).addMapping("/slow-queries");
 
         // Initialize database access objects (DAOs):
         startTime = System.currentTimeMillis();
+        SpillLog spillLog = new SpillLog(cassandraClient.getSession(), configuration.getSpill(), environment.metrics());
+        spillLog.register(SpillLog.Kind.EVENT, payload -> Events.eventStatements(JsonSerializer.getObjectFromSmile(payload, Event.class)));
+        spillLog.register(SpillLog.Kind.METRIC, payload -> Metrics.metricStatements(JsonSerializer.getObjectFromSmile(payload, Metric.class)));
+        environment.lifecycle().manage(spillLog); // stopped after the writer, so Events still buffered can be spilled
         Events.initialize(cassandraClient, configuration.getEvent());
+        Events.setSpillLog(spillLog);
+        EvictingRing<Event> recentEvents = new EvictingRing<>(configuration.getEvent().getRecent().getCapacity());
+        Events.setRecentEvents(recentEvents);
+        RecentEventFeed.initialize(recentEvents, configuration.getEvent(), httpClient);
+        EventWriter eventWriter = new EventWriter(cassandraClient.getSession(), configuration.getEvent().getWriter(),
+                environment.metrics(), Events::eventStatements, spillLog);
+        environment.lifecycle().manage(eventWriter); // drains buffered Events on shutdown
+        Events.setWriter(eventWriter);
+        EventAuditor eventAuditor = new EventAuditor(configuration.getEvent().getAudit(), environment.metrics(), Events::writeEvent);
+        environment.lifecycle().manage(eventAuditor); // stopped before the writer, releasing held Events into it
+        Events.setAuditor(eventAuditor);
         Imports.initialize(cassandraClient);
-        Licenses.initialize(cassandraClient);
+        Licenses.initialize(cassandraClient, configuration.getLicense());
+        LicenseStats.initialize(cassandraClient);
         Messages.initialize(cassandraClient);
-        Metrics.initialize(cassandraClient);
+        Metrics.initialize(cassandraClient, configuration.getMetric());
+        Metrics.setSpillLog(spillLog);
+        MetricRollups.initialize(cassandraClient, configuration.getMetric());
+        environment.lifecycle().manage(MetricAggregator.initialize(configuration.getMetric(), environment.metrics())); // flushes the partial window on shutdown
+        environment.lifecycle().manage(new MetricCompactor(configuration.getMetric(), environment.metrics()));
         Tokens.initialize(cassandraClient);
         Users.initialize(cassandraClient);
+        Watermarks.initialize(cassandraClient);
         duration = System.currentTimeMillis() - startTime;
         LOG.info("Prepared database statements in {} ms", duration);
         Metrics.createMetric(new Metric("init_database", duration));
@@ -205,7 +270,9 @@ public class MainApplication extends Application<ApplicationConfiguration> {
         environment.jersey().register(new EventCountResource());
         environment.jersey().register(new EventResource());
         environment.jersey().register(new ImportResource());
+        environment.jersey().register(new LicenseChangeResource());
         environment.jersey().register(new LicenseResource());
+        environment.jersey().register(new LicenseStatsResource());
         environment.jersey().register(new MessageResource());
         environment.jersey().register(new MetricResource());
         environment.jersey().register(new MetricTagResource());
@@ -213,6 +280,11 @@ public class MainApplication extends Application<ApplicationConfiguration> {
         environment.jersey().register(new TokenResource());
         environment.jersey().register(new TuidResource());
         environment.jersey().register(new UserResource());
+        if (configuration.getMetric().isInstrumentRequests()) {
+            Set<String> configUserIds = new HashSet<>();
+            for (User user : configuration.getRealm().getApiUsers()) configUserIds.add(user.getId());
+            environment.jersey().register(new RequestInstrumentation(configUserIds, environment.metrics()));
+        }
 
         // Initialize User Authentication/Authorization and register the associated health check:
         RealmConfiguration realm = configuration.getRealm();
@@ -7,6 +7,8 @@ import com.datastax.driver.core.policies.RoundRobinPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
 import info.voxtechnica.appraisers.config.CassandraConfiguration;
 import info.voxtechnica.appraisers.db.CassandraEmbedded;
+import info.voxtechnica.appraisers.db.InstrumentedSession;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.db.policy.SimpleRetryPolicy;
 import io.dropwizard.lifecycle.Managed;
 import org.slf4j.Logger;
@@ -62,7 +64,7 @@ public class CassandraClient implements Managed {
         // Get Protocol Version
         protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion().toInt();
         // Get Keyspace Session (creating Keyspace if necessary and permitted)
-        if (keyspaceExists()) session = cluster.connect(keyspaceName);
+        if (keyspaceExists()) session = new InstrumentedSession(cluster.connect(keyspaceName));
         else if (dbConfig.isCreateIfMissing()) {
             createKeyspace();
             // Table creation/updates reside in the individual DAOs (plural entities)
@@ -118,7 +120,23 @@ public class CassandraClient implements Managed {
             statement.append("}");
         }
         clusterSession.execute(statement.toString());
-        session = cluster.connect(keyspaceName);
+        session = new InstrumentedSession(cluster.connect(keyspaceName));
+    }
+
+    /**
+     * Add a column to an existing table, if it isn't already there. CREATE TABLE IF NOT EXISTS leaves older tables
+     * alone, so DAOs use this to evolve the schema of tables created by earlier releases.
+     */
+    public void addColumnIfMissing(String table, String column, String type) {
+        TableMetadata tableMetadata = cluster.getMetadata().getKeyspace(keyspaceName).getTable(table);
+        if (tableMetadata != null && tableMetadata.getColumn(column) == null) {
+            session.execute("ALTER TABLE " + table + " ADD " + column + " " + type);
+            LOG.info("Added column {}.{} {}", table, column, type);
+        }
+    }
+
+    public StorageCodec getStorageCodec() {
+        return dbConfig.getStorageCodec();
     }
 
     public CassandraConfiguration getDbConfig() {
@@ -86,6 +86,19 @@ public class ApplicationConfiguration extends Configuration {
         this.networkInterface = networkInterface;
     }
 
+    /**
+     * TuidFactory Node ID lease configuration
+     */
+    private NodeLeaseConfiguration nodeLease = new NodeLeaseConfiguration();
+
+    public NodeLeaseConfiguration getNodeLease() {
+        return nodeLease;
+    }
+
+    public void setNodeLease(NodeLeaseConfiguration nodeLease) {
+        this.nodeLease = nodeLease;
+    }
+
     /**
      * Security Realm configuration for Basic Authentication
      */
@@ -160,6 +173,45 @@ public class ApplicationConfiguration extends Configuration {
         this.event = event;
     }
 
+    /**
+     * Metric aggregation and rollup configuration
+     */
+    private MetricConfiguration metric = new MetricConfiguration();
+
+    public MetricConfiguration getMetric() {
+        return metric;
+    }
+
+    public void setMetric(MetricConfiguration metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Local spill log configuration (Event and Metric writes held while Cassandra is degraded)
+     */
+    private SpillConfiguration spill = new SpillConfiguration();
+
+    public SpillConfiguration getSpill() {
+        return spill;
+    }
+
+    public void setSpill(SpillConfiguration spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * License storage configuration
+     */
+    private LicenseConfiguration license = new LicenseConfiguration();
+
+    public LicenseConfiguration getLicense() {
+        return license;
+    }
+
+    public void setLicense(LicenseConfiguration license) {
+        this.license = license;
+    }
+
     /**
      * External web services Client configuration (used by multiple clients, including SendGridClient and SlackClient)
      */
@@ -0,0 +1,25 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration settings for audit (INFO and below) Event sampling and duplicate suppression. Errors, warnings, writes
+ * (anything but GET and HEAD), and Events without a resource URI are always kept.
+ */
+@Data
+public class AuditConfiguration {
+    private boolean enabled = true;
+    private double sampleRate = 1.0; // default fraction of audit Events kept
+    private List<Rule> rules = new ArrayList<>(); // per-route sample rates; the longest matching path prefix wins
+    private int dedupeWindowSeconds = 10; // collapse identical (user, route, entity) Events within a window; 0 disables
+    private int maxDedupeKeys = 100000; // beyond this many open windows, Events pass through undeduplicated
+
+    @Data
+    public static class Rule {
+        private String path; // resource path prefix, e.g. /v1/licenses
+        private double sampleRate = 1.0;
+    }
+}
@@ -1,5 +1,6 @@
 package info.voxtechnica.appraisers.config;
 
+import info.voxtechnica.appraisers.db.StorageCodec;
 import lombok.Data;
 
 import java.util.ArrayList;
@@ -19,4 +20,12 @@ public class CassandraConfiguration {
     private int readRetries = 3;
     private int writeRetries = 3;
     private boolean createIfMissing = true;
+    private StorageCodec storageCodec = StorageCodec.JSON;
+    private int pageSize = 1000; // maximum rows per page for paginated listings
+    private String cursorSecret = null; // HMAC key for paging cursors; share it across the cluster
+    private int counterFlushIntervalMillis = 1000; // coalesce counter increments for this long before writing
+    private int counterMaxInFlight = 64; // concurrent counter writes per flush
+    private int slowQueryThresholdMillis = 500; // statement executions slower than this are captured
+    private int slowQueryCapacity = 256; // most recent slow queries kept in memory
+    private double traceProbability = 0.0; // fraction of statements executed with query tracing (0: none)
 }
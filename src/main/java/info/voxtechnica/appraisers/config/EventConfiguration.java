@@ -8,6 +8,13 @@ import lombok.Data;
  */
 @Data
 public class EventConfiguration {
+    public enum IndexPayload {NONE, SUMMARY, FULL}
+
     private Event.LogLevel logLevel = Event.LogLevel.INFO;
     private Integer timeToLive = 7776000; // default 90 days, in seconds
+    private IndexPayload indexPayload = IndexPayload.FULL; // Event copy carried by index rows, so listings skip point reads
+    private int indexBucketMinutes = 60; // time bucket for the day and log level indexes (change only with an empty index)
+    private EventWriterConfiguration writer = new EventWriterConfiguration();
+    private AuditConfiguration audit = new AuditConfiguration();
+    private RecentEventsConfiguration recent = new RecentEventsConfiguration();
 }
@@ -0,0 +1,20 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+/**
+ * Configuration settings for the asynchronous Event writer
+ */
+@Data
+public class EventWriterConfiguration {
+    public enum OverflowPolicy {BLOCK, DROP_OLDEST, SPILL}
+
+    private int capacity = 65536; // events buffered in memory
+    private int batchSize = 512; // events per group commit
+    private int flushIntervalMillis = 50; // maximum wait to fill a group commit
+    private int maxBatchStatements = 100; // statements per single-partition batch
+    private int maxInFlight = 256; // concurrent writes (batches or statements) to Cassandra
+    private OverflowPolicy overflowPolicy = OverflowPolicy.SPILL;
+    private int blockTimeoutMillis = 100; // BLOCK: longest a request thread waits before dropping the event
+    private int shutdownTimeoutMillis = 10000;
+}
@@ -0,0 +1,11 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+/**
+ * Configuration settings for License storage
+ */
+@Data
+public class LicenseConfiguration {
+    private int keyframeInterval = 16; // store a full document every N versions; deltas in between (1 = no deltas)
+}
@@ -0,0 +1,51 @@
+package info.voxtechnica.appraisers.config;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Configuration settings for Metric retention, aggregation, and rollups. Raw Metrics are kept briefly; durations are
+ * also rolled up per tag into the first (finest) tier by the aggregator, and compacted into each coarser tier once its
+ * windows are complete. Each tier's resolution must be a multiple of the previous tier's.
+ */
+@Data
+public class MetricConfiguration {
+    private Integer rawTimeToLive = 604800; // Metric rows and indexes: default 7 days, in seconds
+    private boolean instrumentRequests = true; // record per-route request timings (see RequestInstrumentation)
+    private int exemplars = 3; // slowest Metric IDs kept per rollup window (0: none)
+    private long highestTrackableMillis = 3600000L; // longer durations are recorded as this
+    private int significantDigits = 2; // histogram precision
+    private boolean compactionEnabled = true; // the compactor is idempotent, but it need only run on one node
+    private int compactionIntervalSeconds = 300; // how often the compactor looks for complete windows
+    private int compactionDelaySeconds = 120; // grace period after a window ends, for the nodes' final flushes
+    private int maxCompactionWindows = 48; // per tier per run, so a long catch-up proceeds in steps
+    private List<Tier> tiers = Arrays.asList(
+            new Tier(60, 2592000), // minute rollups: 30 days
+            new Tier(3600, 31536000), // hour rollups: 365 days
+            new Tier(86400, 157680000)); // day rollups: 5 years
+
+    @Data
+    public static class Tier {
+        private int resolution; // window length, in seconds
+        private Integer timeToLive; // in seconds
+
+        public Tier() {
+        }
+
+        public Tier(int resolution, Integer timeToLive) {
+            this.resolution = resolution;
+            this.timeToLive = timeToLive;
+        }
+    }
+
+    /**
+     * @return the aggregator's window length: the finest tier's resolution
+     */
+    @JsonIgnore
+    public int getWindowSeconds() {
+        return tiers.get(0).getResolution();
+    }
+}
@@ -0,0 +1,14 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+/**
+ * Configuration settings for TuidFactory Node ID leases, which are held while a node runs and renewed by a heartbeat
+ */
+@Data
+public class NodeLeaseConfiguration {
+    private int leaseSeconds = 60; // how long a lease lasts without renewal
+    private int heartbeatSeconds = 15; // how often the holder renews its lease
+    private int reclaimGapSeconds = 300; // how long after expiry a Node ID stays unassigned, before it's reused
+    private int fenceMarginSeconds = 60; // a holder that can't renew stops issuing IDs this long before the gap ends
+}
@@ -0,0 +1,15 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+/**
+ * Configuration settings for the in-memory recent Event tail
+ */
+@Data
+public class RecentEventsConfiguration {
+    private int capacity = 8192; // most recent Events kept in memory on each node
+    private int peerPort = 0; // API port of the other nodes, for a cluster-wide tail (0: this node only)
+    private String peerScheme = "https"; // credentials are only sent to the other nodes over https
+    private String peerAuthorization; // Authorization header for the other nodes, e.g. a service account's (default: the caller's)
+    private int peerTimeoutMillis = 2000;
+}
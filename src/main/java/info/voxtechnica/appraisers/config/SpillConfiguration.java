@@ -0,0 +1,17 @@
+package info.voxtechnica.appraisers.config;
+
+import lombok.Data;
+
+/**
+ * Configuration settings for the local spill log, which holds Event and Metric writes while Cassandra is degraded
+ */
+@Data
+public class SpillConfiguration {
+    private boolean enabled = true;
+    private String directory = "spill"; // local directory for spill segments
+    private int segmentBytes = 64 * 1024 * 1024; // size of each memory-mapped segment
+    private int sealIdleMillis = 5000; // a partly filled segment is sealed for replay once nothing's been appended for this long
+    private int maxSegments = 32; // spilled records are rejected (and counted) beyond this many segments
+    private int replayRatePerSecond = 2000; // records replayed per second once Cassandra recovers
+    private int maxPendingWrites = 4096; // direct asynchronous writes in flight before new ones are spilled instead
+}
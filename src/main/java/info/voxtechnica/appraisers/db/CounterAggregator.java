@@ -0,0 +1,189 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import info.voxtechnica.appraisers.config.CassandraConfiguration;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CounterAggregator coalesces Cassandra counter increments. Counter writes are expensive (each one is a read-before-write
+ * on the replicas), and our counters are hot: every Event bumps a level and a user counter, every Metric a tag counter,
+ * every authenticated request a token counter. Increments are summed in memory, in striped LongAdder cells keyed by
+ * counter statement and key, and a background thread writes one summed delta per cell every flush interval, and once
+ * more on shutdown. Counter statements must take the delta as their first bind variable ("SET c = c + ?").
+ * <p/>
+ * Until the aggregator is started, increments are written directly, so DAOs work the same in commands and tasks.
+ */
+public class CounterAggregator implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(CounterAggregator.class);
+    private static CounterAggregator instance;
+
+    private final Session session;
+    private final long flushIntervalMillis;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<List<Object>, LongAdder> cells = new ConcurrentHashMap<>();
+    private final Set<List<Object>> idle = new HashSet<>(); // cells that were empty at the last flush
+    private final Map<List<Object>, LongAdder> retired = new HashMap<>(); // removed cells, flushed once more
+    private final Meter increments;
+    private final Meter writes;
+    private final Meter failures;
+    private final Timer flushes;
+    private volatile long lastFlushMillis = System.currentTimeMillis();
+    private volatile boolean running = false;
+    private ScheduledExecutorService scheduler;
+
+    private CounterAggregator(Session session, CassandraConfiguration config, MetricRegistry metrics) {
+        this.session = session;
+        this.flushIntervalMillis = config.getCounterFlushIntervalMillis();
+        this.maxInFlight = config.getCounterMaxInFlight();
+        this.inFlight = new Semaphore(maxInFlight);
+        metrics.register(MetricRegistry.name(CounterAggregator.class, "cells"), (Gauge<Integer>) cells::size);
+        metrics.register(MetricRegistry.name(CounterAggregator.class, "flush-lag-millis"), (Gauge<Long>) () -> System.currentTimeMillis() - lastFlushMillis);
+        increments = metrics.meter(MetricRegistry.name(CounterAggregator.class, "increments"));
+        writes = metrics.meter(MetricRegistry.name(CounterAggregator.class, "writes"));
+        failures = metrics.meter(MetricRegistry.name(CounterAggregator.class, "failures"));
+        flushes = metrics.timer(MetricRegistry.name(CounterAggregator.class, "flushes"));
+    }
+
+    /**
+     * Create the shared aggregator. Manage the returned instance to start flushing (and to flush on shutdown).
+     */
+    public static synchronized CounterAggregator initialize(Session session, CassandraConfiguration config, MetricRegistry metrics) {
+        if (instance == null) instance = new CounterAggregator(session, config, metrics);
+        else LOG.info("Previously initialized");
+        return instance;
+    }
+
+    /**
+     * Add a delta to a counter.
+     *
+     * @param statement counter update, binding (delta, key...)
+     * @param session   session to write with if the aggregator isn't running
+     * @param delta     amount to add
+     * @param key       the statement's remaining bind values (partition and clustering key)
+     */
+    public static void increment(PreparedStatement statement, Session session, long delta, Object... key) {
+        if (delta == 0) return;
+        CounterAggregator aggregator = instance;
+        if (aggregator == null || !aggregator.running) {
+            session.executeAsync(bind(statement, delta, key));
+            return;
+        }
+        List<Object> cell = new ArrayList<>(key.length + 1);
+        cell.add(statement);
+        Collections.addAll(cell, key);
+        aggregator.cells.computeIfAbsent(cell, k -> new LongAdder()).add(delta);
+        aggregator.increments.mark();
+    }
+
+    /**
+     * Write all pending deltas now and wait for them (e.g. before reading counters to reconcile them).
+     */
+    public static void flushNow() throws InterruptedException {
+        CounterAggregator aggregator = instance;
+        if (aggregator != null && aggregator.running) aggregator.flush(true);
+    }
+
+    private static BoundStatement bind(PreparedStatement statement, long delta, Object[] key) {
+        Object[] values = new Object[key.length + 1];
+        values[0] = delta;
+        System.arraycopy(key, 0, values, 1, key.length);
+        return statement.bind(values);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flush(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.error("Counter flush error: {}", e.getMessage());
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(flushIntervalMillis * 2, TimeUnit.MILLISECONDS);
+        }
+        flush(true); // final flush, while new increments still accumulate in the cells
+        running = false;
+        flush(true); // anything that arrived during the final flush
+    }
+
+    /**
+     * Write one summed delta per non-empty cell. Each cell is decremented by what was written rather than reset, so
+     * concurrent increments are never lost. Cells that stay empty for two flushes are removed; a removed cell is kept
+     * aside and flushed once more, to catch a straggling increment from a thread that looked it up just before removal.
+     */
+    private synchronized void flush(boolean wait) throws InterruptedException {
+        Timer.Context timer = flushes.time();
+        try {
+            Map<List<Object>, LongAdder> retiring = new HashMap<>(retired);
+            retired.clear();
+            for (Map.Entry<List<Object>, LongAdder> entry : retiring.entrySet()) write(entry.getKey(), entry.getValue());
+            for (Map.Entry<List<Object>, LongAdder> entry : cells.entrySet()) {
+                List<Object> cell = entry.getKey();
+                if (write(cell, entry.getValue())) idle.remove(cell);
+                else if (!idle.add(cell) && cells.remove(cell, entry.getValue())) {
+                    idle.remove(cell);
+                    retired.put(cell, entry.getValue());
+                }
+            }
+            if (wait && inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS)) inFlight.release(maxInFlight);
+            lastFlushMillis = System.currentTimeMillis();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private boolean write(List<Object> cell, LongAdder adder) throws InterruptedException {
+        long delta = adder.sum();
+        if (delta == 0) return false;
+        adder.add(-delta);
+        Object[] key = cell.subList(1, cell.size()).toArray();
+        inFlight.acquire();
+        Futures.addCallback(session.executeAsync(bind((PreparedStatement) cell.get(0), delta, key)), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                writes.mark();
+                inFlight.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // counter writes aren't idempotent, so a failed delta isn't retried (it may have been applied)
+                failures.mark();
+                inFlight.release();
+                LOG.warn("Counter write failed: {}", t.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
+        return true;
+    }
+}
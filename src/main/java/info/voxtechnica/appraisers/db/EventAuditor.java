@@ -0,0 +1,152 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import info.voxtechnica.appraisers.config.AuditConfiguration;
+import info.voxtechnica.appraisers.model.Event;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * EventAuditor thins out high-volume audit Events before they're written. Nearly every read endpoint logs an INFO
+ * Event, so without it, audit writes outnumber the reads they describe. Two policies apply to audit Events:
+ * <ul>
+ * <li>Sampling: a configurable fraction is kept per route (longest matching path prefix). Kept Events record the
+ * sample rate, so counts can be scaled back up.</li>
+ * <li>Duplicate suppression: identical (user, method, route, entities) Events within a time window collapse into the
+ * first one, which is held until the window closes and then written with a repeat count.</li>
+ * </ul>
+ * Errors, warnings, writes, and non-HTTP (system) Events are always written as-is. Open windows are flushed on shutdown.
+ */
+public class EventAuditor implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(EventAuditor.class);
+
+    private final AuditConfiguration config;
+    private final Consumer<Event> sink;
+    private final NavigableMap<String, Double> routeRates = new TreeMap<>();
+    private final ConcurrentHashMap<List<Object>, Window> windows = new ConcurrentHashMap<>();
+    private final long windowMillis;
+    private final Meter sampledOut;
+    private final Meter collapsed;
+    private ScheduledExecutorService scheduler;
+
+    private static class Window {
+        final Event event;
+        final long closesAt;
+        int count = 1; // guarded by the map's per-key locking (compute)
+
+        Window(Event event, long closesAt) {
+            this.event = event;
+            this.closesAt = closesAt;
+        }
+    }
+
+    /**
+     * @param sink writes an admitted Event (used for Events released when their window closes)
+     */
+    public EventAuditor(AuditConfiguration config, MetricRegistry metrics, Consumer<Event> sink) {
+        this.config = config;
+        this.sink = sink;
+        this.windowMillis = TimeUnit.SECONDS.toMillis(config.getDedupeWindowSeconds());
+        for (AuditConfiguration.Rule rule : config.getRules())
+            if (rule.getPath() != null) routeRates.put(rule.getPath(), rule.getSampleRate());
+        sampledOut = metrics.meter(MetricRegistry.name(EventAuditor.class, "sampled-out"));
+        collapsed = metrics.meter(MetricRegistry.name(EventAuditor.class, "collapsed"));
+        metrics.register(MetricRegistry.name(EventAuditor.class, "open-windows"), (Gauge<Integer>) windows::size);
+    }
+
+    /**
+     * Apply the audit policies to an Event.
+     *
+     * @return true if the Event should be written now; false if it was sampled out, collapsed into an earlier Event,
+     * or is being held for its dedupe window
+     */
+    public boolean admit(Event event) {
+        if (!config.isEnabled() || alwaysKeep(event)) return true;
+        String path = event.getResourceUri().getPath();
+        double rate = sampleRate(path);
+        if (rate < 1.0) {
+            if (ThreadLocalRandom.current().nextDouble() >= rate) {
+                sampledOut.mark();
+                return false;
+            }
+            event.setSampleRate(rate);
+        }
+        if (windowMillis <= 0 || scheduler == null || windows.size() >= config.getMaxDedupeKeys()) return true;
+        List<Object> key = Arrays.asList(event.getUserId(), event.getHttpMethod(), path,
+                event.getEntityIds() == null ? null : new TreeSet<>(event.getEntityIds()));
+        long now = System.currentTimeMillis();
+        windows.compute(key, (k, window) -> {
+            if (window == null) return new Window(event, now + windowMillis); // held until the window closes
+            window.count++;
+            collapsed.mark();
+            return window;
+        });
+        return false;
+    }
+
+    static boolean alwaysKeep(Event event) {
+        return event.getResourceUri() == null || event.getHttpMethod() == null
+                || (event.getLogLevel() != null && event.getLogLevel().ordinal() >= Event.LogLevel.WARN.ordinal())
+                || (event.getHttpMethod() != Event.HttpMethod.GET && event.getHttpMethod() != Event.HttpMethod.HEAD);
+    }
+
+    double sampleRate(String path) {
+        if (path != null) {
+            // longest matching prefix: walk down the sorted keys at or below the path
+            for (Map.Entry<String, Double> rule = routeRates.floorEntry(path); rule != null; rule = routeRates.lowerEntry(rule.getKey()))
+                if (path.startsWith(rule.getKey())) return rule.getValue();
+        }
+        return config.getSampleRate();
+    }
+
+    /**
+     * Release Events whose windows have closed (or all of them), with their repeat counts.
+     */
+    private void release(boolean all) {
+        long now = System.currentTimeMillis();
+        List<Event> released = new ArrayList<>();
+        for (List<Object> key : windows.keySet())
+            windows.computeIfPresent(key, (k, window) -> {
+                if (!all && window.closesAt > now) return window;
+                if (window.count > 1) window.event.setRepeatCount(window.count);
+                released.add(window.event);
+                return null; // the next identical Event opens a new window
+            });
+        for (Event event : released)
+            try {
+                sink.accept(event);
+            } catch (Exception e) {
+                LOG.error("Unable to write audit Event {}: {}", event.getId(), e.getMessage());
+            }
+    }
+
+    @Override
+    public void start() {
+        if (windowMillis <= 0) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "event-auditor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.min(1000L, windowMillis);
+        scheduler.scheduleWithFixedDelay(() -> release(false), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) {
+            ScheduledExecutorService stopping = scheduler;
+            scheduler = null; // stop opening windows
+            stopping.shutdown();
+            stopping.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        release(true);
+    }
+}
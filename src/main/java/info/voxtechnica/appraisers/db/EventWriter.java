@@ -0,0 +1,241 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import info.voxtechnica.appraisers.config.EventWriterConfiguration;
+import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+import info.voxtechnica.appraisers.util.RingBuffer;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventWriter takes Event persistence off the request path. Events are buffered in a bounded lock-free ring, and a
+ * single consumer thread drains them in groups: each group's statements are coalesced by partition into unlogged
+ * single-partition batches (so a group of Events costs one write per day index partition, not one per Event), and
+ * the number of writes in flight to Cassandra is capped. When the ring is full, the overflow policy decides whether
+ * the caller waits briefly, the oldest Event is dropped, or the Event is spilled to the local SpillLog. Events whose
+ * writes fail, or that are still buffered at shutdown, are spilled too (if there is a SpillLog), to be replayed later.
+ */
+public class EventWriter implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(EventWriter.class);
+
+    /**
+     * Builds the statements that persist an Event (its row and index entries)
+     */
+    public interface StatementBuilder {
+        List<BoundStatement> statements(Event event) throws IOException;
+    }
+
+    private final Session session;
+    private final EventWriterConfiguration config;
+    private final StatementBuilder builder;
+    private final SpillLog spillLog;
+    private final RingBuffer<Event> ring;
+    private final Semaphore inFlight;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+    private final Meter written;
+    private final Meter failed;
+    private final Meter dropped;
+    private final Meter spilled;
+    private final Histogram batchSize;
+    private final Counter pending;
+    private volatile boolean running = false;
+    private Thread consumer;
+
+    /**
+     * @param spillLog local spill log for Events that can't be written (optional)
+     */
+    public EventWriter(Session session, EventWriterConfiguration config, MetricRegistry metrics, StatementBuilder builder, SpillLog spillLog) {
+        this.session = session;
+        this.config = config;
+        this.builder = builder;
+        this.spillLog = spillLog;
+        this.ring = new RingBuffer<>(config.getCapacity());
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+        this.protocolVersion = session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        this.codecRegistry = session.getCluster().getConfiguration().getCodecRegistry();
+        metrics.register(MetricRegistry.name(EventWriter.class, "queue-depth"), (Gauge<Integer>) ring::size);
+        metrics.register(MetricRegistry.name(EventWriter.class, "in-flight"), (Gauge<Integer>) () -> config.getMaxInFlight() - inFlight.availablePermits());
+        written = metrics.meter(MetricRegistry.name(EventWriter.class, "events-written"));
+        failed = metrics.meter(MetricRegistry.name(EventWriter.class, "statements-failed"));
+        dropped = metrics.meter(MetricRegistry.name(EventWriter.class, "events-dropped"));
+        spilled = metrics.meter(MetricRegistry.name(EventWriter.class, "events-spilled"));
+        batchSize = metrics.histogram(MetricRegistry.name(EventWriter.class, "batch-size"));
+        pending = metrics.counter(MetricRegistry.name(EventWriter.class, "pending-statements"));
+    }
+
+    /**
+     * Queue an Event for writing. This never blocks longer than the BLOCK policy's timeout.
+     *
+     * @return true if the Event was queued (or spilled), false if it was dropped
+     */
+    public boolean write(Event event) {
+        if (ring.offer(event)) return true;
+        switch (config.getOverflowPolicy()) {
+            case BLOCK:
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getBlockTimeoutMillis());
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(100_000L);
+                    if (ring.offer(event)) return true;
+                }
+                dropped.mark();
+                return false;
+            case DROP_OLDEST:
+                for (int attempt = 0; attempt < 8; attempt++) {
+                    if (ring.poll() != null) dropped.mark();
+                    if (ring.offer(event)) return true;
+                }
+                dropped.mark();
+                return false;
+            case SPILL:
+                return spill(event);
+            default:
+                dropped.mark();
+                return false;
+        }
+    }
+
+    private boolean spill(Event event) {
+        try {
+            if (spillLog != null && spillLog.append(SpillLog.Kind.EVENT, JsonSerializer.getSmile(event))) {
+                spilled.mark();
+                return true;
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to spill Event {}: {}", event.getId(), e.getMessage());
+        }
+        dropped.mark();
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        consumer = new Thread(this::run, "event-writer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        if (consumer != null) consumer.join(config.getShutdownTimeoutMillis());
+        // wait for outstanding writes
+        if (inFlight.tryAcquire(config.getMaxInFlight(), config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS))
+            inFlight.release(config.getMaxInFlight());
+        if (!ring.isEmpty()) {
+            LOG.warn("EventWriter stopped with {} Events unwritten; spilling them", ring.size());
+            Event event;
+            while ((event = ring.poll()) != null) spill(event);
+        }
+    }
+
+    /**
+     * Consumer loop: gather up to batchSize Events, waiting at most flushIntervalMillis after the first, then commit.
+     */
+    private void run() {
+        List<Event> events = new ArrayList<>(config.getBatchSize());
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMillis());
+        long deadline = 0;
+        while (running || !ring.isEmpty() || !events.isEmpty()) {
+            int drained = ring.drainTo(events, config.getBatchSize() - events.size());
+            if (!events.isEmpty() && deadline == 0) deadline = System.nanoTime() + flushNanos;
+            if (!events.isEmpty() && (events.size() >= config.getBatchSize() || System.nanoTime() >= deadline || !running)) {
+                try {
+                    commit(events);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    LOG.error("EventWriter error: {}", e.getMessage());
+                }
+                events.clear();
+                deadline = 0;
+            } else if (drained == 0) LockSupport.parkNanos(Math.min(flushNanos, 1_000_000L));
+        }
+    }
+
+    /**
+     * Write a group of Events, coalescing their statements by table and partition key.
+     */
+    private void commit(List<Event> events) throws InterruptedException {
+        Map<Object, List<BoundStatement>> partitions = new LinkedHashMap<>();
+        Map<BoundStatement, Event> sources = new IdentityHashMap<>();
+        for (Event event : events) {
+            try {
+                for (BoundStatement statement : builder.statements(event)) {
+                    partitions.computeIfAbsent(partitionOf(statement), k -> new ArrayList<>()).add(statement);
+                    sources.put(statement, event);
+                }
+            } catch (IOException e) {
+                failed.mark();
+                LOG.error("Unable to encode Event {}: {}", event.getId(), e.getMessage());
+            }
+        }
+        batchSize.update(events.size());
+        for (List<BoundStatement> statements : partitions.values())
+            for (int i = 0; i < statements.size(); i += config.getMaxBatchStatements()) {
+                List<BoundStatement> chunk = statements.subList(i, Math.min(statements.size(), i + config.getMaxBatchStatements()));
+                Set<Event> chunkEvents = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (BoundStatement statement : chunk) chunkEvents.add(sources.get(statement));
+                if (chunk.size() == 1) execute(chunk.get(0), 1, chunkEvents);
+                else {
+                    BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batch.addAll(chunk);
+                    execute(batch, chunk.size(), chunkEvents);
+                }
+            }
+        written.mark(events.size());
+    }
+
+    private Object partitionOf(BoundStatement statement) {
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        return routingKey == null ? new Object() : Arrays.asList(statement.preparedStatement().getQueryString(), routingKey);
+    }
+
+    /**
+     * Execute a write asynchronously. If it fails, the Events it belongs to are spilled whole; rewriting their other
+     * statements is harmless, since every Event write is an idempotent insert.
+     */
+    private void execute(Statement statement, int count, Set<Event> events) throws InterruptedException {
+        inFlight.acquire(); // backpressure: the ring absorbs bursts while Cassandra catches up
+        pending.inc(count);
+        Futures.addCallback(session.executeAsync(statement), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                pending.dec(count);
+                inFlight.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                pending.dec(count);
+                inFlight.release();
+                failed.mark(count);
+                LOG.warn("EventWriter write failed: {}", t.getMessage());
+                for (Event event : events) spill(event);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+}
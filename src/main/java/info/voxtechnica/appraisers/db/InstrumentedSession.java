@@ -0,0 +1,202 @@
+package info.voxtechnica.appraisers.db;
+
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import info.voxtechnica.appraisers.util.RequestTimings;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InstrumentedSession wraps the keyspace Session to attribute Cassandra statement time to the API request that issued
+ * it (see RequestTimings). Synchronous executions are timed on the calling thread; asynchronous ones capture the
+ * request's timings and add the statement's latency when it completes, so fan-out reads are counted even when their
+ * results are collected in completion order. Statements issued outside a request (e.g. by background writers) pass
+ * straight through.
+ * <p/>
+ * It also enables query tracing on a sample of statements, and attaches the trace IDs of slow traced executions to
+ * their slow query entries (see StatementRegistry).
+ */
+public class InstrumentedSession implements Session {
+    private final Session delegate;
+
+    public InstrumentedSession(Session delegate) {
+        this.delegate = delegate;
+    }
+
+    public Session getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Enable query tracing on a sample of statements (see CassandraConfiguration.traceProbability).
+     */
+    private static Statement sample(Statement statement) {
+        if (!statement.isTracing() && StatementRegistry.sampleTrace()) statement.enableTracing();
+        return statement;
+    }
+
+    private static void traced(Statement statement, ResultSet resultSet, long nanos) {
+        if (statement.isTracing() && TimeUnit.NANOSECONDS.toMillis(nanos) >= StatementRegistry.getConfig().getSlowQueryThresholdMillis()) {
+            QueryTrace trace = resultSet.getExecutionInfo().getQueryTrace();
+            if (trace != null) StatementRegistry.attachTrace(statement, trace.getTraceId());
+        }
+    }
+
+    private ResultSetFuture track(Statement statement, ResultSetFuture future) {
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null && !statement.isTracing()) return future;
+        long start = System.nanoTime();
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                long nanos = System.nanoTime() - start;
+                if (timings != null) timings.addStatement(nanos);
+                traced(statement, result, nanos);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (timings != null) timings.addStatement(System.nanoTime() - start);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private ResultSetFuture track(ResultSetFuture future) {
+        RequestTimings timings = RequestTimings.current();
+        if (timings == null) return future;
+        long start = System.nanoTime();
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                timings.addStatement(System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                timings.addStatement(System.nanoTime() - start);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private static ResultSet timed(RequestTimings timings, long start, ResultSet resultSet) {
+        if (timings != null) timings.addStatement(System.nanoTime() - start);
+        return resultSet;
+    }
+
+    @Override
+    public String getLoggedKeyspace() {
+        return delegate.getLoggedKeyspace();
+    }
+
+    @Override
+    public Session init() {
+        delegate.init();
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        return Futures.transform(delegate.initAsync(), session -> this, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public ResultSet execute(String query) {
+        RequestTimings timings = RequestTimings.current();
+        long start = System.nanoTime();
+        return timed(timings, start, delegate.execute(query));
+    }
+
+    @Override
+    public ResultSet execute(String query, Object... values) {
+        RequestTimings timings = RequestTimings.current();
+        long start = System.nanoTime();
+        return timed(timings, start, delegate.execute(query, values));
+    }
+
+    @Override
+    public ResultSet execute(String query, Map<String, Object> values) {
+        RequestTimings timings = RequestTimings.current();
+        long start = System.nanoTime();
+        return timed(timings, start, delegate.execute(query, values));
+    }
+
+    @Override
+    public ResultSet execute(Statement statement) {
+        RequestTimings timings = RequestTimings.current();
+        long start = System.nanoTime();
+        ResultSet resultSet = delegate.execute(sample(statement));
+        traced(statement, resultSet, System.nanoTime() - start);
+        return timed(timings, start, resultSet);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query) {
+        return track(delegate.executeAsync(query));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Object... values) {
+        return track(delegate.executeAsync(query, values));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(String query, Map<String, Object> values) {
+        return track(delegate.executeAsync(query, values));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        return track(statement, delegate.executeAsync(sample(statement)));
+    }
+
+    @Override
+    public PreparedStatement prepare(String query) {
+        return delegate.prepare(query);
+    }
+
+    @Override
+    public PreparedStatement prepare(RegularStatement statement) {
+        return delegate.prepare(statement);
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(String query) {
+        return delegate.prepareAsync(query);
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
+        return delegate.prepareAsync(statement);
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        return delegate.closeAsync();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public Cluster getCluster() {
+        return delegate.getCluster();
+    }
+
+    @Override
+    public State getState() {
+        return delegate.getState();
+    }
+}
@@ -0,0 +1,16 @@
+package info.voxtechnica.appraisers.db;
+
+/**
+ * InvalidPagingException reports a caller-supplied cursor, offset, or range that can't position a read (e.g. a tampered
+ * cursor, an offset that isn't a TUID, or a range wider than the indexes allow). Resources answer it with 400 Bad
+ * Request; any other exception from a read is an internal error.
+ */
+public class InvalidPagingException extends RuntimeException {
+    public InvalidPagingException(String message) {
+        super(message);
+    }
+
+    public InvalidPagingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,237 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import info.voxtechnica.appraisers.config.MetricConfiguration;
+import info.voxtechnica.appraisers.db.dao.MetricRollups;
+import info.voxtechnica.appraisers.model.MetricRollup;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import io.dropwizard.lifecycle.Managed;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * MetricAggregator accumulates Metric durations in memory, per tag, in fixed windows (windowSeconds), and writes one
+ * MetricRollup per tag per non-empty window (in the finest tier): count, sum, min, max, a duration histogram, and the IDs of the window's
+ * slowest Metrics as exemplars. Rollup write volume depends on the number of tags, not on traffic, so durations can be
+ * recorded for every request. Flushes are aligned to window boundaries, with a final (partial window) flush on shutdown.
+ * <p/>
+ * Each tag also keeps cumulative totals since startup (count, sum, and fixed duration buckets), for scraping.
+ * <p/>
+ * Until the aggregator is started, recorded durations are ignored, so DAOs work the same in commands and tasks.
+ */
+public class MetricAggregator implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricAggregator.class);
+    private static MetricAggregator instance;
+    public static final long[] BUCKET_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final MetricConfiguration config;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+    // rollup rows are keyed by (window, node_id); a restart within a window that reclaims the same Node ID writes the
+    // window again, so this process's rows carry a random discriminator above the Node ID rather than replacing the last
+    private final int incarnation = ThreadLocalRandom.current().nextInt(1 << 23) << 8;
+    private final Meter recorded;
+    private final Meter written;
+    private final Meter failures;
+    private volatile long windowStart;
+    private volatile boolean running = false;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * A tag's accumulators for the current window. The Recorder swaps histograms without blocking recording threads.
+     */
+    private static class Cell {
+        private final Recorder recorder;
+        private final LongAdder sum = new LongAdder();
+        private final PriorityQueue<Map.Entry<Long, String>> slowest = new PriorityQueue<>(Map.Entry.comparingByKey());
+        private Histogram recycled;
+        private final Totals totals = new Totals();
+
+        private Cell(MetricConfiguration config) {
+            recorder = new Recorder(1L, config.getHighestTrackableMillis(), config.getSignificantDigits());
+        }
+    }
+
+    /**
+     * A tag's cumulative totals since startup. Bucket counts are per bucket (not cumulative); the last bucket counts
+     * durations above every bound.
+     */
+    public static class Totals {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKET_MILLIS.length + 1];
+
+        private Totals() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        private void add(long value) {
+            int index = Arrays.binarySearch(BUCKET_MILLIS, value);
+            buckets[index >= 0 ? index : -index - 1].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getBucket(int index) {
+            return buckets[index].sum();
+        }
+    }
+
+    private MetricAggregator(MetricConfiguration config, MetricRegistry metrics) {
+        this.config = config;
+        this.windowMillis = config.getWindowSeconds() * 1000L;
+        metrics.register(MetricRegistry.name(MetricAggregator.class, "tags"), (Gauge<Integer>) cells::size);
+        recorded = metrics.meter(MetricRegistry.name(MetricAggregator.class, "durations-recorded"));
+        written = metrics.meter(MetricRegistry.name(MetricAggregator.class, "rollups-written"));
+        failures = metrics.meter(MetricRegistry.name(MetricAggregator.class, "failures"));
+    }
+
+    /**
+     * Create the shared aggregator. Manage the returned instance to start flushing (and to flush on shutdown).
+     */
+    public static synchronized MetricAggregator initialize(MetricConfiguration config, MetricRegistry metrics) {
+        if (instance == null) instance = new MetricAggregator(config, metrics);
+        else LOG.info("Previously initialized");
+        return instance;
+    }
+
+    /**
+     * Record a duration for a tag in the current window.
+     *
+     * @param tag        Metric tag
+     * @param duration   duration in milliseconds
+     * @param exemplarId ID of the Metric (or Event, or request) measured, kept if it's among the window's slowest (optional)
+     */
+    public static void record(String tag, long duration, String exemplarId) {
+        MetricAggregator aggregator = instance;
+        if (aggregator == null || !aggregator.running || tag == null) return;
+        Cell cell = aggregator.cells.computeIfAbsent(tag, k -> new Cell(aggregator.config));
+        long value = Math.min(Math.max(duration, 0L), aggregator.config.getHighestTrackableMillis());
+        cell.recorder.recordValue(value);
+        cell.sum.add(value);
+        cell.totals.add(value);
+        if (exemplarId != null && aggregator.config.getExemplars() > 0) synchronized (cell.slowest) {
+            if (cell.slowest.size() < aggregator.config.getExemplars()) cell.slowest.add(new AbstractMap.SimpleImmutableEntry<>(value, exemplarId));
+            else if (cell.slowest.peek().getKey() < value) {
+                cell.slowest.poll();
+                cell.slowest.add(new AbstractMap.SimpleImmutableEntry<>(value, exemplarId));
+            }
+        }
+        aggregator.recorded.mark();
+    }
+
+    /**
+     * Visit each tag's cumulative totals (without copying them).
+     */
+    public static void forEachTotals(BiConsumer<String, Totals> visitor) {
+        MetricAggregator aggregator = instance;
+        if (aggregator != null) aggregator.cells.forEach((tag, cell) -> visitor.accept(tag, cell.totals));
+    }
+
+    public int getWindowSeconds() {
+        return config.getWindowSeconds();
+    }
+
+    @Override
+    public void start() {
+        long now = System.currentTimeMillis();
+        windowStart = now - Math.floorMod(now, windowMillis);
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metric-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                LOG.error("Metric rollup flush error: {}", e.getMessage());
+            }
+        }, windowStart + windowMillis - now, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(windowMillis, TimeUnit.MILLISECONDS);
+        }
+        running = false;
+        flush(); // the partial window
+    }
+
+    /**
+     * Close the current window: write a rollup for each tag that recorded durations in it. The sum and histogram are
+     * swapped out separately, so a duration recorded mid-flush may land in either window, but it is never lost.
+     * <p/>
+     * The next window follows this one, whatever the clock says, so a timer firing a little early can't start the same
+     * window twice (and overwrite its rollups). If flushes were missed (e.g. a long pause), it catches up to the window
+     * that holds the current time.
+     */
+    private synchronized void flush() {
+        long start = windowStart;
+        long now = System.currentTimeMillis();
+        long next = start + windowMillis;
+        if (now - next >= windowMillis) next = now - Math.floorMod(now, windowMillis);
+        windowStart = next;
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+            Histogram histogram = cell.recorder.getIntervalHistogram(cell.recycled);
+            long sum = cell.sum.sumThenReset();
+            List<String> exemplarIds = new ArrayList<>();
+            synchronized (cell.slowest) {
+                while (!cell.slowest.isEmpty()) exemplarIds.add(0, cell.slowest.poll().getValue());
+            }
+            if (histogram.getTotalCount() == 0) {
+                cell.recycled = histogram;
+                continue;
+            }
+            cell.recycled = null; // the rollup keeps this histogram
+            MetricRollup rollup = new MetricRollup(entry.getKey(), config.getWindowSeconds(), start, sum, histogram);
+            rollup.setExemplarIds(exemplarIds);
+            write(rollup);
+        }
+    }
+
+    private void write(MetricRollup rollup) {
+        try {
+            Futures.addCallback(MetricRollups.writeRollup(rollup, incarnation | (TuidFactory.getServerId() & 0xFF), config.getTiers().get(0).getTimeToLive()), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                    written.mark();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failures.mark();
+                    LOG.warn("Metric rollup write failed for {}: {}", rollup.getTag(), t.getMessage());
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (Exception e) {
+            failures.mark();
+            LOG.warn("Metric rollup write failed for {}: {}", rollup.getTag(), e.getMessage());
+        }
+    }
+}
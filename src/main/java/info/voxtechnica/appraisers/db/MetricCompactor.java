@@ -0,0 +1,123 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.ResultSetFuture;
+import info.voxtechnica.appraisers.config.MetricConfiguration;
+import info.voxtechnica.appraisers.db.dao.MetricRollups;
+import info.voxtechnica.appraisers.db.dao.Metrics;
+import info.voxtechnica.appraisers.model.MetricCount;
+import info.voxtechnica.appraisers.model.MetricRollup;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MetricCompactor downsamples Metric rollups: for each tier after the first, it merges the complete windows of the
+ * next finer tier into one row per tag per window, written with the tier's (longer) time to live. Progress is recorded
+ * per tier, after every tag's window is written, so an interrupted run resumes where it left off. Windows are compacted
+ * in order, at most maxCompactionWindows per tier per run, starting no earlier than the finer tier's retention.
+ * <p/>
+ * Compacted rows have a fixed node ID, so nodes compacting the same window concurrently write identical rows.
+ */
+public class MetricCompactor implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricCompactor.class);
+
+    private final MetricConfiguration config;
+    private final Meter windows;
+    private final Meter written;
+    private final Meter failures;
+    private final Timer runs;
+    private ScheduledExecutorService scheduler;
+
+    public MetricCompactor(MetricConfiguration config, MetricRegistry metrics) {
+        this.config = config;
+        windows = metrics.meter(MetricRegistry.name(MetricCompactor.class, "windows-compacted"));
+        written = metrics.meter(MetricRegistry.name(MetricCompactor.class, "rollups-written"));
+        failures = metrics.meter(MetricRegistry.name(MetricCompactor.class, "failures"));
+        runs = metrics.timer(MetricRegistry.name(MetricCompactor.class, "runs"));
+    }
+
+    @Override
+    public void start() {
+        if (!config.isCompactionEnabled() || config.getTiers().size() < 2) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metric-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                failures.mark();
+                LOG.error("Metric compaction error: {}", e.getMessage());
+            }
+        }, config.getCompactionIntervalSeconds(), config.getCompactionIntervalSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(config.getCompactionIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Compact each coarser tier's complete windows, finest tiers first, so a run can cascade from minutes to days.
+     */
+    private void compact() throws Exception {
+        Timer.Context timer = runs.time();
+        try {
+            List<String> tags = new ArrayList<>();
+            for (MetricCount count : Metrics.readMetricCountsByTag()) tags.add(count.getTag());
+            long now = System.currentTimeMillis();
+            List<MetricConfiguration.Tier> tiers = config.getTiers();
+            for (int i = 1; i < tiers.size(); i++) {
+                MetricConfiguration.Tier finer = tiers.get(i - 1), tier = tiers.get(i);
+                long millis = tier.getResolution() * 1000L;
+                long available = i == 1 ? now - config.getCompactionDelaySeconds() * 1000L : MetricRollups.readCompactedThrough(finer.getResolution());
+                long end = Math.floorDiv(available, millis) * millis;
+                long start = Math.max(MetricRollups.readCompactedThrough(tier.getResolution()),
+                        Math.floorDiv(now - finer.getTimeToLive() * 1000L, millis) * millis);
+                for (int n = 0; n < config.getMaxCompactionWindows() && start + millis <= end; n++, start += millis) {
+                    compactWindow(tags, finer.getResolution(), tier, start);
+                    MetricRollups.writeCompactedThrough(tier.getResolution(), start + millis);
+                    windows.mark();
+                }
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void compactWindow(List<String> tags, int finerResolution, MetricConfiguration.Tier tier, long windowStart) throws Exception {
+        long windowEnd = windowStart + tier.getResolution() * 1000L;
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (String tag : tags) {
+            List<MetricRollup> rollups = MetricRollups.readRollups(tag, finerResolution, windowStart, windowEnd);
+            if (rollups.isEmpty()) continue;
+            MetricRollup merged = rollups.get(0);
+            for (MetricRollup rollup : rollups.subList(1, rollups.size())) merged.merge(rollup);
+            merged.setResolution(tier.getResolution());
+            merged.setWindowStart(windowStart);
+            if (merged.getExemplarIds().size() > config.getExemplars())
+                merged.setExemplarIds(new ArrayList<>(merged.getExemplarIds().subList(0, config.getExemplars())));
+            futures.add(MetricRollups.writeRollup(merged, MetricRollups.MERGED_NODE, tier.getTimeToLive()));
+        }
+        for (ResultSetFuture future : futures) {
+            future.get(); // every tag's window must be written before the tier's progress advances
+            written.mark();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import info.voxtechnica.appraisers.config.NodeLeaseConfiguration;
+import info.voxtechnica.appraisers.db.dao.Nodes;
+import info.voxtechnica.appraisers.model.NodeLease;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NodeLeaseKeeper renews this node's Node ID lease on a heartbeat, and releases it on shutdown. No other node can take
+ * the Node ID until the reclaim gap after the lease expires, so the TuidFactory keeps issuing IDs through a Cassandra
+ * outage until then, less the fence margin; past that, generating an ID fails until a lease is held again. Renewals
+ * that fail outright (e.g. Cassandra is unavailable) are retried on the next heartbeat, and an expired lease that this
+ * process still owns is simply renewed. If a renewal finds the lease taken by another node (after a long pause or
+ * partition outlasted the reclaim gap), the keeper acquires a new lease and switches the TuidFactory to its Node ID,
+ * so this node never issues IDs under one it no longer holds.
+ */
+public class NodeLeaseKeeper implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeLeaseKeeper.class);
+
+    private final NodeLeaseConfiguration config;
+    private final Meter renewals;
+    private final Meter failures;
+    private final Meter reassignments;
+    private volatile NodeLease lease;
+    private ScheduledExecutorService scheduler;
+
+    public NodeLeaseKeeper(NodeLease lease, NodeLeaseConfiguration config, MetricRegistry metrics) {
+        this.lease = lease;
+        this.config = config;
+        renewals = metrics.meter(MetricRegistry.name(NodeLeaseKeeper.class, "renewals"));
+        failures = metrics.meter(MetricRegistry.name(NodeLeaseKeeper.class, "failures"));
+        reassignments = metrics.meter(MetricRegistry.name(NodeLeaseKeeper.class, "reassignments"));
+        fence(lease);
+        metrics.register(MetricRegistry.name(NodeLeaseKeeper.class, "remaining-seconds"), (Gauge<Long>) this::getRemainingSeconds);
+    }
+
+    public NodeLease getLease() {
+        return lease;
+    }
+
+    /**
+     * @return seconds until the lease expires (negative once it has)
+     */
+    public long getRemainingSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(lease.getExpiresAt().getTime() - System.currentTimeMillis());
+    }
+
+    @Override
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "node-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::renew, config.getHeartbeatSeconds(), config.getHeartbeatSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(config.getHeartbeatSeconds(), TimeUnit.SECONDS);
+        }
+        try {
+            TuidFactory.setValidUntil(System.currentTimeMillis());
+            Nodes.releaseLease(lease);
+            LOG.info("Released Node ID {} lease", lease.getId());
+        } catch (Exception e) {
+            LOG.warn("Unable to release Node ID {} lease: {}", lease.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Let the TuidFactory issue IDs with this lease until shortly before another node could reclaim its Node ID.
+     */
+    private void fence(NodeLease lease) {
+        long gapMillis = Math.max(0, config.getReclaimGapSeconds() - config.getFenceMarginSeconds()) * 1000L;
+        TuidFactory.setValidUntil(lease.getExpiresAt().getTime() + gapMillis);
+    }
+
+    private void renew() {
+        try {
+            if (Nodes.renewLease(lease)) {
+                fence(lease);
+                renewals.mark();
+                return;
+            }
+            LOG.error("Node ID {} lease was taken by another node; acquiring a new one", lease.getId());
+            NodeLease acquired = Nodes.acquireLease(lease.getIpAddress(), lease.getOwner());
+            if (acquired == null) {
+                failures.mark();
+                LOG.error("No available Node IDs for {}", lease.getIpAddress());
+                return;
+            }
+            TuidFactory.reassign(acquired.getId());
+            fence(acquired);
+            lease = acquired;
+            reassignments.mark();
+        } catch (Exception e) {
+            failures.mark();
+            LOG.warn("Unable to renew Node ID {} lease: {}", lease.getId(), e.getMessage());
+        }
+    }
+}
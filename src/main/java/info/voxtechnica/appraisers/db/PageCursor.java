@@ -0,0 +1,174 @@
+package info.voxtechnica.appraisers.db;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.PagingStateException;
+import info.voxtechnica.appraisers.config.CassandraConfiguration;
+import info.voxtechnica.appraisers.model.Page;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * PageCursor converts the Cassandra driver's PagingState into opaque, signed cursor tokens for paginated listings.
+ * A token is the base64url-encoded paging state followed by a truncated HMAC-SHA256 signature, so clients can't forge
+ * or alter one. The driver also rejects a paging state that doesn't match the statement and values it's bound to.
+ * Each page is read lazily, without fetching beyond the current page, so deep pagination costs the same as page one.
+ * <p/>
+ * The signing key is the configured cursorSecret, shared across the cluster. Without one, a node signs with a random
+ * key of its own, which only works for a single node; startup fails if other nodes are running (see MainApplication).
+ */
+public class PageCursor {
+    private static final Logger LOG = LoggerFactory.getLogger(PageCursor.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_LENGTH = 16;
+    private static final String KEY_PREFIX = "key:";
+    private static SecretKeySpec key = null;
+    private static boolean sharedSecret = false;
+    private static int maxPageSize = 1000;
+
+    public static void initialize(CassandraConfiguration config) {
+        maxPageSize = Math.max(1, config.getPageSize());
+        byte[] secret;
+        sharedSecret = config.getCursorSecret() != null && !config.getCursorSecret().isEmpty();
+        if (sharedSecret)
+            secret = config.getCursorSecret().getBytes(StandardCharsets.UTF_8);
+        else {
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            LOG.warn("No cursorSecret configured: paging cursors are valid only on this node until it restarts");
+        }
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * @return true if cursors are signed with the configured cursorSecret, rather than a random key of this node's own
+     */
+    public static boolean hasSharedSecret() {
+        return sharedSecret;
+    }
+
+    /**
+     * @param limit requested number of items (may be null)
+     * @return the page size to use: the requested limit, capped at the configured maximum
+     */
+    public static int pageSize(Integer limit) {
+        return limit == null || limit <= 0 ? maxPageSize : Math.min(limit, maxPageSize);
+    }
+
+    public static String encode(PagingState pagingState) {
+        return pagingState == null ? null : seal(pagingState.toBytes());
+    }
+
+    /**
+     * Verify and decode a cursor token.
+     *
+     * @param cursor cursor token
+     * @return PagingState
+     * @throws InvalidPagingException if the cursor is malformed or its signature doesn't match
+     */
+    public static PagingState decode(String cursor) {
+        if (cursor == null) return null;
+        try {
+            return PagingState.fromBytes(unseal(cursor));
+        } catch (PagingStateException e) {
+            throw new InvalidPagingException("Invalid cursor", e);
+        }
+    }
+
+    /**
+     * Encode a resume key (e.g. the last ID returned) as a cursor, for listings that span several partitions and so
+     * can't use a driver paging state.
+     */
+    public static String encodeKey(String resumeKey) {
+        return resumeKey == null ? null : seal((KEY_PREFIX + resumeKey).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Verify and decode a resume key cursor.
+     *
+     * @throws InvalidPagingException if the cursor is malformed, its signature doesn't match, or it isn't a key cursor
+     */
+    public static String decodeKey(String cursor) {
+        if (cursor == null) return null;
+        String resumeKey = new String(unseal(cursor), StandardCharsets.UTF_8);
+        if (!resumeKey.startsWith(KEY_PREFIX)) throw new InvalidPagingException("Cursor does not match this query");
+        return resumeKey.substring(KEY_PREFIX.length());
+    }
+
+    /**
+     * @return true if the cursor is a resume key cursor, rather than a driver paging state
+     * @throws InvalidPagingException if the cursor is malformed or its signature doesn't match
+     */
+    public static boolean isKey(String cursor) {
+        return cursor != null && new String(unseal(cursor), StandardCharsets.UTF_8).startsWith(KEY_PREFIX);
+    }
+
+    private static String seal(byte[] state) {
+        byte[] token = Arrays.copyOf(state, state.length + SIGNATURE_LENGTH);
+        System.arraycopy(sign(state), 0, token, state.length, SIGNATURE_LENGTH);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    private static byte[] unseal(String cursor) {
+        byte[] token;
+        try {
+            token = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidPagingException("Invalid cursor", e);
+        }
+        if (token.length <= SIGNATURE_LENGTH) throw new InvalidPagingException("Invalid cursor");
+        byte[] state = Arrays.copyOf(token, token.length - SIGNATURE_LENGTH);
+        byte[] signature = Arrays.copyOfRange(token, state.length, token.length);
+        if (!MessageDigest.isEqual(signature, Arrays.copyOf(sign(state), SIGNATURE_LENGTH)))
+            throw new InvalidPagingException("Invalid cursor");
+        return state;
+    }
+
+    /**
+     * Read a single page of results, starting from the cursor position.
+     *
+     * @param session Cassandra session
+     * @param query   statement, bound with the same values as the query that produced the cursor
+     * @param limit   requested page size (capped at the configured maximum)
+     * @param cursor  cursor token from a previous page, or null for the first page
+     * @param mapper  row mapper
+     * @return a Page of results, with a cursor for the next page (if any)
+     * @throws InvalidPagingException if the cursor is invalid or belongs to a different query
+     */
+    public static <T> Page<T> read(Session session, Statement query, Integer limit, String cursor, Function<Row, T> mapper) {
+        query.setFetchSize(pageSize(limit));
+        if (cursor != null) try {
+            query.setPagingState(decode(cursor));
+        } catch (PagingStateException e) {
+            throw new InvalidPagingException("Cursor does not match this query", e);
+        }
+        ResultSet resultSet = session.execute(query);
+        int available = resultSet.getAvailableWithoutFetching();
+        List<T> items = new ArrayList<>(available);
+        // consume only the rows already fetched; iterating further would fetch the next page
+        for (int i = 0; i < available; i++) items.add(mapper.apply(resultSet.one()));
+        return new Page<>(items, encode(resultSet.getExecutionInfo().getPagingState()));
+    }
+
+    private static byte[] sign(byte[] data) {
+        if (key == null) throw new IllegalStateException("PageCursor not initialized");
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
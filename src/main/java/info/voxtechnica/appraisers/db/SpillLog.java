@@ -0,0 +1,374 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.RateLimiter;
+import info.voxtechnica.appraisers.config.SpillConfiguration;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * SpillLog is a local write-ahead log for Event and Metric writes that can't reach Cassandra, because it's slow (too
+ * many writes in flight) or unavailable (writes failing). Records are appended to fixed-size memory-mapped segment
+ * files, each framed with its length and a CRC32 checksum, so an append is a memory copy that never waits on the
+ * network, and the data survives a process crash once it's in the mapped pages. A segment is sealed once it's full or
+ * has been idle for sealIdleMillis. A background replayer forces sealed segments to disk (outside the append lock),
+ * drains them into Cassandra at a bounded rate, backing off while the cluster is unavailable, and deletes each segment
+ * once it's fully replayed. Segments left by a previous run are recovered on startup. Replayed writes are idempotent
+ * inserts, so a record replayed twice (e.g. after a crash part way through a segment) does no harm.
+ */
+public class SpillLog implements Managed {
+    private static final Logger LOG = LoggerFactory.getLogger(SpillLog.class);
+    private static final int HEADER_BYTES = 9; // payload length, CRC32, kind
+    private static final String SUFFIX = ".spill";
+    private static final long IDLE_MILLIS = 1000;
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final long REPLAY_TIMEOUT_SECONDS = 10;
+
+    public enum Kind {EVENT, METRIC}
+
+    /**
+     * Decodes a spilled record into the statements that write it
+     */
+    public interface Replay {
+        List<BoundStatement> statements(byte[] payload) throws IOException;
+    }
+
+    private final Session session;
+    private final SpillConfiguration config;
+    private final Path directory;
+    private final Map<Kind, Replay> replays = new EnumMap<>(Kind.class);
+    private final Deque<Segment> sealed = new ConcurrentLinkedDeque<>();
+    private final RateLimiter rateLimiter;
+    private final Meter spilled;
+    private final Meter rejected;
+    private final Meter replayed;
+    private final Meter failures;
+    private volatile Segment active; // appended under this object's lock
+    private long nextSequence = 0;
+    private volatile boolean running = false;
+    private Thread replayer;
+
+    public SpillLog(Session session, SpillConfiguration config, MetricRegistry metrics) {
+        this.session = session;
+        this.config = config;
+        this.directory = Paths.get(config.getDirectory());
+        this.rateLimiter = RateLimiter.create(Math.max(1, config.getReplayRatePerSecond()));
+        metrics.register(MetricRegistry.name(SpillLog.class, "segments"), (Gauge<Integer>) () -> sealed.size() + (active == null ? 0 : 1));
+        metrics.register(MetricRegistry.name(SpillLog.class, "pending-bytes"), (Gauge<Long>) this::getPendingBytes);
+        spilled = metrics.meter(MetricRegistry.name(SpillLog.class, "records-spilled"));
+        rejected = metrics.meter(MetricRegistry.name(SpillLog.class, "records-rejected"));
+        replayed = metrics.meter(MetricRegistry.name(SpillLog.class, "records-replayed"));
+        failures = metrics.meter(MetricRegistry.name(SpillLog.class, "replay-failures"));
+        if (config.isEnabled()) recover();
+    }
+
+    public SpillConfiguration getConfig() {
+        return config;
+    }
+
+    public void register(Kind kind, Replay replay) {
+        replays.put(kind, replay);
+    }
+
+    /**
+     * Append a record to the log.
+     *
+     * @return false if the record was rejected (the log is disabled or full, or the disk is unwritable)
+     */
+    public synchronized boolean append(Kind kind, byte[] payload) {
+        if (!config.isEnabled() || payload == null || payload.length == 0 || HEADER_BYTES + payload.length > config.getSegmentBytes()) {
+            rejected.mark();
+            return false;
+        }
+        try {
+            if (active == null || active.remaining() < HEADER_BYTES + payload.length) {
+                if (sealed.size() + 1 >= config.getMaxSegments()) {
+                    rejected.mark();
+                    return false;
+                }
+                seal();
+                active = Segment.open(segmentPath(nextSequence++), config.getSegmentBytes());
+            }
+            active.append(kind, payload);
+            spilled.mark();
+            return true;
+        } catch (IOException e) {
+            LOG.error("Unable to spill {} record: {}", kind, ExceptionUtils.getRootCauseMessage(e));
+            rejected.mark();
+            return false;
+        }
+    }
+
+    /**
+     * @return bytes spilled but not yet replayed
+     */
+    public long getPendingBytes() {
+        long bytes = 0;
+        for (Segment segment : sealed) bytes += segment.end - segment.position;
+        Segment current = active;
+        if (current != null) bytes += current.end;
+        return bytes;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        replayer = new Thread(this::replay, "spill-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        if (replayer != null) {
+            replayer.interrupt();
+            replayer.join(TimeUnit.SECONDS.toMillis(REPLAY_TIMEOUT_SECONDS));
+        }
+        synchronized (this) {
+            seal();
+            long pendingBytes = getPendingBytes();
+            if (pendingBytes > 0) LOG.warn("SpillLog stopped with {} bytes unreplayed; they will be replayed on restart", pendingBytes);
+            for (Segment segment : sealed) segment.close();
+            sealed.clear();
+        }
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%020d%s", sequence, SUFFIX));
+    }
+
+    /**
+     * Move the active segment (if it holds any records) to the replay queue. The caller holds this object's lock; the
+     * replayer forces the segment to disk afterwards, so appends never wait on the disk.
+     */
+    private void seal() {
+        if (active == null) return;
+        if (active.end > 0) {
+            sealed.add(active);
+        } else {
+            try {
+                active.delete();
+            } catch (IOException e) {
+                LOG.warn("Unable to delete empty spill segment {}: {}", active.path, e.getMessage());
+            }
+        }
+        active = null;
+    }
+
+    /**
+     * Queue the segments left by a previous run for replay, in order.
+     */
+    private void recover() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path path : stream) paths.add(path);
+            }
+            Collections.sort(paths);
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+                Segment segment = Segment.open(path, 0);
+                if (segment.end > 0) sealed.add(segment);
+                else segment.delete();
+            }
+            if (!sealed.isEmpty())
+                LOG.info("Recovered {} spill segments ({} bytes) for replay", sealed.size(), getPendingBytes());
+        } catch (IOException | NumberFormatException e) {
+            LOG.error("Unable to recover spill segments from {}: {}", directory, ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * Replayer loop: force newly sealed segments to disk, and replay them oldest first. When there's nothing else to do,
+     * seal the active segment if it has been idle long enough.
+     */
+    private void replay() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                for (Segment segment : sealed) segment.force();
+                Segment segment = sealed.peek();
+                if (segment == null) {
+                    Segment current = active;
+                    if (current != null && System.currentTimeMillis() - current.lastAppend >= config.getSealIdleMillis()) {
+                        synchronized (this) {
+                            if (active == current) seal();
+                        }
+                    }
+                    if (sealed.isEmpty()) Thread.sleep(IDLE_MILLIS);
+                    continue;
+                }
+                if (replaySegment(segment)) {
+                    backoff = MIN_BACKOFF_MILLIS;
+                    sealed.poll();
+                    segment.delete();
+                } else {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.error("SpillLog replay error: {}", ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Replay a segment's records from its current position.
+     *
+     * @return true if the whole segment has been replayed, false if a write failed (the failed record is retried)
+     */
+    private boolean replaySegment(Segment segment) throws InterruptedException {
+        while (segment.position < segment.end && running) {
+            int next = segment.next(segment.position);
+            if (next < 0) {
+                LOG.error("Corrupt spill record in {} at {}; skipping the rest of the segment", segment.path, segment.position);
+                segment.position = segment.end;
+                break;
+            }
+            Kind kind = Kind.values()[segment.buffer.get(segment.position + 8)];
+            Replay replay = replays.get(kind);
+            if (replay == null) LOG.warn("No replay registered for spilled {} records; skipping", kind);
+            else {
+                List<BoundStatement> statements;
+                try {
+                    statements = replay.statements(segment.payload(segment.position));
+                } catch (IOException e) {
+                    LOG.error("Unable to decode spilled {} record: {}", kind, e.getMessage());
+                    statements = Collections.emptyList();
+                }
+                rateLimiter.acquire();
+                try {
+                    List<ResultSetFuture> futures = new ArrayList<>(statements.size());
+                    for (BoundStatement statement : statements) futures.add(session.executeAsync(statement));
+                    for (ResultSetFuture future : futures) future.get(REPLAY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failures.mark();
+                    LOG.warn("SpillLog replay failed: {}", ExceptionUtils.getRootCauseMessage(e));
+                    return false;
+                }
+                replayed.mark();
+            }
+            segment.position = next;
+        }
+        return segment.position >= segment.end;
+    }
+
+    /**
+     * A memory-mapped segment file of framed records: [int payload length][int CRC32][byte kind][payload]. The length
+     * is written last, so a torn append reads as the end of the segment.
+     */
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private volatile int end = 0; // append position
+        private volatile long lastAppend = System.currentTimeMillis();
+        private boolean forced = false; // replayer only
+        private int position = 0; // replay position
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size())));
+            int at = 0, next;
+            while ((next = segment.next(at)) > 0) at = next;
+            segment.end = at;
+            return segment;
+        }
+
+        int remaining() {
+            return buffer.capacity() - end;
+        }
+
+        void append(Kind kind, byte[] payload) {
+            CRC32 crc = new CRC32();
+            crc.update(kind.ordinal());
+            crc.update(payload);
+            buffer.putInt(end + 4, (int) crc.getValue());
+            buffer.put(end + 8, (byte) kind.ordinal());
+            ByteBuffer target = buffer.duplicate();
+            target.position(end + HEADER_BYTES);
+            target.put(payload);
+            buffer.putInt(end, payload.length);
+            end += HEADER_BYTES + payload.length;
+            lastAppend = System.currentTimeMillis();
+        }
+
+        /**
+         * Flush a sealed segment's mapped pages to disk, once.
+         */
+        void force() {
+            if (forced) return;
+            buffer.force();
+            forced = true;
+        }
+
+        byte[] payload(int at) {
+            byte[] payload = new byte[buffer.getInt(at)];
+            ByteBuffer source = buffer.duplicate();
+            source.position(at + HEADER_BYTES);
+            source.get(payload);
+            return payload;
+        }
+
+        /**
+         * @return the position after a valid record at the given position, or -1 if there isn't one
+         */
+        int next(int at) {
+            if (at + HEADER_BYTES > buffer.capacity()) return -1;
+            int length = buffer.getInt(at);
+            int kind = buffer.get(at + 8);
+            if (length <= 0 || at + HEADER_BYTES + length > buffer.capacity() || kind < 0 || kind >= Kind.values().length)
+                return -1;
+            CRC32 crc = new CRC32();
+            crc.update(kind);
+            crc.update(payload(at));
+            return (int) crc.getValue() == buffer.getInt(at + 4) ? at + HEADER_BYTES + length : -1;
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
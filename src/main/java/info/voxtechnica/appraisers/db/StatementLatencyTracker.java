@@ -0,0 +1,65 @@
+package info.voxtechnica.appraisers.db;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import info.voxtechnica.appraisers.model.SlowQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StatementLatencyTracker records the latency of every statement execution (each attempt, on each host) by statement
+ * name, as Dropwizard timers named cassandra.statements.{name}, with failed executions also marked on
+ * cassandra.statements.{name}.errors. Executions over the slow query threshold are kept in the StatementRegistry's
+ * slow query log.
+ */
+public class StatementLatencyTracker implements LatencyTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(StatementLatencyTracker.class);
+    public static final String PREFIX = "cassandra.statements";
+
+    private final MetricRegistry metrics;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Meter> errors = new ConcurrentHashMap<>();
+    private final AtomicLong slowQuerySequence = new AtomicLong();
+
+    public StatementLatencyTracker(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        String name = StatementRegistry.nameOf(statement);
+        timers.computeIfAbsent(name, k -> metrics.timer(MetricRegistry.name(PREFIX, k))).update(newLatencyNanos, TimeUnit.NANOSECONDS);
+        if (exception != null) errors.computeIfAbsent(name, k -> metrics.meter(MetricRegistry.name(PREFIX, k, "errors"))).mark();
+        long millis = TimeUnit.NANOSECONDS.toMillis(newLatencyNanos);
+        if (millis >= StatementRegistry.getConfig().getSlowQueryThresholdMillis()) {
+            SlowQuery slowQuery = new SlowQuery();
+            slowQuery.setSequence(slowQuerySequence.incrementAndGet());
+            slowQuery.setTimestamp(System.currentTimeMillis());
+            slowQuery.setName(name);
+            slowQuery.setLatencyMillis(millis);
+            slowQuery.setHost(host == null ? null : host.toString());
+            slowQuery.setError(exception == null ? null : exception.getClass().getSimpleName() + ": " + exception.getMessage());
+            slowQuery.setFingerprint(StatementRegistry.fingerprint(statement));
+            StatementRegistry.recordSlow(statement, slowQuery);
+            LOG.debug("Slow query {}: {} ms on {}", name, millis, host);
+        }
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+    }
+}
@@ -0,0 +1,157 @@
+package info.voxtechnica.appraisers.db;
+
+import com.datastax.driver.core.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import info.voxtechnica.appraisers.config.CassandraConfiguration;
+import info.voxtechnica.appraisers.model.SlowQuery;
+import info.voxtechnica.appraisers.util.EvictingRing;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * StatementRegistry names the DAOs' prepared statements (e.g. Licenses.readCurrentVersion), so their executions can be
+ * measured and reported by name (see StatementLatencyTracker), and keeps the most recent slow executions in memory for
+ * the admin /slow-queries endpoint.
+ */
+public class StatementRegistry {
+    public static final String UNNAMED = "unnamed";
+    public static final String UNPREPARED = "unprepared";
+    private static final int BATCH_NAMES = 4;
+    private static final int MAX_CACHED_BATCHES = 1024;
+
+    private static final Map<PreparedStatement, String> names = new ConcurrentHashMap<>();
+    private static final Map<String, String> queryNames = new ConcurrentHashMap<>();
+    private static final Map<List<String>, String> batchNames = new ConcurrentHashMap<>(); // by member names, in order
+    // slow executions awaiting a trace ID, and trace IDs awaiting a slow execution (whichever is reported first)
+    private static final Cache<Statement, SlowQuery> untraced = CacheBuilder.newBuilder().weakKeys().expireAfterWrite(1, TimeUnit.MINUTES).build();
+    private static final Cache<Statement, UUID> traces = CacheBuilder.newBuilder().weakKeys().expireAfterWrite(1, TimeUnit.MINUTES).build();
+    private static volatile CassandraConfiguration config = new CassandraConfiguration();
+    private static volatile EvictingRing<SlowQuery> slowQueries = new EvictingRing<>(config.getSlowQueryCapacity());
+
+    public static void initialize(CassandraConfiguration configuration) {
+        config = configuration;
+        slowQueries = new EvictingRing<>(configuration.getSlowQueryCapacity());
+    }
+
+    public static CassandraConfiguration getConfig() {
+        return config;
+    }
+
+    /**
+     * Prepare a statement and register its name.
+     *
+     * @param name  statement name: DAO class and operation, e.g. Licenses.readCurrentVersion
+     * @param query CQL query
+     */
+    public static PreparedStatement prepare(Session session, String name, String query) {
+        PreparedStatement statement = session.prepare(query);
+        names.put(statement, name);
+        queryNames.put(query, name);
+        return statement;
+    }
+
+    /**
+     * @return the name of an executed statement's prepared statement, a summary of a batch's, or UNNAMED/UNPREPARED
+     */
+    public static String nameOf(Statement statement) {
+        if (statement instanceof BoundStatement) {
+            PreparedStatement prepared = ((BoundStatement) statement).preparedStatement();
+            String name = names.get(prepared);
+            if (name == null) name = queryNames.get(prepared.getQueryString());
+            return name == null ? UNNAMED : name;
+        }
+        if (statement instanceof BatchStatement) {
+            Collection<Statement> children = ((BatchStatement) statement).getStatements();
+            List<String> members = new ArrayList<>(children.size());
+            for (Statement child : children) {
+                String name = nameOf(child);
+                if (members.isEmpty() || !members.get(members.size() - 1).equals(name)) members.add(name);
+            }
+            String name = batchNames.get(members);
+            if (name != null) return name;
+            return batchNames.size() < MAX_CACHED_BATCHES ? batchNames.computeIfAbsent(members, StatementRegistry::batchName) : batchName(members);
+        }
+        return UNPREPARED;
+    }
+
+    /**
+     * @return a batch's name, from the distinct names of its statements
+     */
+    private static String batchName(List<String> members) {
+        Set<String> batched = new TreeSet<>(members);
+        if (batched.size() == 1) return "batch." + batched.iterator().next();
+        return batched.size() <= BATCH_NAMES ? "batch." + String.join("+", batched) : "batch.mixed";
+    }
+
+    /**
+     * @return the bound values' fingerprint: each variable's name and a checksum of its serialized value
+     */
+    public static String fingerprint(Statement statement) {
+        if (statement instanceof BoundStatement) {
+            BoundStatement bound = (BoundStatement) statement;
+            ColumnDefinitions variables = bound.preparedStatement().getVariables();
+            StringBuilder fingerprint = new StringBuilder();
+            for (int i = 0; i < variables.size(); i++) {
+                if (i > 0) fingerprint.append(", ");
+                fingerprint.append(variables.getName(i)).append('=');
+                ByteBuffer value = bound.isSet(i) ? bound.getBytesUnsafe(i) : null;
+                if (value == null) fingerprint.append("null");
+                else {
+                    CRC32 crc = new CRC32();
+                    crc.update(value.duplicate());
+                    fingerprint.append(Long.toHexString(crc.getValue()));
+                }
+            }
+            return fingerprint.toString();
+        }
+        if (statement instanceof BatchStatement) return "batch of " + ((BatchStatement) statement).size();
+        return null; // unprepared statements' values are inline
+    }
+
+    /**
+     * @return true if a statement should be executed with query tracing (per the trace probability)
+     */
+    public static boolean sampleTrace() {
+        double probability = config.getTraceProbability();
+        return probability > 0 && ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+    public static void recordSlow(Statement statement, SlowQuery slowQuery) {
+        if (statement.isTracing()) {
+            UUID traceId = traces.getIfPresent(statement);
+            if (traceId != null) {
+                traces.invalidate(statement);
+                slowQuery.setTraceId(traceId.toString());
+            } else untraced.put(statement, slowQuery);
+        }
+        slowQueries.add(slowQuery);
+    }
+
+    /**
+     * Attach a traced execution's trace ID to its slow query entry (whether or not it's been recorded yet).
+     */
+    public static void attachTrace(Statement statement, UUID traceId) {
+        SlowQuery slowQuery = untraced.getIfPresent(statement);
+        if (slowQuery != null) {
+            untraced.invalidate(statement);
+            slowQuery.setTraceId(traceId.toString());
+        } else traces.put(statement, traceId);
+    }
+
+    /**
+     * @param name statement name filter (optional)
+     * @return recent slow queries, newest first
+     */
+    public static List<SlowQuery> readSlowQueries(String name) {
+        List<SlowQuery> result = new ArrayList<>();
+        slowQueries.readFrom(0, Integer.MAX_VALUE, query -> name == null || name.equals(query.getName()), result);
+        Collections.reverse(result);
+        return result;
+    }
+}
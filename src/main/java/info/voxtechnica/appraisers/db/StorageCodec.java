@@ -0,0 +1,63 @@
+package info.voxtechnica.appraisers.db;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.Bytes;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * StorageCodec selects how entity documents are written to Cassandra. JSON writes the legacy 'json' text column, and
+ * SMILE writes Jackson's binary JSON encoding into the 'data' blob column. Rows are always decoded from whichever
+ * column is populated, so tables may hold a mix of both encodings while the MigrateStorageTask converts old rows.
+ */
+public enum StorageCodec {
+    JSON("json"),
+    SMILE("data");
+
+    public static final String JSON_COLUMN = "json";
+    public static final String DATA_COLUMN = "data";
+
+    private final String column;
+
+    StorageCodec(String column) {
+        this.column = column;
+    }
+
+    /**
+     * @return the name of the column this codec writes to
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Encode an entity for binding to a prepared statement that writes to getColumn().
+     *
+     * @param value entity
+     * @return JSON String or Smile ByteBuffer
+     */
+    public Object encode(Object value) throws JsonProcessingException {
+        if (value == null) return null;
+        if (this == SMILE) return ByteBuffer.wrap(JsonSerializer.getSmile(value));
+        return JsonSerializer.getJson(value);
+    }
+
+    /**
+     * Decode an entity from a row, preferring the binary 'data' column and falling back to legacy 'json' text.
+     *
+     * @param row  Cassandra row selecting 'json' and/or 'data'
+     * @param type entity class
+     * @return the entity, or null if neither column is populated
+     */
+    public static <T> T decode(Row row, Class<T> type) throws IOException {
+        if (row == null) return null;
+        if (row.getColumnDefinitions().contains(DATA_COLUMN) && !row.isNull(DATA_COLUMN))
+            return JsonSerializer.getObjectFromSmile(Bytes.getArray(row.getBytes(DATA_COLUMN)), type);
+        if (row.getColumnDefinitions().contains(JSON_COLUMN))
+            return JsonSerializer.getObject(row.getString(JSON_COLUMN), type);
+        return null;
+    }
+}
@@ -0,0 +1,112 @@
+package info.voxtechnica.appraisers.db;
+
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StorageMigration rewrites legacy 'json' text rows into the Smile-encoded 'data' blob column, preserving any remaining
+ * TTL, and clears the old text column. It pages through each table with a modest fetch size and caps the number of
+ * in-flight writes, so it can run in the background against a live cluster. Rows that already have 'data' are skipped.
+ */
+public class StorageMigration {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageMigration.class);
+    private static final int FETCH_SIZE = 500;
+    private static final int MAX_IN_FLIGHT = 128;
+
+    /**
+     * Migratable tables and their primary key columns
+     */
+    public static final Map<String, String[]> TABLES = new LinkedHashMap<>();
+
+    static {
+        TABLES.put("users", new String[]{"id", "update_id"});
+        TABLES.put("messages", new String[]{"id", "update_id"});
+        TABLES.put("licenses", new String[]{"id", "update_id"});
+        TABLES.put("licenses_asc_key", new String[]{"asc_key"});
+        TABLES.put("metrics", new String[]{"id"});
+        TABLES.put("events", new String[]{"id"});
+    }
+
+    private final Session session;
+
+    public StorageMigration(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Migrate all rows in the specified table from JSON text to Smile.
+     *
+     * @param table table name (one of TABLES)
+     * @return number of rows migrated
+     */
+    public long migrate(String table) throws InterruptedException {
+        String[] keys = TABLES.get(table);
+        if (keys == null) throw new IllegalArgumentException("Unsupported table: " + table);
+        long startTime = System.currentTimeMillis();
+        String keyList = String.join(", ", keys);
+        StringBuilder where = new StringBuilder();
+        for (String key : keys) where.append(where.length() == 0 ? "" : " AND ").append(key).append("=?");
+        PreparedStatement psUpdate = StatementRegistry.prepare(session, "StorageMigration.update." + table, "UPDATE " + table + " USING TTL ? SET data=?, json=null WHERE " + where);
+        Statement scan = new SimpleStatement("SELECT " + keyList + ", json, TTL(json) AS ttl, data FROM " + table).setFetchSize(FETCH_SIZE);
+
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        AtomicLong migrated = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        for (Row row : session.execute(scan)) {
+            if (row.isNull("json") || !row.isNull("data")) continue;
+            try {
+                Object value = JsonSerializer.getObjectMapper().readTree(row.getString("json"));
+                ByteBuffer data = ByteBuffer.wrap(JsonSerializer.getSmile(value));
+                BoundStatement update = psUpdate.bind();
+                update.setInt(0, row.isNull("ttl") ? 0 : row.getInt("ttl"));
+                update.setBytes(1, data);
+                for (int i = 0; i < keys.length; i++) update.setString(i + 2, row.getString(keys[i]));
+                inFlight.acquire();
+                Futures.addCallback(session.executeAsync(update), new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet result) {
+                        migrated.incrementAndGet();
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.incrementAndGet();
+                        inFlight.release();
+                    }
+                }, MoreExecutors.directExecutor());
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOG.warn("Skipping {} row {}: {}", table, row.getString(keys[0]), e.getMessage());
+            }
+        }
+        inFlight.acquire(MAX_IN_FLIGHT); // wait for outstanding writes
+        inFlight.release(MAX_IN_FLIGHT);
+        LOG.info("Migrated {} {} rows to Smile in {} ms ({} failed)", migrated.get(), table,
+                System.currentTimeMillis() - startTime, failed.get());
+        return migrated.get();
+    }
+
+    /**
+     * Migrate the specified tables, or all of them if none are specified.
+     */
+    public long migrate(List<String> tables) throws InterruptedException {
+        long total = 0;
+        for (String table : (tables == null || tables.isEmpty()) ? TABLES.keySet() : tables) total += migrate(table);
+        return total;
+    }
+}
@@ -5,10 +5,22 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.CounterAggregator;
+import info.voxtechnica.appraisers.db.EventAuditor;
+import info.voxtechnica.appraisers.db.EventWriter;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
+import info.voxtechnica.appraisers.db.PageCursor;
+import info.voxtechnica.appraisers.db.SpillLog;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.config.EventConfiguration;
 import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.model.Page;
 import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.util.EvictingRing;
 import info.voxtechnica.appraisers.util.JsonSerializer;
+import info.voxtechnica.appraisers.util.SortedMerge;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -16,9 +28,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An ‘event’ is something that gets logged in the database, to record system and user activity. It can be useful for
@@ -31,18 +46,29 @@ public class Events {
     private static final Logger LOG = LoggerFactory.getLogger(Events.class);
     private static boolean initialized = false;
     private static Session session;
+    private static StorageCodec codec;
     private static Integer ttl; // default Time-to-Live (TTL) is 90 days (7776000 seconds)
     private static EventConfiguration configuration;
+    private static EventWriter writer;
+    private static EventAuditor auditor;
+    private static SpillLog spillLog;
+    private static EvictingRing<Event> recentEvents;
+    private static EventConfiguration.IndexPayload indexPayload;
+    private static long bucketMillis; // time bucket width for the day and log level indexes
+    private static final int MAX_BUCKETS = 2400; // widest range a single read may span (100 days of hourly buckets)
+    private static final int PARALLEL_BUCKETS = 8; // bucket partitions read concurrently
     private static PreparedStatement psWriteEvent;
     private static PreparedStatement psReadEvent;
     private static PreparedStatement psWriteIdsEntity;
     private static PreparedStatement psReadIdsEntity;
-    private static PreparedStatement psWriteIdsDay;
     private static PreparedStatement psReadIdsDay;
+    private static PreparedStatement psWriteIdsBucket;
+    private static PreparedStatement psReadIdsBucket;
     private static PreparedStatement psWriteCountsLevelDay;
     private static PreparedStatement psReadCountsLevelDay;
-    private static PreparedStatement psWriteIdsLevelDay;
     private static PreparedStatement psReadIdsLevelDay;
+    private static PreparedStatement psWriteIdsLevelBucket;
+    private static PreparedStatement psReadIdsLevelBucket;
     private static PreparedStatement psWriteCountsUserDay;
     private static PreparedStatement psReadCountsUserDay;
     private static PreparedStatement psWriteIdsUserDay;
@@ -51,6 +77,7 @@ public class Events {
     private static final String createTableEvents = "CREATE TABLE IF NOT EXISTS events (\n" +
             "  id text,\n" +
             "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY (id)\n" +
             ") WITH\n" +
             "  comment='Events' AND\n" +
@@ -60,6 +87,8 @@ public class Events {
     private static final String createTableEventIdsEntity = "CREATE TABLE IF NOT EXISTS event_ids_entity (\n" +
             "  entity_id text,\n" +
             "  event_id text,\n" +
+            "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY ((entity_id), event_id)\n" +
             ") WITH\n" +
             "  comment='Events by Entity ID' AND\n" +
@@ -85,6 +114,29 @@ public class Events {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
+    private static final String createTableEventIdsBucket = "CREATE TABLE IF NOT EXISTS event_ids_bucket (\n" +
+            "  bucket bigint,\n" +
+            "  event_id text,\n" +
+            "  json text,\n" +
+            "  data blob,\n" +
+            "  PRIMARY KEY ((bucket), event_id)\n" +
+            ") WITH\n" +
+            "  comment='Events by Time Bucket' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    private static final String createTableEventIdsLevelBucket = "CREATE TABLE IF NOT EXISTS event_ids_level_bucket (\n" +
+            "  log_level text,\n" +
+            "  bucket bigint,\n" +
+            "  event_id text,\n" +
+            "  json text,\n" +
+            "  data blob,\n" +
+            "  PRIMARY KEY ((log_level, bucket), event_id)\n" +
+            ") WITH\n" +
+            "  comment='Events by Log Level and Time Bucket' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
     private static final String createTableEventCountsLevelDay = "CREATE TABLE IF NOT EXISTS event_counts_level_day (\n" +
             "  log_level text,\n" +
             "  day int,\n" +
@@ -99,6 +151,8 @@ public class Events {
             "  user_id text,\n" +
             "  day int,\n" +
             "  event_id text,\n" +
+            "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY ((user_id, day), event_id)\n" +
             ") WITH\n" +
             "  comment='Events by User and Integer Day' AND\n" +
@@ -119,41 +173,57 @@ public class Events {
         if (!initialized) {
             configuration = config;
             ttl = configuration.getTimeToLive();
+            indexPayload = configuration.getIndexPayload();
+            bucketMillis = TimeUnit.MINUTES.toMillis(Math.max(1, Math.min(1440, configuration.getIndexBucketMinutes())));
             session = dbClient.getSession();
+            codec = dbClient.getStorageCodec();
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableEvents);
+                    dbClient.addColumnIfMissing("events", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableEventIdsEntity);
+                    dbClient.addColumnIfMissing("event_ids_entity", StorageCodec.JSON_COLUMN, "text");
+                    dbClient.addColumnIfMissing("event_ids_entity", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableEventIdsDay);
                     session.execute(createTableEventIdsLevelDay);
+                    session.execute(createTableEventIdsBucket);
+                    session.execute(createTableEventIdsLevelBucket);
                     session.execute(createTableEventCountsLevelDay);
                     session.execute(createTableEventIdsUserDay);
+                    dbClient.addColumnIfMissing("event_ids_user_day", StorageCodec.JSON_COLUMN, "text");
+                    dbClient.addColumnIfMissing("event_ids_user_day", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableEventCountsUserDay);
                 } catch (Exception e) {
                     LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
                 }
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
+            // index rows carry a copy of the Event, unless the index payload is NONE
+            String payloadColumn = indexPayload == EventConfiguration.IndexPayload.NONE ? "" : ", " + codec.getColumn();
+            String payloadValue = indexPayload == EventConfiguration.IndexPayload.NONE ? "" : ", ?";
             // regular object persistence
-            psWriteEvent = session.prepare("INSERT INTO events (id, json) VALUES (?, ?) USING TTL ?");
-            psReadEvent = session.prepare("SELECT json FROM events WHERE id=?");
+            psWriteEvent = StatementRegistry.prepare(session, "Events.writeEvent", "INSERT INTO events (id, " + codec.getColumn() + ") VALUES (?, ?) USING TTL ?");
+            psReadEvent = StatementRegistry.prepare(session, "Events.readEvent", "SELECT json, data FROM events WHERE id=?");
             // entity
-            psWriteIdsEntity = session.prepare("INSERT INTO event_ids_entity (entity_id, event_id) VALUES (?, ?) USING TTL ?");
-            psReadIdsEntity = session.prepare("SELECT event_id FROM event_ids_entity WHERE entity_id=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
-            // integer day
-            psWriteIdsDay = session.prepare("INSERT INTO event_ids_day (day, event_id) VALUES (?, ?) USING TTL ?");
-            psReadIdsDay = session.prepare("SELECT event_id FROM event_ids_day WHERE day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
+            psWriteIdsEntity = StatementRegistry.prepare(session, "Events.writeIdsEntity", "INSERT INTO event_ids_entity (entity_id, event_id" + payloadColumn + ") VALUES (?, ?" + payloadValue + ") USING TTL ?");
+            psReadIdsEntity = StatementRegistry.prepare(session, "Events.readIdsEntity", "SELECT event_id, json, data FROM event_ids_entity WHERE entity_id=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
+            // integer day (legacy index, read until its entries expire)
+            psReadIdsDay = StatementRegistry.prepare(session, "Events.readIdsDay", "SELECT event_id FROM event_ids_day WHERE day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
             // log level, integer day
-            psWriteCountsLevelDay = session.prepare("UPDATE event_counts_level_day SET event_count = event_count + 1 WHERE log_level=? AND day=?");
-            psReadCountsLevelDay = session.prepare("SELECT day, event_count FROM event_counts_level_day WHERE log_level=? AND day > ? ORDER BY day ASC LIMIT ?");
-            psWriteIdsLevelDay = session.prepare("INSERT INTO event_ids_level_day (log_level, day, event_id) VALUES (?, ?, ?) USING TTL ?");
-            psReadIdsLevelDay = session.prepare("SELECT event_id FROM event_ids_level_day WHERE log_level=? AND day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
+            psWriteCountsLevelDay = StatementRegistry.prepare(session, "Events.writeCountsLevelDay", "UPDATE event_counts_level_day SET event_count = event_count + ? WHERE log_level=? AND day=?");
+            psReadCountsLevelDay = StatementRegistry.prepare(session, "Events.readCountsLevelDay", "SELECT day, event_count FROM event_counts_level_day WHERE log_level=? AND day > ? ORDER BY day ASC LIMIT ?");
+            psReadIdsLevelDay = StatementRegistry.prepare(session, "Events.readIdsLevelDay", "SELECT event_id FROM event_ids_level_day WHERE log_level=? AND day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
+            // time bucket, and log level, time bucket
+            psWriteIdsBucket = StatementRegistry.prepare(session, "Events.writeIdsBucket", "INSERT INTO event_ids_bucket (bucket, event_id" + payloadColumn + ") VALUES (?, ?" + payloadValue + ") USING TTL ?");
+            psReadIdsBucket = StatementRegistry.prepare(session, "Events.readIdsBucket", "SELECT event_id, json, data FROM event_ids_bucket WHERE bucket=? AND event_id > ? AND event_id < ? ORDER BY event_id ASC LIMIT ?");
+            psWriteIdsLevelBucket = StatementRegistry.prepare(session, "Events.writeIdsLevelBucket", "INSERT INTO event_ids_level_bucket (log_level, bucket, event_id" + payloadColumn + ") VALUES (?, ?, ?" + payloadValue + ") USING TTL ?");
+            psReadIdsLevelBucket = StatementRegistry.prepare(session, "Events.readIdsLevelBucket", "SELECT event_id, json, data FROM event_ids_level_bucket WHERE log_level=? AND bucket=? AND event_id > ? AND event_id < ? ORDER BY event_id ASC LIMIT ?");
             // user, integer day
-            psWriteCountsUserDay = session.prepare("UPDATE event_counts_user_day SET event_count = event_count + 1 WHERE user_id=? AND day=?");
-            psReadCountsUserDay = session.prepare("SELECT day, event_count FROM event_counts_user_day WHERE user_id=? AND day > ? ORDER BY day ASC LIMIT ?");
-            psWriteIdsUserDay = session.prepare("INSERT INTO event_ids_user_day (user_id, day, event_id) VALUES (?, ?, ?) USING TTL ?");
-            psReadIdsUserDay = session.prepare("SELECT event_id FROM event_ids_user_day WHERE user_id=? AND day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
+            psWriteCountsUserDay = StatementRegistry.prepare(session, "Events.writeCountsUserDay", "UPDATE event_counts_user_day SET event_count = event_count + ? WHERE user_id=? AND day=?");
+            psReadCountsUserDay = StatementRegistry.prepare(session, "Events.readCountsUserDay", "SELECT day, event_count FROM event_counts_user_day WHERE user_id=? AND day > ? ORDER BY day ASC LIMIT ?");
+            psWriteIdsUserDay = StatementRegistry.prepare(session, "Events.writeIdsUserDay", "INSERT INTO event_ids_user_day (user_id, day, event_id" + payloadColumn + ") VALUES (?, ?, ?" + payloadValue + ") USING TTL ?");
+            psReadIdsUserDay = StatementRegistry.prepare(session, "Events.readIdsUserDay", "SELECT event_id, json, data FROM event_ids_user_day WHERE user_id=? AND day=? AND event_id > ? ORDER BY event_id ASC LIMIT ?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -162,33 +232,133 @@ public class Events {
         return initialized;
     }
 
+    /**
+     * Route Event writes through an asynchronous, bounded writer. Without one, Events are written directly.
+     */
+    public static void setWriter(EventWriter eventWriter) {
+        writer = eventWriter;
+    }
+
+    /**
+     * Apply audit policies (sampling and duplicate suppression) to Events before they're written.
+     */
+    public static void setAuditor(EventAuditor eventAuditor) {
+        auditor = eventAuditor;
+    }
+
+    /**
+     * Hold Events that can't be written in a local spill log, to be replayed later
+     */
+    public static void setSpillLog(SpillLog log) {
+        spillLog = log;
+    }
+
+    /**
+     * Keep the Events written by this node in an in-memory ring, for a live tail that doesn't read Cassandra
+     */
+    public static void setRecentEvents(EvictingRing<Event> ring) {
+        recentEvents = ring;
+    }
+
+    /**
+     * Build the statements that persist an Event: the Event itself and its index entries. Counters are aggregated
+     * separately (see countEvent).
+     */
+    public static List<BoundStatement> eventStatements(Event event) throws IOException {
+        List<BoundStatement> statements = new ArrayList<>();
+        long millis = TuidCodec.getMillis(event.getId());
+        Integer day = TuidCodec.getDefault().yearMonthDay(millis);
+        long bucket = bucketOf(millis);
+        Object encoded = codec.encode(event);
+        statements.add(psWriteEvent.bind(event.getId(), encoded, ttl));
+        Object payload = indexPayload == EventConfiguration.IndexPayload.SUMMARY ? codec.encode(summary(event)) : encoded;
+        if (event.getEntityIds() != null)
+            for (String id : event.getEntityIds())
+                statements.add(bindIndex(psWriteIdsEntity, payload, id, event.getId()));
+        statements.add(bindIndex(psWriteIdsBucket, payload, bucket, event.getId()));
+        if (event.getLogLevel() != null) {
+            statements.add(bindIndex(psWriteIdsLevelBucket, payload, event.getLogLevel().name(), bucket, event.getId()));
+        }
+        if (event.getUserId() != null) {
+            statements.add(bindIndex(psWriteIdsUserDay, payload, event.getUserId(), day, event.getId()));
+        }
+        return statements;
+    }
+
+    /**
+     * Bind an index row insert: its key values, then the Event payload (unless the index payload is NONE), then the TTL.
+     */
+    private static BoundStatement bindIndex(PreparedStatement statement, Object payload, Object... key) {
+        List<Object> values = new ArrayList<>(Arrays.asList(key));
+        if (indexPayload != EventConfiguration.IndexPayload.NONE) values.add(payload);
+        values.add(ttl);
+        return statement.bind(values.toArray());
+    }
+
+    /**
+     * @return a compact copy of an Event for index rows: everything but the stack trace
+     */
+    private static Event summary(Event event) {
+        if (event.getStackTrace() == null) return event;
+        Event summary = new Event(event.getUserId(), event.getEntityIds(), event.getResourceUri(), event.getHttpMethod(),
+                event.getLogLevel(), event.getMessage(), null);
+        summary.setId(event.getId());
+        summary.setRepeatCount(event.getRepeatCount());
+        summary.setSampleRate(event.getSampleRate());
+        return summary;
+    }
+
+    private static void countEvent(Event event) {
+        Integer day = TuidCodec.getYearMonthDay(event.getId());
+        if (event.getLogLevel() != null)
+            CounterAggregator.increment(psWriteCountsLevelDay, session, 1, event.getLogLevel().name(), day);
+        if (event.getUserId() != null)
+            CounterAggregator.increment(psWriteCountsUserDay, session, 1, event.getUserId(), day);
+    }
+
     public static Event createEvent(Event event) {
         // Skip logging if less than the configured system logLevel
         if (event.getLogLevel() != null && event.getLogLevel().ordinal() < configuration.getLogLevel().ordinal())
             return event;
         // Otherwise save the event in the database
+        if (event.getId() == null) event.setId(TuidFactory.getId());
+        countEvent(event); // counters reflect every Event, including those sampled out or collapsed
+        if (auditor != null && !auditor.admit(event)) return event;
+        return writeEvent(event) ? event : null;
+    }
+
+    /**
+     * Create an Event posted to the API. The caller gets its ID and location back, so it's written as posted: the log
+     * level threshold and the audit policies (sampling and dedupe) don't apply to it.
+     *
+     * @return the Event, or null if it could not be written or queued
+     */
+    public static Event createPostedEvent(Event event) {
+        if (event.getId() == null) event.setId(TuidFactory.getId());
+        countEvent(event);
+        return writeEvent(event) ? event : null;
+    }
+
+    /**
+     * Write an Event (through the writer, if there is one), bypassing the audit policies.
+     *
+     * @return false if the Event could not be written or queued
+     */
+    public static boolean writeEvent(Event event) {
+        if (recentEvents != null) recentEvents.add(event);
         try {
-            if (event.getId() == null) event.setId(TuidFactory.getId());
-            Integer day = (new Tuid(event.getId())).getYearMonthDay();
-            String json = JsonSerializer.getJson(event);
-            session.executeAsync(psWriteEvent.bind(event.getId(), json, ttl));
-            if (event.getEntityIds() != null)
-                for (String id : event.getEntityIds())
-                    session.executeAsync(psWriteIdsEntity.bind(id, event.getId(), ttl));
-            session.executeAsync(psWriteIdsDay.bind(day, event.getId(), ttl));
-            if (event.getLogLevel() != null) {
-                session.executeAsync(psWriteIdsLevelDay.bind(event.getLogLevel().name(), day, event.getId(), ttl));
-                session.executeAsync(psWriteCountsLevelDay.bind(event.getLogLevel().name(), day));
-            }
-            if (event.getUserId() != null) {
-                session.executeAsync(psWriteIdsUserDay.bind(event.getUserId(), day, event.getId(), ttl));
-                session.executeAsync(psWriteCountsUserDay.bind(event.getUserId(), day));
-            }
-            return event;
+            if (writer != null) return writer.write(event);
+            for (BoundStatement statement : eventStatements(event)) session.executeAsync(statement);
+            return true;
         } catch (Exception e) {
+            try {
+                if (spillLog != null && spillLog.append(SpillLog.Kind.EVENT, JsonSerializer.getSmile(event))) return true;
+            } catch (IOException spillError) {
+                LOG.error("Unable to spill Event {}: {}", event.getId(), spillError.getMessage());
+            }
             // Backup logging to the console or file system
-            LOG.error("createEvent error: " + e.getCause().getMessage() + "\n" + event.toString());
-            return null;
+            LOG.error("createEvent error: " + ExceptionUtils.getRootCauseMessage(e) + "\n" + event.toString());
+            return false;
         }
     }
 
@@ -196,7 +366,7 @@ public class Events {
         if (id == null) return null;
         Row row = session.execute(psReadEvent.bind(id)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), Event.class);
+        return StorageCodec.decode(row, Event.class);
     }
 
     public static SortedSet<Event> readEvents(List<String> ids, Comparator<Event> order) throws IOException, ExecutionException, InterruptedException {
@@ -207,59 +377,192 @@ public class Events {
         ConcurrentSkipListSet<Event> events = new ConcurrentSkipListSet<>(order);
         for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
             Row row = future.get().one();
-            if (row != null) events.add(JsonSerializer.getObject(row.getString("json"), Event.class));
+            if (row != null) events.add(StorageCodec.decode(row, Event.class));
         }
         return events;
     }
 
-    private static List<String> readEventIds(BoundStatement query) {
-        ArrayList<String> ids = new ArrayList<>();
-        ResultSet resultSet = session.execute(query);
-        for (Row idRow : resultSet.all()) ids.add(idRow.getString("event_id"));
-        return ids;
-    }
-
     private static Map<Integer, Long> readEventCounts(PreparedStatement query, String queryId, Integer limit, Integer offset) {
         TreeMap<Integer, Long> map = new TreeMap<>();
         if (queryId != null) {
             ResultSet resultSet = session.execute(query.bind(queryId, offset == null ? 0 : offset, limit == null ? 100000 : limit));
-            for (Row row : resultSet.all()) map.put(row.getInt("day"), row.getLong("event_count"));
+            for (Row row : resultSet) map.put(row.getInt("day"), row.getLong("event_count"));
         }
         return map;
     }
 
-    public static SortedSet<Event> readEventsByEntity(String entityId, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return entityId == null ? null : readEvents(readEventIds(psReadIdsEntity.bind(entityId, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Event.Chronological);
+    private static Page<Event> readEventPage(BoundStatement query, Integer limit, String cursor) throws IOException, ExecutionException, InterruptedException {
+        Page<IndexEntry> entries = PageCursor.read(session, query, limit, cursor, Events::indexEntry);
+        return new Page<>(resolveEvents(entries.getItems()), entries.getNext());
     }
 
-    public static SortedSet<Event> readEventsByDay(Integer day, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return day == null ? null : readEvents(readEventIds(psReadIdsDay.bind(day, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Event.Chronological);
+    /**
+     * An index row: an Event ID, and the Event itself if the row carries it.
+     */
+    private static class IndexEntry implements Comparable<IndexEntry> {
+        private final String id;
+        private final Event event;
+
+        IndexEntry(String id, Event event) {
+            this.id = id;
+            this.event = event;
+        }
+
+        @Override
+        public int compareTo(IndexEntry that) {
+            return id.compareTo(that.id);
+        }
+    }
+
+    private static IndexEntry indexEntry(Row row) {
+        String id = row.getString("event_id");
+        try {
+            return new IndexEntry(id, StorageCodec.decode(row, Event.class));
+        } catch (IOException e) {
+            LOG.warn("Unable to decode index payload for Event {}: {}", id, e.getMessage());
+            return new IndexEntry(id, null); // fall back to reading the Event itself
+        }
+    }
+
+    /**
+     * @return the Events for index entries, in chronological order, reading only those the index rows don't carry
+     */
+    private static List<Event> resolveEvents(List<IndexEntry> entries) throws IOException, ExecutionException, InterruptedException {
+        List<String> missing = new ArrayList<>();
+        SortedSet<Event> events = new TreeSet<>(Event.Chronological);
+        for (IndexEntry entry : entries) {
+            if (entry.event != null) events.add(entry.event);
+            else missing.add(entry.id);
+        }
+        if (!missing.isEmpty()) events.addAll(readEvents(missing, Event.Chronological));
+        return new ArrayList<>(events);
+    }
+
+    public static Page<Event> readEventsByEntity(String entityId, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return entityId == null ? null : readEventPage(psReadIdsEntity.bind(entityId, offset == null ? "0" : offset, Integer.MAX_VALUE), limit, cursor);
+    }
+
+    public static Page<Event> readEventsByDay(Integer day, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return day == null ? null : readEventsByDay(null, day, limit, offset, cursor);
     }
 
     public static Map<Integer, Long> readEventCountsByLevelDay(Event.LogLevel logLevel, Integer limit, Integer offset) {
         return logLevel == null ? null : readEventCounts(psReadCountsLevelDay, logLevel.name(), limit, offset);
     }
 
-    public static SortedSet<Event> readEventsByLevelDay(Event.LogLevel logLevel, Integer day, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return logLevel == null || day == null ? null : readEvents(readEventIds(psReadIdsLevelDay.bind(logLevel.name(), day, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Event.Chronological);
+    public static Page<Event> readEventsByLevelDay(Event.LogLevel logLevel, Integer day, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return logLevel == null || day == null ? null : readEventsByDay(logLevel, day, limit, offset, cursor);
+    }
+
+    /**
+     * Read a day's Events from the bucketed indexes. The part of the day before its first bucketed entry (all of it, for
+     * days written before the bucketed indexes existed) is read from the legacy day index, until its entries expire.
+     * Pages are resumed by Event ID, across both indexes; a paging state cursor (from a page of the legacy index alone,
+     * before this) resumes the legacy query it came from.
+     */
+    private static Page<Event> readEventsByDay(Event.LogLevel logLevel, Integer day, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        LocalDate date = LocalDate.of(day / 10000, day / 100 % 100, day % 100);
+        long from = date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long to = date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if (cursor != null && !PageCursor.isKey(cursor))
+            return readEventPage(legacyDayQuery(logLevel, day, offset, Integer.MAX_VALUE), limit, cursor);
+        int pageSize = PageCursor.pageSize(limit);
+        if (cursor != null) offset = PageCursor.decodeKey(cursor);
+        List<IndexEntry> first = readBucketedEntries(logLevel, from, to, null, 1);
+        String boundary = first.isEmpty() ? null : first.get(0).id;
+        List<IndexEntry> entries = new ArrayList<>();
+        if (boundary == null || offset == null || offset.compareTo(boundary) < 0) {
+            for (Row row : session.execute(legacyDayQuery(logLevel, day, offset, pageSize))) {
+                String id = row.getString("event_id");
+                if (boundary != null && id.compareTo(boundary) >= 0) break;
+                entries.add(new IndexEntry(id, null)); // legacy entries carry no payload
+            }
+        }
+        if (boundary != null && entries.size() < pageSize)
+            entries.addAll(readBucketedEntries(logLevel, from, to, offset, pageSize - entries.size()));
+        String next = entries.size() < pageSize ? null : PageCursor.encodeKey(entries.get(entries.size() - 1).id);
+        return new Page<>(resolveEvents(entries), next);
+    }
+
+    private static BoundStatement legacyDayQuery(Event.LogLevel logLevel, Integer day, String offset, int limit) {
+        return logLevel == null ? psReadIdsDay.bind(day, offset == null ? "0" : offset, limit)
+                : psReadIdsLevelDay.bind(logLevel.name(), day, offset == null ? "0" : offset, limit);
+    }
+
+    /**
+     * Read Events in a time range, optionally filtered by log level, in chronological order.
+     *
+     * @param logLevel log level (optional)
+     * @param from     start of the range (epoch millis, inclusive)
+     * @param to       end of the range (epoch millis, exclusive)
+     * @param limit    page size
+     * @param offset   last Event ID already seen (optional)
+     * @param cursor   cursor from a previous page (optional; supersedes offset)
+     * @return a page of Events, with a cursor for the next page if there may be more
+     * @throws InvalidPagingException if the range is too wide, or the offset or cursor is invalid
+     */
+    public static Page<Event> readEventsByRange(Event.LogLevel logLevel, long from, long to, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        int pageSize = PageCursor.pageSize(limit);
+        if (cursor != null) offset = PageCursor.decodeKey(cursor);
+        List<IndexEntry> entries = readBucketedEntries(logLevel, from, to, offset, pageSize);
+        String next = entries.size() < pageSize ? null : PageCursor.encodeKey(entries.get(entries.size() - 1).id);
+        return new Page<>(resolveEvents(entries), next);
+    }
+
+    public static long bucketOf(long millis) {
+        return Math.floorDiv(millis, bucketMillis) * bucketMillis;
+    }
+
+    /**
+     * Read index entries in a time range from the bucketed indexes. Buckets are read a window at a time, with the window's
+     * partitions queried in parallel and their results merged in ID (time) order; the offset and the remaining limit
+     * are pushed down to every partition query, and reading stops as soon as the limit is reached.
+     */
+    private static List<IndexEntry> readBucketedEntries(Event.LogLevel logLevel, long from, long to, String offset, int limit) throws ExecutionException, InterruptedException {
+        List<IndexEntry> entries = new ArrayList<>();
+        if (to <= from) return entries;
+        String lower = TuidFactory.getLastIdFromTimestamp(from - 1);
+        if (offset != null) {
+            try {
+                new Tuid(offset); // the offset must be a TUID, since it positions the read in time
+            } catch (NumberFormatException e) {
+                throw new InvalidPagingException("Invalid offset " + offset);
+            }
+            if (offset.compareTo(lower) > 0) lower = offset;
+        }
+        String upper = TuidFactory.getFirstIdFromTimestamp(to);
+        long first = bucketOf(Math.max(from, TuidCodec.getMillis(lower)));
+        long last = bucketOf(to - 1);
+        if ((last - bucketOf(from)) / bucketMillis >= MAX_BUCKETS)
+            throw new InvalidPagingException("Time range spans more than " + MAX_BUCKETS + " index buckets");
+        for (long bucket = first; bucket <= last && entries.size() < limit; bucket += PARALLEL_BUCKETS * bucketMillis) {
+            int remaining = limit - entries.size();
+            List<ResultSetFuture> futures = new ArrayList<>(PARALLEL_BUCKETS);
+            for (long b = bucket; b <= last && b < bucket + PARALLEL_BUCKETS * bucketMillis; b += bucketMillis)
+                futures.add(session.executeAsync(logLevel == null ? psReadIdsBucket.bind(b, lower, upper, remaining)
+                        : psReadIdsLevelBucket.bind(logLevel.name(), b, lower, upper, remaining)));
+            List<List<IndexEntry>> runs = new ArrayList<>(futures.size());
+            for (ResultSetFuture future : futures) {
+                List<IndexEntry> run = new ArrayList<>();
+                for (Row row : future.get()) run.add(indexEntry(row));
+                runs.add(run);
+            }
+            entries.addAll(SortedMerge.merge(runs, remaining));
+        }
+        return entries;
     }
 
     public static Map<Integer, Long> readEventCountsByUserDay(String userId, Integer limit, Integer offset) {
         return userId == null ? null : readEventCounts(psReadCountsUserDay, userId, limit, offset);
     }
 
-    public static SortedSet<Event> readEventsByUserDay(String userId, Integer day, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return userId == null || day == null ? null : readEvents(readEventIds(psReadIdsUserDay.bind(userId, day, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Event.Chronological);
+    public static Page<Event> readEventsByUserDay(String userId, Integer day, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return userId == null || day == null ? null : readEventPage(psReadIdsUserDay.bind(userId, day, offset == null ? "0" : offset, Integer.MAX_VALUE), limit, cursor);
     }
 
-    public static SortedSet<Event> readRecentEvents(Integer seconds) throws IOException, ExecutionException, InterruptedException {
-        String offset = TuidFactory.getFirstId((long) -seconds * 1000L);
-        Integer day = (new Tuid(offset)).getYearMonthDay();
-        Integer today = (new Tuid()).getYearMonthDay();
-        SortedSet<Event> events = readEventsByDay(day, null, offset);
-        // This accommodates spanning midnight (two days), but not more. Want more? Use readEventsByDay.
-        if (!day.equals(today)) events.addAll(readEventsByDay(today, null, null));
-        return events;
+    public static Page<Event> readRecentEvents(Integer seconds, Event.LogLevel logLevel, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        long now = System.currentTimeMillis();
+        return readEventsByRange(logLevel, now - seconds * 1000L, now + 1, limit, offset, cursor);
     }
 
     public static Event info(String userId, String entityId, String message) {
@@ -5,8 +5,10 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.CounterAggregator;
 import info.voxtechnica.appraisers.model.Import;
-import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,13 +61,13 @@ public class Imports {
                 }
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
-            psIncrementCreated = session.prepare("UPDATE imports_day SET created = created + 1 WHERE day=? AND id=?");
-            psIncrementUpdated = session.prepare("UPDATE imports_day SET updated = updated + 1 WHERE day=? AND id=?");
-            psIncrementIgnored = session.prepare("UPDATE imports_day SET ignored = ignored + 1 WHERE day=? AND id=?");
-            psReadImport = session.prepare("SELECT * FROM imports_day WHERE day=? AND id=?");
-            psReadImports = session.prepare("SELECT * FROM imports_day");
-            psReadImportsDay = session.prepare("SELECT * FROM imports_day WHERE day=?");
-            psDeleteImport = session.prepare("DELETE FROM imports_day WHERE day=? AND id=?");
+            psIncrementCreated = StatementRegistry.prepare(session, "Imports.incrementCreated", "UPDATE imports_day SET created = created + ? WHERE day=? AND id=?");
+            psIncrementUpdated = StatementRegistry.prepare(session, "Imports.incrementUpdated", "UPDATE imports_day SET updated = updated + ? WHERE day=? AND id=?");
+            psIncrementIgnored = StatementRegistry.prepare(session, "Imports.incrementIgnored", "UPDATE imports_day SET ignored = ignored + ? WHERE day=? AND id=?");
+            psReadImport = StatementRegistry.prepare(session, "Imports.readImport", "SELECT * FROM imports_day WHERE day=? AND id=?");
+            psReadImports = StatementRegistry.prepare(session, "Imports.readImports", "SELECT * FROM imports_day");
+            psReadImportsDay = StatementRegistry.prepare(session, "Imports.readImportsDay", "SELECT * FROM imports_day WHERE day=?");
+            psDeleteImport = StatementRegistry.prepare(session, "Imports.deleteImport", "DELETE FROM imports_day WHERE day=? AND id=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -75,27 +77,27 @@ public class Imports {
     }
 
     public static void incrementCreated(String id, Integer day) {
-        if (day == null) day = (new Tuid(id)).getYearMonthDay();
-        session.execute(psIncrementCreated.bind(day, id));
+        if (day == null) day = TuidCodec.getYearMonthDay(id);
+        CounterAggregator.increment(psIncrementCreated, session, 1, day, id);
     }
 
     public static void incrementUpdated(String id, Integer day) {
-        if (day == null) day = (new Tuid(id)).getYearMonthDay();
-        session.execute(psIncrementUpdated.bind(day, id));
+        if (day == null) day = TuidCodec.getYearMonthDay(id);
+        CounterAggregator.increment(psIncrementUpdated, session, 1, day, id);
     }
 
     public static void incrementIgnored(String id, Integer day) {
-        if (day == null) day = (new Tuid(id)).getYearMonthDay();
-        session.execute(psIncrementIgnored.bind(day, id));
+        if (day == null) day = TuidCodec.getYearMonthDay(id);
+        CounterAggregator.increment(psIncrementIgnored, session, 1, day, id);
     }
 
     public static void deleteImport(String id, Integer day) {
-        if (day == null) day = (new Tuid(id)).getYearMonthDay();
+        if (day == null) day = TuidCodec.getYearMonthDay(id);
         session.execute(psDeleteImport.bind(day, id));
     }
 
     public static Import readImport(String id, Integer day) {
-        if (day == null) day = (new Tuid(id)).getYearMonthDay();
+        if (day == null) day = TuidCodec.getYearMonthDay(id);
         Row row = session.execute(psReadImport.bind(day, id)).one();
         return row == null ? null : new Import(row.getString("id"), row.getInt("day"), row.getLong("created"), row.getLong("updated"), row.getLong("ignored"));
     }
@@ -103,7 +105,7 @@ public class Imports {
     public static SortedSet<Import> readImports() {
         SortedSet<Import> imports = new TreeSet<Import>();
         ResultSet resultSet = session.execute(psReadImports.bind());
-        for (Row row : resultSet.all())
+        for (Row row : resultSet)
             imports.add(new Import(row.getString("id"), row.getInt("day"), row.getLong("created"), row.getLong("updated"), row.getLong("ignored")));
         return imports;
     }
@@ -111,7 +113,7 @@ public class Imports {
     public static SortedSet<Import> readImports(Integer day) {
         SortedSet<Import> imports = new TreeSet<Import>();
         ResultSet resultSet = session.execute(psReadImportsDay.bind(day));
-        for (Row row : resultSet.all())
+        for (Row row : resultSet)
             imports.add(new Import(row.getString("id"), row.getInt("day"), row.getLong("created"), row.getLong("updated"), row.getLong("ignored")));
         return imports;
     }
@@ -0,0 +1,207 @@
+package info.voxtechnica.appraisers.db.dao;
+
+import com.datastax.driver.core.*;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.CounterAggregator;
+import info.voxtechnica.appraisers.model.License;
+import info.voxtechnica.appraisers.model.LicenseChangeCount;
+import info.voxtechnica.appraisers.model.LicenseCount;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * LicenseStats maintains precomputed aggregate counts of current License versions, by stateAbbrev, licenseType,
+ * status, and county, along with daily counts of created and updated Licenses by state. The importer keeps them current
+ * as it writes new versions: when a version changes any of the counted dimensions, the old combination is decremented
+ * and the new one incremented. Counts are partitioned by state, so a state's statistics are a single partition read.
+ */
+public class LicenseStats {
+    private static final Logger LOG = LoggerFactory.getLogger(LicenseStats.class);
+    private static boolean initialized = false;
+    private static Session session;
+
+    public static final String STATE = "state";
+    public static final String LICENSE_TYPE = "license_type";
+    public static final String STATUS = "status";
+    public static final String COUNTY = "county";
+    public static final List<String> DIMENSIONS = Arrays.asList(STATE, LICENSE_TYPE, STATUS, COUNTY);
+
+    private static PreparedStatement psIncrementCount;
+    private static PreparedStatement psReadCounts;
+    private static PreparedStatement psReadCountsState;
+    private static PreparedStatement psIncrementCreatedDay;
+    private static PreparedStatement psIncrementUpdatedDay;
+    private static PreparedStatement psReadChangesDay;
+
+    private static final String createTableLicenseCounts = "CREATE TABLE IF NOT EXISTS license_counts (\n" +
+            "  state text,\n" +
+            "  license_type text,\n" +
+            "  status text,\n" +
+            "  county text,\n" +
+            "  license_count counter,\n" +
+            "  PRIMARY KEY ((state), license_type, status, county)\n" +
+            ") WITH\n" +
+            "  comment='License Counts by State, Type, Status, and County' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    private static final String createTableLicenseChangesDay = "CREATE TABLE IF NOT EXISTS license_change_counts_day (\n" +
+            "  day int,\n" +
+            "  state text,\n" +
+            "  created counter,\n" +
+            "  updated counter,\n" +
+            "  PRIMARY KEY ((day), state)\n" +
+            ") WITH\n" +
+            "  comment='License Change Counts by Day and State' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    public static void initialize(CassandraClient dbClient) {
+        if (!initialized) {
+            session = dbClient.getSession();
+            // Create tables if they're missing
+            if (dbClient.isCreateIfMissing()) {
+                try {
+                    session.execute(createTableLicenseCounts);
+                    session.execute(createTableLicenseChangesDay);
+                } catch (Exception e) {
+                    LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+            // Prepare statements (invokes a call to Cassandra to validate each one):
+            psIncrementCount = StatementRegistry.prepare(session, "LicenseStats.incrementCount", "UPDATE license_counts SET license_count = license_count + ? WHERE state=? AND license_type=? AND status=? AND county=?");
+            psReadCounts = StatementRegistry.prepare(session, "LicenseStats.readCounts", "SELECT * FROM license_counts");
+            psReadCountsState = StatementRegistry.prepare(session, "LicenseStats.readCountsState", "SELECT * FROM license_counts WHERE state=?");
+            psIncrementCreatedDay = StatementRegistry.prepare(session, "LicenseStats.incrementCreatedDay", "UPDATE license_change_counts_day SET created = created + ? WHERE day=? AND state=?");
+            psIncrementUpdatedDay = StatementRegistry.prepare(session, "LicenseStats.incrementUpdatedDay", "UPDATE license_change_counts_day SET updated = updated + ? WHERE day=? AND state=?");
+            psReadChangesDay = StatementRegistry.prepare(session, "LicenseStats.readChangesDay", "SELECT * FROM license_change_counts_day WHERE day=?");
+            initialized = true;
+        } else LOG.info("Previously initialized");
+    }
+
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @return the counted dimensions of a License, with blanks in place of nulls
+     */
+    public static List<String> dimensions(License license) {
+        return Arrays.asList(blank(license.getStateAbbrev()), blank(license.getLicenseType()),
+                blank(license.getStatus()), blank(license.getCounty()));
+    }
+
+    private static String blank(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * @return true if Licenses with these dimensions are counted: those without a state have no partition to go in
+     */
+    private static boolean counted(List<String> key) {
+        return !key.get(0).isEmpty();
+    }
+
+    private static void increment(List<String> key, long delta) {
+        if (delta != 0 && counted(key))
+            CounterAggregator.increment(psIncrementCount, session, delta, key.get(0), key.get(1), key.get(2), key.get(3));
+    }
+
+    public static void recordCreated(License license, Integer day) {
+        if (license == null) return;
+        increment(dimensions(license), 1);
+        if (day != null && license.getStateAbbrev() != null && !license.getStateAbbrev().isEmpty())
+            CounterAggregator.increment(psIncrementCreatedDay, session, 1, day, license.getStateAbbrev());
+    }
+
+    public static void recordUpdated(License oldLicense, License newLicense, Integer day) {
+        if (newLicense == null) return;
+        List<String> newKey = dimensions(newLicense);
+        List<String> oldKey = oldLicense == null ? null : dimensions(oldLicense);
+        if (!newKey.equals(oldKey)) {
+            if (oldKey != null) increment(oldKey, -1);
+            increment(newKey, 1);
+        }
+        if (day != null && newLicense.getStateAbbrev() != null && !newLicense.getStateAbbrev().isEmpty())
+            CounterAggregator.increment(psIncrementUpdatedDay, session, 1, day, newLicense.getStateAbbrev());
+    }
+
+    public static void recordDeleted(License license) {
+        if (license != null) increment(dimensions(license), -1);
+    }
+
+    /**
+     * Read License counts, optionally filtered on any dimension and summed over the dimensions not in groupBy.
+     *
+     * @param stateAbbrev state filter (optional; without it, every state is read)
+     * @param licenseType license type filter (optional)
+     * @param status      status filter (optional)
+     * @param county      county filter (optional)
+     * @param groupBy     dimensions to group by (see DIMENSIONS); empty for a single grand total
+     * @return sorted License counts
+     */
+    public static List<LicenseCount> readCounts(String stateAbbrev, String licenseType, String status, String county, Collection<String> groupBy) {
+        ResultSet resultSet = stateAbbrev == null ? session.execute(psReadCounts.bind()) : session.execute(psReadCountsState.bind(stateAbbrev));
+        boolean byState = groupBy.contains(STATE), byType = groupBy.contains(LICENSE_TYPE),
+                byStatus = groupBy.contains(STATUS), byCounty = groupBy.contains(COUNTY);
+        Map<List<String>, LicenseCount> counts = new HashMap<>();
+        for (Row row : resultSet) {
+            if (licenseType != null && !licenseType.equals(row.getString(LICENSE_TYPE))) continue;
+            if (status != null && !status.equals(row.getString(STATUS))) continue;
+            if (county != null && !county.equals(row.getString(COUNTY))) continue;
+            List<String> key = Arrays.asList(byState ? row.getString(STATE) : null, byType ? row.getString(LICENSE_TYPE) : null,
+                    byStatus ? row.getString(STATUS) : null, byCounty ? row.getString(COUNTY) : null);
+            LicenseCount count = counts.computeIfAbsent(key, k -> new LicenseCount(k.get(0), k.get(1), k.get(2), k.get(3), 0L));
+            count.setCount(count.getCount() + row.getLong("license_count"));
+        }
+        List<LicenseCount> result = new ArrayList<>(counts.values());
+        result.removeIf(count -> count.getCount() == 0);
+        Collections.sort(result);
+        return result;
+    }
+
+    public static SortedSet<LicenseChangeCount> readChanges(List<Integer> days, String stateAbbrev) throws ExecutionException, InterruptedException {
+        // Send asynchronous queries to Cassandra
+        List<ResultSetFuture> futures = Lists.newArrayListWithExpectedSize(days.size());
+        for (Integer day : days) if (day != null) futures.add(session.executeAsync(psReadChangesDay.bind(day)));
+        // Process the results as they come in, in sorted order
+        ConcurrentSkipListSet<LicenseChangeCount> changes = new ConcurrentSkipListSet<>();
+        for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures))
+            for (Row row : future.get())
+                if (stateAbbrev == null || stateAbbrev.equals(row.getString(STATE)))
+                    changes.add(new LicenseChangeCount(row.getInt("day"), row.getString(STATE), row.getLong("created"), row.getLong("updated")));
+        return changes;
+    }
+
+    /**
+     * Bring the stored counts in line with a freshly computed set (e.g. from a full scan of current License versions).
+     * Counters can't be overwritten, so each stored counter is adjusted by the difference.
+     *
+     * @param computed counts keyed by dimensions(license)
+     * @return number of counters adjusted
+     */
+    public static int reconcile(Map<List<String>, Long> computed) throws InterruptedException {
+        CounterAggregator.flushNow(); // pending increments must be in the stored counts before comparing
+        Map<List<String>, Long> deltas = new HashMap<>(computed);
+        for (Row row : session.execute(psReadCounts.bind())) {
+            List<String> key = Arrays.asList(row.getString(STATE), row.getString(LICENSE_TYPE), row.getString(STATUS), row.getString(COUNTY));
+            deltas.merge(key, -row.getLong("license_count"), Long::sum);
+        }
+        int adjusted = 0;
+        for (Map.Entry<List<String>, Long> delta : deltas.entrySet())
+            if (delta.getValue() != 0 && counted(delta.getKey())) {
+                increment(delta.getKey(), delta.getValue());
+                adjusted++;
+            }
+        return adjusted;
+    }
+}
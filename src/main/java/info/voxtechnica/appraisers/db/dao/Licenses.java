@@ -1,14 +1,26 @@
 package info.voxtechnica.appraisers.db.dao;
 
 import com.datastax.driver.core.*;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.config.LicenseConfiguration;
+import info.voxtechnica.appraisers.db.PageCursor;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.model.Import;
 import info.voxtechnica.appraisers.model.License;
-import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.model.LicenseChange;
+import info.voxtechnica.appraisers.model.LicenseLookup;
+import info.voxtechnica.appraisers.model.LicenseLookupResult;
+import info.voxtechnica.appraisers.model.Page;
+import info.voxtechnica.appraisers.util.JsonMergePatch;
 import info.voxtechnica.appraisers.util.JsonSerializer;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -18,6 +30,7 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * Licenses are used to capture and retain raw, unimproved information about appraisers, their contact information, and
@@ -25,24 +38,44 @@ import java.util.concurrent.ExecutionException;
  * changes in the data set, and it will only be recorded for original and modified records in the daily asc.gov batches.
  * The three attributes stateAbbrev, licenseNumber, and licenseType provide a unique index into the asc.gov data.
  * Unmodified raw strings are stored in rawData. Standardized, enhanced data are stored in the named fields.
+ * <p/>
+ * Version history is delta-encoded: the first version, and every keyframeInterval versions after that, are stored as
+ * full documents (depth 0). The versions in between are stored as JSON Merge Patches against the previous version, with
+ * depth counting the patches since the last keyframe, and base_update_id naming the version the patch was taken against
+ * (a patch is only ever applied to that version). Versions are reconstructed here, so callers always see Licenses.
+ * <p/>
+ * The current version is also projected, as a full document, into licenses_asc_key. The projection is written in the
+ * same logged batch as the version, with a write timestamp taken from the updateId (on the projection only), so a
+ * late-arriving older version can never replace a newer one. Projection deletes carry the deleted version's timestamp,
+ * so a later re-import still wins. Looking up a License by ASC key is then a single read.
  */
 public class Licenses {
     private static final Logger LOG = LoggerFactory.getLogger(Licenses.class);
     private static boolean initialized = false;
     private static Session session;
+    private static StorageCodec codec;
+    private static int keyframeInterval;
 
     private static PreparedStatement psWriteVersion;
     private static PreparedStatement psReadAllIds;
-    private static PreparedStatement psReadVersion;
     private static PreparedStatement psReadVersions;
     private static PreparedStatement psReadCurrentVersion;
+    private static PreparedStatement psReadCurrentUpdateId;
+    private static PreparedStatement psReadVersionUpdateId;
+    private static PreparedStatement psReadVersionChain;
     private static PreparedStatement psDeleteVersions;
     private static PreparedStatement psWriteLicenseIdAscKey;
     private static PreparedStatement psReadLicenseIdAscKey;
     private static PreparedStatement psDeleteLicenseIdAscKey;
+    private static PreparedStatement psWriteLicenseAscKey;
+    private static PreparedStatement psReadLicenseAscKey;
+    private static PreparedStatement psDeleteLicenseAscKey;
     private static PreparedStatement psWriteLicenseUpdateIdDay;
     private static PreparedStatement psReadLicenseUpdateIdsDay;
     private static PreparedStatement psDeleteLicenseUpdateIdsDay;
+    private static PreparedStatement psWriteLicenseChangeDay;
+    private static PreparedStatement psReadLicenseChangesDay;
+    private static PreparedStatement psDeleteLicenseChangesDay;
     private static PreparedStatement psWriteLicenseIdState;
     private static PreparedStatement psReadLicenseIdsState;
     private static PreparedStatement psDeleteLicenseIdState;
@@ -50,10 +83,15 @@ public class Licenses {
     private static PreparedStatement psReadLicenseIdsNumber;
     private static PreparedStatement psDeleteLicenseIdNumber;
 
+    private static final int MAX_LOOKUPS_IN_FLIGHT = 512;
+
     private static final String createTableLicenses = "CREATE TABLE IF NOT EXISTS licenses (\n" +
             "  id text,\n" +
             "  update_id text,\n" +
+            "  depth int,\n" +
+            "  base_update_id text,\n" +
             "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY ((id), update_id)\n" +
             ") WITH\n" +
             "  comment='License Version History' AND\n" +
@@ -69,6 +107,19 @@ public class Licenses {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
+    private static final String createTableLicensesAscKey = "CREATE TABLE IF NOT EXISTS licenses_asc_key (\n" +
+            "  asc_key text,\n" +
+            "  id text,\n" +
+            "  update_id text,\n" +
+            "  depth int,\n" +
+            "  json text,\n" +
+            "  data blob,\n" +
+            "  PRIMARY KEY (asc_key)\n" +
+            ") WITH\n" +
+            "  comment='Current License Version by ASC Key' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
     private static final String createTableLicenseUpdateIdsDay = "CREATE TABLE IF NOT EXISTS license_update_ids_day (\n" +
             "  day int,\n" +
             "  id text,\n" +
@@ -79,6 +130,17 @@ public class Licenses {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
+    private static final String createTableLicenseChangesDay = "CREATE TABLE IF NOT EXISTS license_changes_day (\n" +
+            "  day int,\n" +
+            "  update_id text,\n" +
+            "  id text,\n" +
+            "  PRIMARY KEY ((day), update_id, id)\n" +
+            ") WITH\n" +
+            "  CLUSTERING ORDER BY (update_id ASC, id ASC) AND\n" +
+            "  comment='License Changes by Day, in updateId order' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
     private static final String createTableLicenseIdsState = "CREATE TABLE IF NOT EXISTS license_ids_state (\n" +
             "  state text,\n" +
             "  id text,\n" +
@@ -97,15 +159,22 @@ public class Licenses {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
-    public static void initialize(CassandraClient dbClient) {
+    public static void initialize(CassandraClient dbClient, LicenseConfiguration config) {
         if (!initialized) {
             session = dbClient.getSession();
+            codec = dbClient.getStorageCodec();
+            keyframeInterval = Math.max(1, config.getKeyframeInterval());
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableLicenses);
+                    dbClient.addColumnIfMissing("licenses", StorageCodec.DATA_COLUMN, "blob");
+                    dbClient.addColumnIfMissing("licenses", "depth", "int");
+                    dbClient.addColumnIfMissing("licenses", "base_update_id", "text");
                     session.execute(createTableLicenseIdAscKey);
+                    session.execute(createTableLicensesAscKey);
                     session.execute(createTableLicenseUpdateIdsDay);
+                    session.execute(createTableLicenseChangesDay);
                     session.execute(createTableLicenseIdsState);
                     session.execute(createTableLicenseIdsLicenseNumber);
                 } catch (Exception e) {
@@ -114,28 +183,38 @@ public class Licenses {
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
             // regular object persistence
-            psWriteVersion = session.prepare("INSERT INTO licenses (id, update_id, json) VALUES (?, ?, ?)");
-            psReadAllIds = session.prepare("SELECT DISTINCT id FROM licenses LIMIT ?");
-            psReadVersion = session.prepare("SELECT * FROM licenses WHERE id=? AND update_id=?");
-            psReadVersions = session.prepare("SELECT * FROM licenses WHERE id=? ORDER BY update_id ASC");
-            psReadCurrentVersion = session.prepare("SELECT * FROM licenses WHERE id=? ORDER BY update_id DESC LIMIT 1");
-            psDeleteVersions = session.prepare("DELETE FROM licenses WHERE id=?");
+            psWriteVersion = StatementRegistry.prepare(session, "Licenses.writeVersion", "INSERT INTO licenses (id, update_id, depth, base_update_id, " + codec.getColumn() + ") VALUES (?, ?, ?, ?, ?)");
+            psReadAllIds = StatementRegistry.prepare(session, "Licenses.readAllIds", "SELECT DISTINCT id FROM licenses LIMIT ?");
+            psReadVersions = StatementRegistry.prepare(session, "Licenses.readVersions", "SELECT * FROM licenses WHERE id=? ORDER BY update_id ASC");
+            psReadCurrentVersion = StatementRegistry.prepare(session, "Licenses.readCurrentVersion", "SELECT * FROM licenses WHERE id=? ORDER BY update_id DESC LIMIT ?");
+            psReadCurrentUpdateId = StatementRegistry.prepare(session, "Licenses.readCurrentUpdateId", "SELECT update_id FROM licenses WHERE id=? ORDER BY update_id DESC LIMIT 1");
+            psReadVersionUpdateId = StatementRegistry.prepare(session, "Licenses.readVersionUpdateId", "SELECT update_id FROM licenses WHERE id=? AND update_id=?");
+            psReadVersionChain = StatementRegistry.prepare(session, "Licenses.readVersionChain", "SELECT * FROM licenses WHERE id=? AND update_id<=? ORDER BY update_id DESC LIMIT ?");
+            psDeleteVersions = StatementRegistry.prepare(session, "Licenses.deleteVersions", "DELETE FROM licenses WHERE id=?");
             // ASC key index (stateAbbrev, licenseNumber, licenseType)
-            psWriteLicenseIdAscKey = session.prepare("INSERT INTO license_id_asc_key (asc_key, id) VALUES (?, ?)");
-            psReadLicenseIdAscKey = session.prepare("SELECT id FROM license_id_asc_key WHERE asc_key=?");
-            psDeleteLicenseIdAscKey = session.prepare("DELETE FROM license_id_asc_key WHERE asc_key=?");
+            psWriteLicenseIdAscKey = StatementRegistry.prepare(session, "Licenses.writeLicenseIdAscKey", "INSERT INTO license_id_asc_key (asc_key, id) VALUES (?, ?)");
+            psReadLicenseIdAscKey = StatementRegistry.prepare(session, "Licenses.readLicenseIdAscKey", "SELECT id FROM license_id_asc_key WHERE asc_key=?");
+            psDeleteLicenseIdAscKey = StatementRegistry.prepare(session, "Licenses.deleteLicenseIdAscKey", "DELETE FROM license_id_asc_key WHERE asc_key=?");
+            // current version by ASC key (projection)
+            psWriteLicenseAscKey = StatementRegistry.prepare(session, "Licenses.writeLicenseAscKey", "INSERT INTO licenses_asc_key (asc_key, id, update_id, depth, " + codec.getColumn() + ") VALUES (?, ?, ?, ?, ?) USING TIMESTAMP ?");
+            psReadLicenseAscKey = StatementRegistry.prepare(session, "Licenses.readLicenseAscKey", "SELECT * FROM licenses_asc_key WHERE asc_key=?");
+            psDeleteLicenseAscKey = StatementRegistry.prepare(session, "Licenses.deleteLicenseAscKey", "DELETE FROM licenses_asc_key USING TIMESTAMP ? WHERE asc_key=?");
             // license updates by day (YYYYMMDD)
-            psWriteLicenseUpdateIdDay = session.prepare("INSERT INTO license_update_ids_day (day, id, update_id) VALUES (?, ?, ?)");
-            psReadLicenseUpdateIdsDay = session.prepare("SELECT id, update_id FROM license_update_ids_day WHERE day=? LIMIT ?");
-            psDeleteLicenseUpdateIdsDay = session.prepare("DELETE FROM license_update_ids_day WHERE day=?");
+            psWriteLicenseUpdateIdDay = StatementRegistry.prepare(session, "Licenses.writeLicenseUpdateIdDay", "INSERT INTO license_update_ids_day (day, id, update_id) VALUES (?, ?, ?)");
+            psReadLicenseUpdateIdsDay = StatementRegistry.prepare(session, "Licenses.readLicenseUpdateIdsDay", "SELECT id, update_id FROM license_update_ids_day WHERE day=? LIMIT ?");
+            psDeleteLicenseUpdateIdsDay = StatementRegistry.prepare(session, "Licenses.deleteLicenseUpdateIdsDay", "DELETE FROM license_update_ids_day WHERE day=?");
+            // change feed, by day in updateId order
+            psWriteLicenseChangeDay = StatementRegistry.prepare(session, "Licenses.writeLicenseChangeDay", "INSERT INTO license_changes_day (day, update_id, id) VALUES (?, ?, ?)");
+            psReadLicenseChangesDay = StatementRegistry.prepare(session, "Licenses.readLicenseChangesDay", "SELECT update_id, id FROM license_changes_day WHERE day=? AND update_id > ? LIMIT ?");
+            psDeleteLicenseChangesDay = StatementRegistry.prepare(session, "Licenses.deleteLicenseChangesDay", "DELETE FROM license_changes_day WHERE day=?");
             // state (abbreviation) index
-            psWriteLicenseIdState = session.prepare("INSERT INTO license_ids_state (state, id) VALUES (?, ?)");
-            psReadLicenseIdsState = session.prepare("SELECT id FROM license_ids_state WHERE state=? AND id > ? ORDER BY id ASC LIMIT ?");
-            psDeleteLicenseIdState = session.prepare("DELETE FROM license_ids_state WHERE state=? AND id=?");
+            psWriteLicenseIdState = StatementRegistry.prepare(session, "Licenses.writeLicenseIdState", "INSERT INTO license_ids_state (state, id) VALUES (?, ?)");
+            psReadLicenseIdsState = StatementRegistry.prepare(session, "Licenses.readLicenseIdsState", "SELECT id FROM license_ids_state WHERE state=? AND id > ? ORDER BY id ASC LIMIT ?");
+            psDeleteLicenseIdState = StatementRegistry.prepare(session, "Licenses.deleteLicenseIdState", "DELETE FROM license_ids_state WHERE state=? AND id=?");
             // license number index (not necessarily unique)
-            psWriteLicenseIdNumber = session.prepare("INSERT INTO license_ids_license_number (license_number, id) VALUES (?, ?)");
-            psReadLicenseIdsNumber = session.prepare("SELECT id FROM license_ids_license_number WHERE license_number=?");
-            psDeleteLicenseIdNumber = session.prepare("DELETE FROM license_ids_license_number WHERE license_number=? AND id=?");
+            psWriteLicenseIdNumber = StatementRegistry.prepare(session, "Licenses.writeLicenseIdNumber", "INSERT INTO license_ids_license_number (license_number, id) VALUES (?, ?)");
+            psReadLicenseIdsNumber = StatementRegistry.prepare(session, "Licenses.readLicenseIdsNumber", "SELECT id FROM license_ids_license_number WHERE license_number=?");
+            psDeleteLicenseIdNumber = StatementRegistry.prepare(session, "Licenses.deleteLicenseIdNumber", "DELETE FROM license_ids_license_number WHERE license_number=? AND id=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -147,30 +226,80 @@ public class Licenses {
     public static License createLicense(License license) throws IOException {
         if (license.getId() == null) license.setId(TuidFactory.getId());
         license.setUpdateId(license.getId()); // updateId matches id on first version
-        return createLicenseVersion(license);
+        return createLicenseVersion(license, null);
     }
 
     public static License createLicenseVersion(License license) throws IOException {
         // id and updateId must be properly set before using this method
         if (license.getId() == null || license.getUpdateId() == null) return null;
-        session.executeAsync(psWriteVersion.bind(license.getId(), license.getUpdateId(), JsonSerializer.getJson(license)));
+        return createLicenseVersion(license, readLicense(license.getId()));
+    }
+
+    /**
+     * Create a new version of a License, stored as a delta against the previous version when possible.
+     *
+     * @param license  new version, with id and updateId set
+     * @param previous current version, as read from the database (null to store a full document)
+     * @return the License
+     */
+    public static License createLicenseVersion(License license, License previous) throws IOException {
+        // id and updateId must be properly set before using this method
+        if (license.getId() == null || license.getUpdateId() == null) return null;
+        int depth = 0;
+        String base = null;
+        Object document, current = codec.encode(license);
+        if (previous != null && previous.getVersionDepth() != null && previous.getVersionDepth() + 1 < keyframeInterval
+                && license.getId().equals(previous.getId()) && previous.getUpdateId() != null
+                && previous.getUpdateId().compareTo(license.getUpdateId()) < 0) {
+            ObjectMapper mapper = JsonSerializer.getObjectMapper();
+            depth = previous.getVersionDepth() + 1;
+            base = previous.getUpdateId();
+            document = codec.encode(JsonMergePatch.diff(mapper.valueToTree(previous), mapper.valueToTree(license)));
+        } else document = current;
+        // write the version and the current-version projection together; only the projection is timestamped by updateId
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.LOGGED);
+        batch.add(psWriteVersion.bind(license.getId(), license.getUpdateId(), depth, base, document));
+        if (license.getAscKey() != null) {
+            long timestamp = writeTimestamp(license.getUpdateId());
+            if (previous != null && previous.getAscKey() != null && !previous.getAscKey().equals(license.getAscKey()))
+                batch.add(psDeleteLicenseAscKey.bind(timestamp, previous.getAscKey()));
+            batch.add(psWriteLicenseAscKey.bind(license.getAscKey(), license.getId(), license.getUpdateId(), depth, current, timestamp));
+        }
+        // the next version is diffed against this one, so don't hand it back unwritten (a failed write throws here)
+        session.execute(batch);
+        license.setVersionDepth(depth);
         updateIndexes(license);
         return license;
     }
 
+    /**
+     * Derive a projection write timestamp (microseconds) from a TUID, so that newer versions always win in the
+     * projection: the TUID's millisecond, plus its counter as the microseconds. It orders as updateIds do, and stays a
+     * real time, so writes at the current time (e.g. storage migrations) and tombstone purging still work.
+     */
+    private static long writeTimestamp(String updateId) {
+        long tuid = TuidCodec.decode(updateId);
+        return (tuid >>> 18) * 1000L + ((tuid >>> 8) & 0x3FF);
+    }
+
     public static License updateLicense(License license) throws IOException, MissingResourceException {
         if (license.getId() == null)
             throw new MissingResourceException("Missing ID", License.class.getSimpleName(), "id");
         license.setUpdateId(TuidFactory.getId());
-        return createLicenseVersion(license);
+        License updated = createLicenseVersion(license);
+        Watermarks.advance(Watermarks.LICENSES);
+        return updated;
     }
 
     public static void updateIndexes(License license) {
         if (license != null && license.getId() != null) {
             if (license.getAscKey() != null)
                 session.executeAsync(psWriteLicenseIdAscKey.bind(license.getAscKey(), license.getId()));
-            if (license.getUpdateId() != null)
-                session.executeAsync(psWriteLicenseUpdateIdDay.bind((new Tuid(license.getUpdateId())).getYearMonthDay(), license.getId(), license.getUpdateId()));
+            if (license.getUpdateId() != null) {
+                int day = TuidCodec.getYearMonthDay(license.getUpdateId());
+                session.executeAsync(psWriteLicenseUpdateIdDay.bind(day, license.getId(), license.getUpdateId()));
+                session.executeAsync(psWriteLicenseChangeDay.bind(day, license.getUpdateId(), license.getId()));
+            }
             if (license.getStateAbbrev() != null)
                 session.executeAsync(psWriteLicenseIdState.bind(license.getStateAbbrev(), license.getId()));
             if (license.getLicenseNumber() != null)
@@ -182,95 +311,329 @@ public class Licenses {
         License license = readLicense(id);
         if (license != null) {
             session.executeAsync(psDeleteVersions.bind(license.getId()));
-            if (license.getAscKey() != null)
+            if (license.getAscKey() != null) {
                 session.executeAsync(psDeleteLicenseIdAscKey.bind(license.getAscKey()));
+                session.executeAsync(psDeleteLicenseAscKey.bind(writeTimestamp(license.getUpdateId()), license.getAscKey()));
+            }
             if (license.getStateAbbrev() != null)
                 session.executeAsync(psDeleteLicenseIdState.bind(license.getStateAbbrev(), license.getId()));
             if (license.getLicenseNumber() != null)
                 session.executeAsync(psDeleteLicenseIdNumber.bind(license.getLicenseNumber(), license.getId()));
+            LicenseStats.recordDeleted(license);
+            Watermarks.advance(Watermarks.LICENSES);
         }
     }
 
     public static void deleteLicenseUpdateIdsByDay(Integer day) {
-        if (day != null) session.executeAsync(psDeleteLicenseUpdateIdsDay.bind(day));
+        if (day != null) {
+            session.executeAsync(psDeleteLicenseUpdateIdsDay.bind(day));
+            session.executeAsync(psDeleteLicenseChangesDay.bind(day));
+        }
     }
 
     public static License readLicense(String id) throws IOException {
         if (id == null) return null;
-        Row row = session.execute(psReadCurrentVersion.bind(id)).one();
-        if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), License.class);
+        return readVersionChain(id, null, session.execute(psReadCurrentVersion.bind(id, keyframeInterval)));
+    }
+
+    /**
+     * Read only the current updateId of a License (a clustering key read), for validating cached copies.
+     */
+    public static String readLicenseUpdateId(String id) {
+        if (id == null) return null;
+        Row row = session.execute(psReadCurrentUpdateId.bind(id)).one();
+        return row == null ? null : row.getString("update_id");
+    }
+
+    /**
+     * Check that a License version exists (a clustering key read), for validating cached copies.
+     */
+    public static boolean existsLicenseVersion(String id, String updateId) {
+        if (id == null || updateId == null) return false;
+        return session.execute(psReadVersionUpdateId.bind(id, updateId)).one() != null;
     }
 
     public static License readLicenseVersion(String id, String updateId) throws IOException {
         if (id == null || updateId == null) return null;
-        Row row = session.execute(psReadVersion.bind(id, updateId)).one();
-        if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), License.class);
+        return readVersionChain(id, updateId, session.execute(psReadVersionChain.bind(id, updateId, keyframeInterval)));
     }
 
     public static List<License> readLicenseVersions(String id) throws IOException {
         if (id == null) return null;
         ArrayList<License> versions = new ArrayList<>();
+        ObjectMapper mapper = JsonSerializer.getObjectMapper();
+        List<JsonNode> bases = new ArrayList<>(); // latest document at each depth since the last keyframe
+        Map<String, JsonNode> documents = new HashMap<>(); // by updateId, for deltas that name their base
         ResultSet resultSet = session.execute(psReadVersions.bind(id));
-        for (Row row : resultSet.all()) {
-            versions.add(JsonSerializer.getObject(row.getString("json"), License.class));
+        for (Row row : resultSet) {
+            int depth = depth(row);
+            String updateId = row.getString("update_id"), baseUpdateId = row.getString("base_update_id");
+            JsonNode base = depth == 0 ? null : baseUpdateId != null ? documents.get(baseUpdateId)
+                    : depth <= bases.size() ? bases.get(depth - 1) : null;
+            if (depth > 0 && base == null)
+                throw new IOException("License " + id + " version " + updateId + " is missing its base " + (baseUpdateId != null ? baseUpdateId : "at depth " + (depth - 1)));
+            JsonNode node = StorageCodec.decode(row, JsonNode.class);
+            JsonNode document = depth == 0 ? node : JsonMergePatch.apply(base, node);
+            documents.put(updateId, document);
+            while (bases.size() < depth) bases.add(null);
+            bases.subList(depth, bases.size()).clear();
+            bases.add(document);
+            License version = mapper.treeToValue(document, License.class);
+            version.setVersionDepth(depth);
+            versions.add(version);
         }
         return versions;
     }
 
+    private static int depth(Row row) {
+        return row.isNull("depth") ? 0 : row.getInt("depth");
+    }
+
+    /**
+     * Rebuild a License from a newest-first run of version rows, as read by psReadCurrentVersion or psReadVersionChain.
+     * Each delta's base is the version named by its base_update_id (or, for deltas written before that column existed,
+     * the latest earlier version one level shallower), so the chain steps down one depth at a time; rows in between are
+     * siblings (e.g. versions written concurrently against the same base) and are skipped. The run normally reaches back
+     * to a keyframe; if it doesn't (e.g. keyframeInterval was raised, or a base is missing), the full version history is
+     * read instead.
+     *
+     * @param id        license ID
+     * @param updateId  requested version, or null for the current version
+     * @param resultSet newest-first version rows
+     * @return the License, or null if the version doesn't exist
+     */
+    private static License readVersionChain(String id, String updateId, ResultSet resultSet) throws IOException {
+        Deque<Row> chain = new ArrayDeque<>();
+        boolean broken = false;
+        for (Row row : resultSet) {
+            if (chain.isEmpty() && updateId != null && !updateId.equals(row.getString("update_id"))) return null;
+            int rowDepth = depth(row);
+            if (!chain.isEmpty()) {
+                int expected = depth(chain.peek()) - 1;
+                String base = chain.peek().getString("base_update_id");
+                int order = base == null ? 0 : row.getString("update_id").compareTo(base);
+                if (order > 0 || (base == null && rowDepth > expected)) continue; // a sibling, not the base
+                if (order < 0 || rowDepth != expected) {
+                    broken = true;
+                    break;
+                }
+            }
+            chain.push(row);
+            if (rowDepth == 0) break;
+        }
+        if (chain.isEmpty()) return null;
+        int depth = depth(chain.peekLast());
+        if (broken || depth(chain.peek()) != 0) {
+            List<License> versions = readLicenseVersions(id);
+            for (int i = versions.size() - 1; i >= 0; i--)
+                if (updateId == null || updateId.equals(versions.get(i).getUpdateId())) return versions.get(i);
+            return null;
+        }
+        License license;
+        if (chain.size() == 1) license = StorageCodec.decode(chain.pop(), License.class);
+        else {
+            JsonNode document = StorageCodec.decode(chain.pop(), JsonNode.class);
+            while (!chain.isEmpty()) document = JsonMergePatch.apply(document, StorageCodec.decode(chain.pop(), JsonNode.class));
+            license = JsonSerializer.getObjectMapper().treeToValue(document, License.class);
+        }
+        if (license != null) license.setVersionDepth(depth);
+        return license;
+    }
+
     public static License readLicenseByAscKey(String ascKey) throws IOException {
         if (ascKey == null) return null;
+        Row row = session.execute(psReadLicenseAscKey.bind(ascKey)).one();
+        return row != null ? readProjection(row) : readLicenseByAscKeyIndex(ascKey);
+    }
+
+    private static License readProjection(Row row) throws IOException {
+        License license = StorageCodec.decode(row, License.class);
+        if (license != null) license.setVersionDepth(depth(row));
+        return license;
+    }
+
+    /**
+     * Look up a License through the ASC key index (two reads), and repair the missing projection along the way. This
+     * covers Licenses written before the projection existed.
+     */
+    private static License readLicenseByAscKeyIndex(String ascKey) throws IOException {
         Row row = session.execute(psReadLicenseIdAscKey.bind(ascKey)).one();
-        return row == null ? null : readLicense(row.getString("id"));
+        License license = row == null ? null : readLicense(row.getString("id"));
+        if (license != null && ascKey.equals(license.getAscKey())) {
+            session.executeAsync(psWriteLicenseAscKey.bind(ascKey, license.getId(), license.getUpdateId(),
+                    license.getVersionDepth(), codec.encode(license), writeTimestamp(license.getUpdateId())));
+        }
+        return license;
     }
 
     private static List<String> readIds(BoundStatement query, String idField) {
         ArrayList<String> ids = new ArrayList<>();
-        ResultSet resultSet = session.execute(query);
-        for (Row idRow : resultSet.all())
+        for (Row idRow : session.execute(query))
             ids.add(idRow.getString(idField));
         return ids;
     }
 
+    /**
+     * Resolve a batch of mixed License keys in one pipelined fan-out. Index lookups (ASC keys and license numbers) and
+     * direct ID reads are sent together; as each index lookup completes, any License IDs not already requested are read
+     * too. Duplicate keys and IDs are resolved only once, and the number of queries in flight is capped.
+     *
+     * @param lookup License IDs, ASC keys, and license numbers
+     * @return current License versions keyed by input key
+     */
+    public static LicenseLookupResult lookupLicenses(LicenseLookup lookup) throws IOException, ExecutionException, InterruptedException {
+        LicenseLookupResult result = new LicenseLookupResult();
+        Semaphore inFlight = new Semaphore(MAX_LOOKUPS_IN_FLIGHT);
+        Map<String, ResultSetFuture> ascKeyRows = new LinkedHashMap<>();
+        Map<String, License> ascKeyLicenses = new HashMap<>();
+        Map<String, ListenableFuture<List<String>>> ascKeyIds = new LinkedHashMap<>();
+        Map<String, ListenableFuture<List<String>>> numberIds = new LinkedHashMap<>();
+        Set<String> requestedIds = new LinkedHashSet<>();
+        Map<String, ResultSetFuture> licenseFutures = new HashMap<>();
+        // Send ASC key projection reads and index lookups first, since they gate the second round, then the ID reads
+        if (lookup.getAscKeys() != null) for (String ascKey : lookup.getAscKeys())
+            if (ascKey != null && !ascKeyRows.containsKey(ascKey))
+                ascKeyRows.put(ascKey, executeThrottled(psReadLicenseAscKey.bind(ascKey), inFlight));
+        if (lookup.getLicenseNumbers() != null) for (String licenseNumber : lookup.getLicenseNumbers())
+            if (licenseNumber != null && !numberIds.containsKey(licenseNumber))
+                numberIds.put(licenseNumber, readIdsAsync(psReadLicenseIdsNumber.bind(licenseNumber), inFlight));
+        if (lookup.getIds() != null) for (String id : lookup.getIds())
+            if (id != null && requestedIds.add(id))
+                licenseFutures.put(id, executeThrottled(psReadCurrentVersion.bind(id, keyframeInterval), inFlight));
+        // ASC keys missing from the projection (written before it existed) fall back to the ASC key index
+        for (Map.Entry<String, ResultSetFuture> entry : ascKeyRows.entrySet()) {
+            Row row = entry.getValue().get().one();
+            if (row != null) ascKeyLicenses.put(entry.getKey(), readProjection(row));
+            else ascKeyIds.put(entry.getKey(), readIdsAsync(psReadLicenseIdAscKey.bind(entry.getKey()), inFlight));
+        }
+        // As index lookups complete, send reads for any License IDs we haven't already requested
+        List<ListenableFuture<List<String>>> indexFutures = new ArrayList<>(ascKeyIds.values());
+        indexFutures.addAll(numberIds.values());
+        for (ListenableFuture<List<String>> future : Futures.inCompletionOrder(indexFutures))
+            for (String id : future.get())
+                if (!licenseFutures.containsKey(id))
+                    licenseFutures.put(id, executeThrottled(psReadCurrentVersion.bind(id, keyframeInterval), inFlight));
+        // Reconstruct each distinct License once, then key the results by input
+        Map<String, License> licenses = new HashMap<>();
+        for (Map.Entry<String, ResultSetFuture> entry : licenseFutures.entrySet()) {
+            License license = readVersionChain(entry.getKey(), null, entry.getValue().get());
+            if (license != null) licenses.put(entry.getKey(), license);
+        }
+        for (String id : requestedIds) {
+            if (licenses.containsKey(id)) result.getIds().put(id, licenses.get(id));
+            else result.getNotFound().add(id);
+        }
+        for (String ascKey : ascKeyRows.keySet()) {
+            License license = ascKeyLicenses.get(ascKey);
+            if (license == null && ascKeyIds.containsKey(ascKey)) {
+                List<String> ids = ascKeyIds.get(ascKey).get();
+                license = ids.isEmpty() ? null : licenses.get(ids.get(0));
+            }
+            if (license != null) result.getAscKeys().put(ascKey, license);
+            else result.getNotFound().add(ascKey);
+        }
+        for (Map.Entry<String, ListenableFuture<List<String>>> entry : numberIds.entrySet()) {
+            List<License> matches = new ArrayList<>();
+            for (String id : entry.getValue().get()) if (licenses.containsKey(id)) matches.add(licenses.get(id));
+            if (!matches.isEmpty()) {
+                matches.sort(License.Chronological);
+                result.getLicenseNumbers().put(entry.getKey(), matches);
+            } else result.getNotFound().add(entry.getKey());
+        }
+        return result;
+    }
+
+    private static ListenableFuture<List<String>> readIdsAsync(Statement statement, Semaphore inFlight) throws InterruptedException {
+        return Futures.transform(executeThrottled(statement, inFlight), (ResultSet resultSet) -> {
+            List<String> ids = new ArrayList<>();
+            for (Row row : resultSet) ids.add(row.getString("id"));
+            return ids;
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static ResultSetFuture executeThrottled(Statement statement, Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        ResultSetFuture future = session.executeAsync(statement);
+        future.addListener(inFlight::release, MoreExecutors.directExecutor());
+        return future;
+    }
+
     public static SortedSet<License> readLicenses(List<String> ids, Comparator<License> order) throws IOException, ExecutionException, InterruptedException {
         // Send asynchronous queries to Cassandra
         List<ResultSetFuture> futures = Lists.newArrayListWithExpectedSize(ids.size());
-        for (String id : ids) if (id != null) futures.add(session.executeAsync(psReadCurrentVersion.bind(id)));
-        // Process the results as they come in, deserializing JSON to pojos in sorted order
+        List<String> futureIds = Lists.newArrayListWithExpectedSize(ids.size());
+        for (String id : ids)
+            if (id != null) {
+                futures.add(session.executeAsync(psReadCurrentVersion.bind(id, keyframeInterval)));
+                futureIds.add(id);
+            }
+        // Process the results, reconstructing delta-encoded versions and deserializing to pojos in sorted order
         ConcurrentSkipListSet<License> licenses = new ConcurrentSkipListSet<>(order);
-        for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
-            Row row = future.get().one();
-            if (row != null) licenses.add(JsonSerializer.getObject(row.getString("json"), License.class));
+        for (int i = 0; i < futures.size(); i++) {
+            License license = readVersionChain(futureIds.get(i), null, futures.get(i).get());
+            if (license != null) licenses.add(license);
         }
         return licenses;
     }
 
-    public static SortedSet<License> readLicenses(Integer limit) throws IOException, ExecutionException, InterruptedException {
-        return readLicenses(readIds(psReadAllIds.bind(limit == null ? 10000 : limit), "id"), License.Chronological);
+    private static Page<License> readLicensePage(Page<String> ids) throws IOException, ExecutionException, InterruptedException {
+        return new Page<>(new ArrayList<>(readLicenses(ids.getItems(), License.Chronological)), ids.getNext());
     }
 
-    public static SortedSet<License> readLicensesByState(String stateAbbrev, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return readLicenses(readIds(psReadLicenseIdsState.bind(stateAbbrev, offset == null ? "0" : offset, limit == null ? 10000 : limit), "id"), License.Chronological);
+    public static Page<License> readLicenses(Integer limit, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return readLicensePage(PageCursor.read(session, psReadAllIds.bind(Integer.MAX_VALUE), limit, cursor, row -> row.getString("id")));
+    }
+
+    public static Page<License> readLicensesByState(String stateAbbrev, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        BoundStatement query = psReadLicenseIdsState.bind(stateAbbrev, offset == null ? "0" : offset, Integer.MAX_VALUE);
+        return readLicensePage(PageCursor.read(session, query, limit, cursor, row -> row.getString("id")));
     }
 
     public static SortedSet<License> readLicensesByLicenseNumber(String licenseNumber) throws IOException, ExecutionException, InterruptedException {
         return readLicenses(readIds(psReadLicenseIdsNumber.bind(licenseNumber), "id"), License.Chronological);
     }
 
-    public static SortedSet<License> readLicenseUpdatesByDay(Integer day, Integer limit) throws IOException, ExecutionException, InterruptedException {
+    public static Page<License> readLicenseUpdatesByDay(Integer day, Integer limit, String cursor) throws IOException, ExecutionException, InterruptedException {
         if (day == null) return null;
-        // Fetch ids for the specified day
-        ResultSet resultSet = session.execute(psReadLicenseUpdateIdsDay.bind(day, limit == null ? 10000 : limit));
+        // Fetch a page of ids for the specified day
+        Page<Row> page = PageCursor.read(session, psReadLicenseUpdateIdsDay.bind(day, Integer.MAX_VALUE), limit, cursor, row -> row);
         // Send asynchronous queries to Cassandra
         List<ResultSetFuture> futures = new ArrayList<>();
-        for (Row row : resultSet.all()) futures.add(session.executeAsync(psReadVersion.bind(row.getString("id"), row.getString("update_id"))));
-        // Process the results as they come in, deserializing JSON to pojos in sorted order
+        List<Row> updates = page.getItems();
+        for (Row row : updates)
+            futures.add(session.executeAsync(psReadVersionChain.bind(row.getString("id"), row.getString("update_id"), keyframeInterval)));
+        // Process the results, reconstructing delta-encoded versions and deserializing to pojos in sorted order
         ConcurrentSkipListSet<License> licenses = new ConcurrentSkipListSet<>(License.Chronological);
-        for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
-            Row row = future.get().one();
-            if (row != null) licenses.add(JsonSerializer.getObject(row.getString("json"), License.class));
+        for (int i = 0; i < futures.size(); i++) {
+            Row update = updates.get(i);
+            License license = readVersionChain(update.getString("id"), update.getString("update_id"), futures.get(i).get());
+            if (license != null) licenses.add(license);
         }
-        return licenses;
+        return new Page<>(new ArrayList<>(licenses), page.getNext());
+    }
+
+    /**
+     * Read License changes (new versions) for a day, in updateId order, resuming after the specified updateId.
+     *
+     * @param day   day (YYYYMMDD)
+     * @param after last updateId already seen (optional)
+     * @param limit maximum number of changes
+     * @return changes, with each License version reconstructed
+     */
+    public static List<LicenseChange> readLicenseChanges(Integer day, String after, Integer limit) throws IOException, ExecutionException, InterruptedException {
+        List<LicenseChange> changes = new ArrayList<>();
+        if (day == null || limit == null || limit < 1) return changes;
+        // Send asynchronous queries to Cassandra, in updateId order
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (Row row : session.execute(psReadLicenseChangesDay.bind(day, after == null ? "" : after, limit))) {
+            changes.add(new LicenseChange(row.getString("id"), row.getString("update_id"), day, null));
+            futures.add(session.executeAsync(psReadVersionChain.bind(row.getString("id"), row.getString("update_id"), keyframeInterval)));
+        }
+        // Attach the reconstructed versions (deleted Licenses have none)
+        for (int i = 0; i < futures.size(); i++) {
+            LicenseChange change = changes.get(i);
+            change.setLicense(readVersionChain(change.getId(), change.getUpdateId(), futures.get(i).get()));
+        }
+        return changes;
     }
 }
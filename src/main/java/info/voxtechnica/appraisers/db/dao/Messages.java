@@ -5,10 +5,11 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.client.SendGridClient;
 import info.voxtechnica.appraisers.client.SlackClient;
 import info.voxtechnica.appraisers.model.Message;
-import info.voxtechnica.appraisers.util.JsonSerializer;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -29,6 +30,7 @@ public class Messages {
     private static final Logger LOG = LoggerFactory.getLogger(Messages.class);
     private static boolean initialized = false;
     private static Session session;
+    private static StorageCodec codec;
     private static PreparedStatement psWriteVersion;
     private static PreparedStatement psReadAllIds;
     private static PreparedStatement psReadVersion;
@@ -43,6 +45,7 @@ public class Messages {
             "  id text,\n" +
             "  update_id text,\n" +
             "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY ((id), update_id)\n" +
             ") WITH\n" +
             "  comment='Messages' AND\n" +
@@ -61,10 +64,12 @@ public class Messages {
     public static void initialize(CassandraClient dbClient) {
         if (!initialized) {
             session = dbClient.getSession();
+            codec = dbClient.getStorageCodec();
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableMessages);
+                    dbClient.addColumnIfMissing("messages", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableMessageIdsEmail);
                 } catch (Exception e) {
                     LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
@@ -72,16 +77,16 @@ public class Messages {
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
             // regular object persistence
-            psWriteVersion = session.prepare("INSERT INTO messages (id, update_id, json) VALUES (?, ?, ?)");
-            psReadAllIds = session.prepare("SELECT DISTINCT id FROM messages LIMIT ?");
-            psReadVersion = session.prepare("SELECT * FROM messages WHERE id=? AND update_id=?");
-            psReadVersions = session.prepare("SELECT * FROM messages WHERE id=? ORDER BY update_id ASC");
-            psReadCurrentVersion = session.prepare("SELECT * FROM messages WHERE id=? ORDER BY update_id DESC LIMIT 1");
-            psDeleteVersions = session.prepare("DELETE FROM messages WHERE id=?");
+            psWriteVersion = StatementRegistry.prepare(session, "Messages.writeVersion", "INSERT INTO messages (id, update_id, " + codec.getColumn() + ") VALUES (?, ?, ?)");
+            psReadAllIds = StatementRegistry.prepare(session, "Messages.readAllIds", "SELECT DISTINCT id FROM messages LIMIT ?");
+            psReadVersion = StatementRegistry.prepare(session, "Messages.readVersion", "SELECT * FROM messages WHERE id=? AND update_id=?");
+            psReadVersions = StatementRegistry.prepare(session, "Messages.readVersions", "SELECT * FROM messages WHERE id=? ORDER BY update_id ASC");
+            psReadCurrentVersion = StatementRegistry.prepare(session, "Messages.readCurrentVersion", "SELECT * FROM messages WHERE id=? ORDER BY update_id DESC LIMIT 1");
+            psDeleteVersions = StatementRegistry.prepare(session, "Messages.deleteVersions", "DELETE FROM messages WHERE id=?");
             // email index
-            psWriteEmailId = session.prepare("INSERT INTO message_ids_email (email, message_id) VALUES (?, ?)");
-            psReadEmailId = session.prepare("SELECT message_id FROM message_ids_email WHERE email=? AND message_id > ? ORDER BY message_id ASC LIMIT ?");
-            psDeleteEmailId = session.prepare("DELETE FROM message_ids_email WHERE email=? AND message_id=?");
+            psWriteEmailId = StatementRegistry.prepare(session, "Messages.writeEmailId", "INSERT INTO message_ids_email (email, message_id) VALUES (?, ?)");
+            psReadEmailId = StatementRegistry.prepare(session, "Messages.readEmailId", "SELECT message_id FROM message_ids_email WHERE email=? AND message_id > ? ORDER BY message_id ASC LIMIT ?");
+            psDeleteEmailId = StatementRegistry.prepare(session, "Messages.deleteEmailId", "DELETE FROM message_ids_email WHERE email=? AND message_id=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -96,7 +101,7 @@ public class Messages {
         if (Message.Type.EMAIL.equals(msg.getType())) msg.setStatus(SendGridClient.send(msg));
         else if (Message.Type.SLACK.equals(msg.getType())) msg.setStatus(SlackClient.send(msg));
         BatchStatement batch = new BatchStatement();
-        batch.add(psWriteVersion.bind(msg.getId(), msg.getUpdateId(), JsonSerializer.getJson(msg)));
+        batch.add(psWriteVersion.bind(msg.getId(), msg.getUpdateId(), codec.encode(msg)));
         if (msg.getFrom() != null) batch.add(psWriteEmailId.bind(msg.getFrom(), msg.getId()));
         if (msg.getRecipients() != null)
             for (String email : msg.getRecipients()) batch.add(psWriteEmailId.bind(email, msg.getId()));
@@ -112,7 +117,7 @@ public class Messages {
             else if (Message.Type.SLACK.equals(msg.getType())) msg.setStatus(SlackClient.send(msg));
         }
         BatchStatement batch = new BatchStatement();
-        batch.add(psWriteVersion.bind(msg.getId(), msg.getUpdateId(), JsonSerializer.getJson(msg)));
+        batch.add(psWriteVersion.bind(msg.getId(), msg.getUpdateId(), codec.encode(msg)));
         if (msg.getFrom() != null) batch.add(psWriteEmailId.bind(msg.getFrom(), msg.getId()));
         if (msg.getRecipients() != null)
             for (String email : msg.getRecipients()) batch.add(psWriteEmailId.bind(email, msg.getId()));
@@ -136,28 +141,28 @@ public class Messages {
         if (id == null) return null;
         Row row = session.execute(psReadCurrentVersion.bind(id)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), Message.class);
+        return StorageCodec.decode(row, Message.class);
     }
 
     public static Message readMessageVersion(String id, String updateId) throws IOException {
         if (id == null || updateId == null) return null;
         Row row = session.execute(psReadVersion.bind(id, updateId)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), Message.class);
+        return StorageCodec.decode(row, Message.class);
     }
 
     public static List<Message> readMessageVersions(String id) throws IOException {
         if (id == null) return null;
         ArrayList<Message> versions = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadVersions.bind(id));
-        for (Row row : resultSet.all()) versions.add(JsonSerializer.getObject(row.getString("json"), Message.class));
+        for (Row row : resultSet) versions.add(StorageCodec.decode(row, Message.class));
         return versions;
     }
 
     private static List<String> readIds(BoundStatement query, String idField) {
         ArrayList<String> ids = new ArrayList<>();
         ResultSet resultSet = session.execute(query);
-        for (Row idRow : resultSet.all()) ids.add(idRow.getString(idField));
+        for (Row idRow : resultSet) ids.add(idRow.getString(idField));
         return ids;
     }
 
@@ -169,7 +174,7 @@ public class Messages {
         ConcurrentSkipListSet<Message> messages = new ConcurrentSkipListSet<>(order);
         for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
             Row row = future.get().one();
-            if (row != null) messages.add(JsonSerializer.getObject(row.getString("json"), Message.class));
+            if (row != null) messages.add(StorageCodec.decode(row, Message.class));
         }
         return messages;
     }
@@ -0,0 +1,228 @@
+package info.voxtechnica.appraisers.db.dao;
+
+import com.datastax.driver.core.*;
+import com.google.common.collect.Lists;
+import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.config.MetricConfiguration;
+import info.voxtechnica.appraisers.model.MetricRollup;
+import info.voxtechnica.appraisers.model.MetricStat;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DataFormatException;
+
+/**
+ * MetricRollups stores per-tag Metric rollups: one row per tag per window per node, holding the window's count, sum,
+ * and compressed duration histogram. Rows are partitioned by tag, resolution, and a period of 1440 windows (a day of
+ * minute windows, 60 days of hour windows), so a range read touches few partitions at any resolution. Each node writes
+ * its own rows in the finest tier (node_id holds the Node ID in its low 8 bits, and a per-process discriminator above
+ * them, so a restarted node never overwrites its predecessor's partial window), and reads merge them by window. Coarser tiers are written by the MetricCompactor, as
+ * one merged row per window (MERGED_NODE); their compaction progress is recorded in metric_rollup_compactions.
+ * <p/>
+ * Range reads are routed to the coarsest tier that covers each part of the range: the compacted middle comes from the
+ * coarse tier, and the edges (and the recent, not yet compacted, windows) from successively finer tiers.
+ */
+public class MetricRollups {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricRollups.class);
+    private static final int WINDOWS_PER_PERIOD = 1440;
+    public static final int MERGED_NODE = -1;
+    private static boolean initialized = false;
+    private static Session session;
+    private static MetricConfiguration config;
+    private static PreparedStatement psWriteRollup;
+    private static PreparedStatement psReadRollups;
+    private static PreparedStatement psWriteCompacted;
+    private static PreparedStatement psReadCompacted;
+
+    private static final String createTableMetricRollups = "CREATE TABLE IF NOT EXISTS metric_rollups (\n" +
+            "  tag text,\n" +
+            "  resolution int,\n" +
+            "  period bigint,\n" +
+            "  window_start bigint,\n" +
+            "  node_id int,\n" +
+            "  count bigint,\n" +
+            "  sum bigint,\n" +
+            "  min bigint,\n" +
+            "  max bigint,\n" +
+            "  histogram blob,\n" +
+            "  exemplar_ids list<text>,\n" +
+            "  PRIMARY KEY ((tag, resolution, period), window_start, node_id)\n" +
+            ") WITH\n" +
+            "  comment='Metric Rollups by Tag, Window, and Node' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    private static final String createTableMetricRollupCompactions = "CREATE TABLE IF NOT EXISTS metric_rollup_compactions (\n" +
+            "  resolution int,\n" +
+            "  compacted_through bigint,\n" +
+            "  PRIMARY KEY (resolution)\n" +
+            ") WITH\n" +
+            "  comment='Metric Rollup Compaction Progress by Resolution' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    public static void initialize(CassandraClient dbClient, MetricConfiguration metricConfig) {
+        if (!initialized) {
+            session = dbClient.getSession();
+            config = metricConfig;
+            // Create tables if they're missing
+            if (dbClient.isCreateIfMissing()) {
+                try {
+                    session.execute(createTableMetricRollups);
+                    session.execute(createTableMetricRollupCompactions);
+                } catch (Exception e) {
+                    LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+            // Prepare statements (invokes a call to Cassandra to validate each one):
+            psWriteRollup = StatementRegistry.prepare(session, "MetricRollups.writeRollup", "INSERT INTO metric_rollups (tag, resolution, period, window_start, node_id, count, sum, min, max, histogram, exemplar_ids) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) USING TTL ?");
+            psReadRollups = StatementRegistry.prepare(session, "MetricRollups.readRollups", "SELECT * FROM metric_rollups WHERE tag=? AND resolution=? AND period=? AND window_start >= ? AND window_start < ?");
+            psWriteCompacted = StatementRegistry.prepare(session, "MetricRollups.writeCompacted", "INSERT INTO metric_rollup_compactions (resolution, compacted_through) VALUES (?, ?)");
+            psReadCompacted = StatementRegistry.prepare(session, "MetricRollups.readCompacted", "SELECT compacted_through FROM metric_rollup_compactions WHERE resolution=?");
+            initialized = true;
+        } else LOG.info("Previously initialized");
+    }
+
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
+    private static long periodOf(int resolution, long millis) {
+        long periodMillis = resolution * 1000L * WINDOWS_PER_PERIOD;
+        return Math.floorDiv(millis, periodMillis) * periodMillis;
+    }
+
+    public static MetricConfiguration getConfig() {
+        return config;
+    }
+
+    /**
+     * Write a rollup row.
+     *
+     * @param nodeId the writing node's ID (with its process discriminator) for a node's own window, or MERGED_NODE for
+     *               a compacted window
+     * @param ttl    time to live, in seconds
+     */
+    public static ResultSetFuture writeRollup(MetricRollup rollup, int nodeId, int ttl) {
+        Histogram histogram = rollup.getHistogram();
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        histogram.encodeIntoCompressedByteBuffer(buffer);
+        buffer.flip();
+        return session.executeAsync(psWriteRollup.bind(rollup.getTag(), rollup.getResolution(),
+                periodOf(rollup.getResolution(), rollup.getWindowStart()), rollup.getWindowStart(), nodeId, rollup.getCount(),
+                rollup.getSum(), rollup.getMin(), rollup.getMax(), buffer, rollup.getExemplarIds(), ttl));
+    }
+
+    /**
+     * Read a tag's rollups at a resolution, for the windows starting in a time range.
+     *
+     * @param tag        Metric tag
+     * @param resolution window length, in seconds
+     * @param from       start of the range (epoch millis, inclusive)
+     * @param to         end of the range (epoch millis, exclusive)
+     * @return rollups in window order, merged across nodes
+     */
+    public static List<MetricRollup> readRollups(String tag, int resolution, long from, long to) throws ExecutionException, InterruptedException {
+        // Send asynchronous queries to Cassandra, one per period partition
+        long periodMillis = resolution * 1000L * WINDOWS_PER_PERIOD;
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (long period = periodOf(resolution, from); period < to; period += periodMillis)
+            futures.add(session.executeAsync(psReadRollups.bind(tag, resolution, period, from, to)));
+        // Process the results in order, merging the nodes' rows for each window
+        List<MetricRollup> rollups = new ArrayList<>();
+        for (ResultSetFuture future : futures)
+            for (Row row : future.get()) {
+                MetricRollup rollup = decode(row);
+                if (rollup == null) continue;
+                MetricRollup last = rollups.isEmpty() ? null : rollups.get(rollups.size() - 1);
+                if (last != null && last.getWindowStart().equals(rollup.getWindowStart())) last.merge(rollup);
+                else rollups.add(rollup);
+            }
+        return rollups;
+    }
+
+    /**
+     * @return the end of the last window compacted into the tier with this resolution (epoch millis; 0 if none)
+     */
+    public static long readCompactedThrough(int resolution) {
+        Row row = session.execute(psReadCompacted.bind(resolution)).one();
+        return row == null ? 0L : row.getLong("compacted_through");
+    }
+
+    public static void writeCompactedThrough(int resolution, long millis) {
+        session.execute(psWriteCompacted.bind(resolution, millis));
+    }
+
+    /**
+     * Read a tag's rollups for a time range, each part of the range from the coarsest tier that covers it.
+     *
+     * @param tag           Metric tag
+     * @param from          start of the range (epoch millis, inclusive)
+     * @param to            end of the range (epoch millis, exclusive)
+     * @param maxResolution coarsest acceptable resolution, in seconds (optional)
+     * @return rollups in window order, possibly of mixed resolutions
+     */
+    public static List<MetricRollup> readRange(String tag, long from, long to, Integer maxResolution) throws ExecutionException, InterruptedException {
+        List<MetricConfiguration.Tier> tiers = new ArrayList<>();
+        for (MetricConfiguration.Tier tier : config.getTiers())
+            if (tiers.isEmpty() || maxResolution == null || tier.getResolution() <= maxResolution) tiers.add(tier);
+        List<MetricRollup> rollups = new ArrayList<>();
+        readRange(tag, tiers, tiers.size() - 1, from, to, rollups);
+        return rollups;
+    }
+
+    private static void readRange(String tag, List<MetricConfiguration.Tier> tiers, int index, long from, long to, List<MetricRollup> rollups) throws ExecutionException, InterruptedException {
+        if (from >= to) return;
+        int resolution = tiers.get(index).getResolution();
+        if (index == 0) {
+            rollups.addAll(readRollups(tag, resolution, from, to));
+            return;
+        }
+        // This tier covers the whole windows within the range that have been compacted; finer tiers cover the rest
+        long millis = resolution * 1000L;
+        long start = Math.floorDiv(from + millis - 1, millis) * millis;
+        long end = Math.floorDiv(Math.min(to, readCompactedThrough(resolution)), millis) * millis;
+        if (start >= end) {
+            readRange(tag, tiers, index - 1, from, to, rollups);
+            return;
+        }
+        readRange(tag, tiers, index - 1, from, start, rollups);
+        rollups.addAll(readRollups(tag, resolution, start, end));
+        readRange(tag, tiers, index - 1, end, to, rollups);
+    }
+
+    /**
+     * Compute a tag's duration stats for a time range by merging its rollup histograms, rather than reading every
+     * Metric in the range. Only windows that start within the range are included.
+     *
+     * @param tag           Metric tag
+     * @param from          start of the range (epoch millis, inclusive)
+     * @param to            end of the range (epoch millis, exclusive)
+     * @param maxResolution coarsest acceptable resolution, in seconds (optional)
+     * @return stats (with a count of zero if there are no rollups in the range)
+     */
+    public static MetricStat readStats(String tag, long from, long to, Integer maxResolution) throws ExecutionException, InterruptedException {
+        MetricStat stat = new MetricStat(tag);
+        for (MetricRollup rollup : readRange(tag, from, to, maxResolution)) stat.addRollup(rollup);
+        return stat;
+    }
+
+    private static MetricRollup decode(Row row) {
+        try {
+            Histogram histogram = Histogram.decodeFromCompressedByteBuffer(row.getBytes("histogram"), 0);
+            MetricRollup rollup = new MetricRollup(row.getString("tag"), row.getInt("resolution"), row.getLong("window_start"), row.getLong("sum"), histogram);
+            rollup.setExemplarIds(new ArrayList<>(row.getList("exemplar_ids", String.class)));
+            return rollup;
+        } catch (DataFormatException e) {
+            LOG.warn("Unable to decode Metric rollup {} at {}: {}", row.getString("tag"), row.getLong("window_start"), e.getMessage());
+            return null;
+        }
+    }
+}
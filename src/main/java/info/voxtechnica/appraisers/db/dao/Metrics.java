@@ -2,12 +2,22 @@ package info.voxtechnica.appraisers.db.dao;
 
 import com.datastax.driver.core.*;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.config.MetricConfiguration;
+import info.voxtechnica.appraisers.db.CounterAggregator;
+import info.voxtechnica.appraisers.db.MetricAggregator;
+import info.voxtechnica.appraisers.db.PageCursor;
+import info.voxtechnica.appraisers.db.SpillLog;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.model.Metric;
 import info.voxtechnica.appraisers.model.MetricCount;
 import info.voxtechnica.appraisers.model.MetricStat;
+import info.voxtechnica.appraisers.model.Page;
 import info.voxtechnica.appraisers.util.JsonSerializer;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -19,6 +29,8 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Metric is a performance metric used for calculating count and duration (millisecond) statistics.
@@ -26,8 +38,11 @@ import java.util.concurrent.ExecutionException;
 public class Metrics {
     private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
     private static boolean initialized = false;
-    private static Integer ttl = 7776000; // TODO: put this Time-to-Live (TTL) in config file (90 days = 7776000 seconds)
+    private static Integer ttl = 604800; // raw Metric Time-to-Live (TTL), in seconds; see MetricConfiguration
     private static Session session;
+    private static StorageCodec codec;
+    private static SpillLog spillLog;
+    private static final AtomicInteger pendingWrites = new AtomicInteger();
     private static PreparedStatement psWriteMetric;
     private static PreparedStatement psReadMetric;
     private static PreparedStatement psDeleteMetric;
@@ -45,6 +60,7 @@ public class Metrics {
     private static final String createTableMetrics = "CREATE TABLE IF NOT EXISTS metrics (\n" +
             "  id text,\n" +
             "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY (id)\n" +
             ") WITH\n" +
             "  comment='Metrics' AND\n" +
@@ -80,13 +96,16 @@ public class Metrics {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
-    public static void initialize(CassandraClient dbClient) {
+    public static void initialize(CassandraClient dbClient, MetricConfiguration config) {
         if (!initialized) {
             session = dbClient.getSession();
+            ttl = config.getRawTimeToLive();
+            codec = dbClient.getStorageCodec();
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableMetrics);
+                    dbClient.addColumnIfMissing("metrics", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableMetricsTag);
                     session.execute(createTableMetricCountsTag);
                     session.execute(createTableMetricIdsEntity);
@@ -96,22 +115,22 @@ public class Metrics {
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
             // regular object persistence
-            psWriteMetric = session.prepare("INSERT INTO metrics (id, json) VALUES (?, ?) USING TTL ?");
-            psReadMetric = session.prepare("SELECT json FROM metrics WHERE id=?");
-            psDeleteMetric = session.prepare("DELETE FROM metrics WHERE id=?");
+            psWriteMetric = StatementRegistry.prepare(session, "Metrics.writeMetric", "INSERT INTO metrics (id, " + codec.getColumn() + ") VALUES (?, ?) USING TTL ?");
+            psReadMetric = StatementRegistry.prepare(session, "Metrics.readMetric", "SELECT json, data FROM metrics WHERE id=?");
+            psDeleteMetric = StatementRegistry.prepare(session, "Metrics.deleteMetric", "DELETE FROM metrics WHERE id=?");
             // tag
-            psWriteMetricTag = session.prepare("INSERT INTO metrics_tag (tag, metric_id, duration) VALUES (?, ?, ?) USING TTL ?");
-            psReadIdsTag = session.prepare("SELECT metric_id FROM metrics_tag WHERE tag=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
-            psReadMetricDurationsTag = session.prepare("SELECT metric_id, duration FROM metrics_tag WHERE tag=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
-            psDeleteMetricTag = session.prepare("DELETE FROM metrics_tag WHERE tag=? AND metric_id=?");
+            psWriteMetricTag = StatementRegistry.prepare(session, "Metrics.writeMetricTag", "INSERT INTO metrics_tag (tag, metric_id, duration) VALUES (?, ?, ?) USING TTL ?");
+            psReadIdsTag = StatementRegistry.prepare(session, "Metrics.readIdsTag", "SELECT metric_id FROM metrics_tag WHERE tag=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
+            psReadMetricDurationsTag = StatementRegistry.prepare(session, "Metrics.readMetricDurationsTag", "SELECT metric_id, duration FROM metrics_tag WHERE tag=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
+            psDeleteMetricTag = StatementRegistry.prepare(session, "Metrics.deleteMetricTag", "DELETE FROM metrics_tag WHERE tag=? AND metric_id=?");
             // tag counts
-            psWriteCountTag = session.prepare("UPDATE metric_counts_tag SET metric_count = metric_count + 1 WHERE tag=?");
-            psWriteDurationTag = session.prepare("UPDATE metric_counts_tag SET metric_duration = metric_duration + ? WHERE tag=?");
-            psReadCountsTag = session.prepare("SELECT tag, metric_count, metric_duration FROM metric_counts_tag");
+            psWriteCountTag = StatementRegistry.prepare(session, "Metrics.writeCountTag", "UPDATE metric_counts_tag SET metric_count = metric_count + ? WHERE tag=?");
+            psWriteDurationTag = StatementRegistry.prepare(session, "Metrics.writeDurationTag", "UPDATE metric_counts_tag SET metric_duration = metric_duration + ? WHERE tag=?");
+            psReadCountsTag = StatementRegistry.prepare(session, "Metrics.readCountsTag", "SELECT tag, metric_count, metric_duration FROM metric_counts_tag");
             // entity
-            psWriteIdEntity = session.prepare("INSERT INTO metric_ids_entity (entity_id, metric_id) VALUES (?, ?) USING TTL ?");
-            psReadIdsEntity = session.prepare("SELECT metric_id FROM metric_ids_entity WHERE entity_id=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
-            psDeleteIdEntity = session.prepare("DELETE from metric_ids_entity WHERE entity_id=? AND metric_id=?");
+            psWriteIdEntity = StatementRegistry.prepare(session, "Metrics.writeIdEntity", "INSERT INTO metric_ids_entity (entity_id, metric_id) VALUES (?, ?) USING TTL ?");
+            psReadIdsEntity = StatementRegistry.prepare(session, "Metrics.readIdsEntity", "SELECT metric_id FROM metric_ids_entity WHERE entity_id=? AND metric_id > ? ORDER BY metric_id ASC LIMIT ?");
+            psDeleteIdEntity = StatementRegistry.prepare(session, "Metrics.deleteIdEntity", "DELETE from metric_ids_entity WHERE entity_id=? AND metric_id=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -120,24 +139,92 @@ public class Metrics {
         return initialized;
     }
 
+    /**
+     * Hold Metrics that can't be written in a local spill log, to be replayed later. Once the spill log is set, the
+     * number of Metric writes in flight is capped, and Metrics beyond the cap are spilled rather than queued in memory.
+     */
+    public static void setSpillLog(SpillLog log) {
+        spillLog = log;
+    }
+
+    /**
+     * Build the statements that persist a Metric: the Metric itself and its index entries. Counters are aggregated
+     * separately (see createMetric).
+     */
+    public static List<BoundStatement> metricStatements(Metric metric) throws IOException {
+        List<BoundStatement> statements = new ArrayList<>();
+        statements.add(psWriteMetric.bind(metric.getId(), codec.encode(metric), ttl));
+        if (metric.getTags() != null) for (String tag : metric.getTags())
+            statements.add(psWriteMetricTag.bind(tag, metric.getId(), metric.getDuration(), ttl));
+        if (metric.getEntityIds() != null) for (String entity_id : metric.getEntityIds())
+            statements.add(psWriteIdEntity.bind(entity_id, metric.getId(), ttl));
+        return statements;
+    }
+
     public static Metric createMetric(@NotNull Metric metric) throws IOException {
         // Atomicity is less important for metrics, and they're very high volume, so we don't bother using BatchStatement here
         if (metric.getId() == null) metric.setId(TuidFactory.getId());
-        session.executeAsync(psWriteMetric.bind(metric.getId(), JsonSerializer.getJson(metric), ttl));
         if (metric.getTags() != null) for (String tag : metric.getTags()) {
-            session.executeAsync(psWriteMetricTag.bind(tag, metric.getId(), metric.getDuration(), ttl));
-            session.executeAsync(psWriteCountTag.bind(tag));
-            session.executeAsync(psWriteDurationTag.bind(metric.getDuration() == null ? 0 : metric.getDuration(), tag));
+            CounterAggregator.increment(psWriteCountTag, session, 1, tag);
+            CounterAggregator.increment(psWriteDurationTag, session, metric.getDuration() == null ? 0 : metric.getDuration(), tag);
+            MetricAggregator.record(tag, metric.getDuration() == null ? 0 : metric.getDuration(), metric.getId());
+        }
+        List<BoundStatement> statements = metricStatements(metric);
+        if (spillLog == null) {
+            for (BoundStatement statement : statements) session.executeAsync(statement);
+            return metric;
+        }
+        // Backpressure: with too many writes outstanding, spill rather than pile up requests in memory
+        if (pendingWrites.get() >= spillLog.getConfig().getMaxPendingWrites()) {
+            spill(metric);
+            return metric;
+        }
+        AtomicBoolean spilled = new AtomicBoolean(false);
+        for (BoundStatement statement : statements) {
+            pendingWrites.incrementAndGet();
+            Futures.addCallback(session.executeAsync(statement), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                    pendingWrites.decrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    pendingWrites.decrementAndGet();
+                    if (spilled.compareAndSet(false, true)) spill(metric); // rewriting the rest is harmless
+                }
+            }, MoreExecutors.directExecutor());
         }
-        if (metric.getEntityIds() != null) for (String entity_id : metric.getEntityIds())
-            session.executeAsync(psWriteIdEntity.bind(entity_id, metric.getId(), ttl));
         return metric;
     }
 
+    /**
+     * Record a duration without persisting a Metric: it's counted and added to the tag's current rollup window only.
+     * Use this for high-volume measurements (e.g. per-request latency), where a row per measurement is too costly.
+     *
+     * @param tag        Metric tag
+     * @param duration   duration in milliseconds
+     * @param exemplarId ID of the thing measured, kept if it's among the window's slowest (optional)
+     */
+    public static void recordDuration(@NotNull String tag, long duration, String exemplarId) {
+        CounterAggregator.increment(psWriteCountTag, session, 1, tag);
+        CounterAggregator.increment(psWriteDurationTag, session, duration, tag);
+        MetricAggregator.record(tag, duration, exemplarId);
+    }
+
+    private static void spill(Metric metric) {
+        try {
+            if (spillLog.append(SpillLog.Kind.METRIC, JsonSerializer.getSmile(metric))) return;
+        } catch (IOException e) {
+            LOG.error("Unable to spill Metric {}: {}", metric.getId(), e.getMessage());
+        }
+        LOG.error("Metric {} dropped: unable to write or spill it", metric.getId());
+    }
+
     public static Metric readMetric(@NotNull String id) throws IOException {
         Row row = session.execute(psReadMetric.bind(id)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), Metric.class);
+        return StorageCodec.decode(row, Metric.class);
     }
 
     public static void deleteMetric(@NotNull String id) throws IOException {
@@ -154,13 +241,6 @@ public class Metrics {
         }
     }
 
-    private static List<String> readMetricIds(BoundStatement query) {
-        ArrayList<String> ids = new ArrayList<>();
-        ResultSet resultSet = session.execute(query);
-        for (Row idRow : resultSet.all()) ids.add(idRow.getString("metric_id"));
-        return ids;
-    }
-
     public static SortedSet<Metric> readMetrics(List<String> ids, Comparator<Metric> order) throws IOException, ExecutionException, InterruptedException {
         // Send asynchronous queries to Cassandra
         List<ResultSetFuture> futures = Lists.newArrayListWithExpectedSize(ids.size());
@@ -169,30 +249,36 @@ public class Metrics {
         ConcurrentSkipListSet<Metric> metrics = new ConcurrentSkipListSet<>(order);
         for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
             Row row = future.get().one();
-            if (row != null) metrics.add(JsonSerializer.getObject(row.getString("json"), Metric.class));
+            if (row != null) metrics.add(StorageCodec.decode(row, Metric.class));
         }
         return metrics;
     }
 
-    public static SortedSet<Metric> readMetricsByTag(@NotNull String tag, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return readMetrics(readMetricIds(psReadIdsTag.bind(tag, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Metric.Chronological);
+    private static Page<Metric> readMetricPage(BoundStatement query, Integer limit, String cursor) throws IOException, ExecutionException, InterruptedException {
+        Page<String> ids = PageCursor.read(session, query, limit, cursor, row -> row.getString("metric_id"));
+        return new Page<>(new ArrayList<>(readMetrics(ids.getItems(), Metric.Chronological)), ids.getNext());
     }
 
-    public static SortedSet<Metric> readMetricsByEntity(@NotNull String entityId, Integer limit, String offset) throws IOException, ExecutionException, InterruptedException {
-        return readMetrics(readMetricIds(psReadIdsEntity.bind(entityId, offset == null ? "0" : offset, limit == null ? 100000 : limit)), Metric.Chronological);
+    public static Page<Metric> readMetricsByTag(@NotNull String tag, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return readMetricPage(psReadIdsTag.bind(tag, offset == null ? "0" : offset, Integer.MAX_VALUE), limit, cursor);
+    }
+
+    public static Page<Metric> readMetricsByEntity(@NotNull String entityId, Integer limit, String offset, String cursor) throws IOException, ExecutionException, InterruptedException {
+        return readMetricPage(psReadIdsEntity.bind(entityId, offset == null ? "0" : offset, Integer.MAX_VALUE), limit, cursor);
     }
 
     public static Map<String, Long> readMetricDurationsByTag(@NotNull String tag, Integer limit, String offset) {
         Map<String, Long> map = new TreeMap<>();
         ResultSet resultSet = session.execute(psReadMetricDurationsTag.bind(tag, offset == null ? "0" : offset, limit == null ? 100000 : limit));
-        for (Row row : resultSet.all()) map.put(row.getString("metric_id"), row.getLong("duration"));
+        for (Row row : resultSet) map.put(row.getString("metric_id"), row.getLong("duration"));
         return map;
     }
 
     public static MetricStat readMetricDurationStatsByTag(@NotNull String tag, Integer limit, String offset) {
         MetricStat stat = new MetricStat(tag);
         ResultSet resultSet = session.execute(psReadMetricDurationsTag.bind(tag, offset == null ? "0" : offset, limit == null ? 100000 : limit));
-        for (Row row : resultSet.all()) stat.addDuration(row.getString("metric_id"), row.getLong("duration"));
+        // rows are paged in as they're iterated, and only the histogram is retained
+        for (Row row : resultSet) stat.addDuration(row.getString("metric_id"), row.getLong("duration"));
         return stat;
     }
 
@@ -201,7 +287,18 @@ public class Metrics {
         return readMetricDurationsByTag(tag, null, offset);
     }
 
-    public static MetricStat readRecentMetricDurationStatsByTag(@NotNull String tag, @NotNull Integer seconds) {
+    /**
+     * Compute recent duration stats for a tag, from its rollups if there are any in the time range, otherwise from the
+     * Metrics themselves (e.g. for tags only recorded before rollups were enabled).
+     *
+     * @param maxResolution coarsest acceptable rollup resolution, in seconds (optional)
+     */
+    public static MetricStat readRecentMetricDurationStatsByTag(@NotNull String tag, @NotNull Integer seconds, Integer maxResolution) throws ExecutionException, InterruptedException {
+        if (MetricRollups.isInitialized()) {
+            long to = System.currentTimeMillis();
+            MetricStat stat = MetricRollups.readStats(tag, to - seconds * 1000L, to, maxResolution);
+            if (stat.getCount() > 0) return stat;
+        }
         String offset = TuidFactory.getFirstId((long) -seconds * 1000L);
         return readMetricDurationStatsByTag(tag, null, offset);
     }
@@ -209,7 +306,7 @@ public class Metrics {
     public static List<MetricCount> readMetricCountsByTag() {
         List<MetricCount> counts = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadCountsTag.bind());
-        for (Row row : resultSet.all())
+        for (Row row : resultSet)
             counts.add(new MetricCount(row.getString("tag"), row.getLong("metric_count"), row.getLong("metric_duration")));
         Collections.sort(counts);
         return counts;
@@ -5,23 +5,27 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.config.NodeLeaseConfiguration;
+import info.voxtechnica.appraisers.db.StatementRegistry;
 import info.voxtechnica.appraisers.model.Node;
+import info.voxtechnica.appraisers.model.NodeLease;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.SortedSet;
+import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Node IDs are used by the TuidFactory to ensure cluster-unique identifiers (they're part of the 18 bits of entropy).
  * Each node in the application cluster gets an 8-bit (one byte) nodeId, ranging from -127 to 127.
+ * <p/>
+ * A running node holds its nodeId as a lease (see NodeLease), acquired with a lightweight transaction, so two nodes
+ * starting at once can't take the same ID, and renewed by a heartbeat (see NodeLeaseKeeper). IDs whose leases have
+ * expired are reclaimed after a safety gap, so an autoscaling fleet with changing IP addresses doesn't exhaust them.
+ * The nodes table keeps the history of assignments.
  */
 public class Nodes {
     private static final Logger LOG = LoggerFactory.getLogger(Nodes.class);
@@ -35,6 +39,13 @@ public class Nodes {
     private static PreparedStatement psWriteNodeIp = null;
     private static PreparedStatement psReadNodeIp = null;
     private static PreparedStatement psDeleteNodeIp = null;
+    private static PreparedStatement psReadLeases = null;
+    private static PreparedStatement psCreateLease = null;
+    private static PreparedStatement psTakeLease = null;
+    private static PreparedStatement psRenewLease = null;
+    private static PreparedStatement psReleaseLease = null;
+    private static final String RELEASED = ""; // owner of a released lease
+    private static NodeLeaseConfiguration config = new NodeLeaseConfiguration();
 
     private static final String createTableNodes = "CREATE TABLE IF NOT EXISTS nodes (\n" +
             "  id int,\n" +
@@ -56,27 +67,47 @@ public class Nodes {
             "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
             "  compression={'sstable_compression': 'LZ4Compressor'};\n";
 
-    public static void initialize(CassandraClient dbClient) {
+    private static final String createTableNodeLeases = "CREATE TABLE IF NOT EXISTS node_leases (\n" +
+            "  id int,\n" +
+            "  owner text,\n" +
+            "  ip_address inet,\n" +
+            "  acquired_at timestamp,\n" +
+            "  renewed_at timestamp,\n" +
+            "  expires_at timestamp,\n" +
+            "  PRIMARY KEY (id)\n" +
+            ") WITH\n" +
+            "  comment='Node ID Leases' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    public static void initialize(CassandraClient dbClient, NodeLeaseConfiguration configuration) {
         if (!initialized) {
             session = dbClient.getSession();
+            config = configuration;
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableNodes);
                     session.execute(createTableNodesIp);
+                    session.execute(createTableNodeLeases);
                 } catch (Exception e) {
                     LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
                 }
             }
             // Prepare statements (invokes a call to Cassandra to validate each one)
-            psWriteNode = session.prepare("INSERT INTO nodes (id, updatedAt, ip_address) VALUES (?, ?, ?)");
-            psReadNode = session.prepare("SELECT * FROM nodes WHERE id=? ORDER BY updatedAt DESC LIMIT 1");
-            psReadNodeHistory = session.prepare("SELECT * FROM nodes WHERE id=?");
-            psReadNodeIds = session.prepare("SELECT DISTINCT id FROM nodes");
-            psDeleteNode = session.prepare("DELETE FROM nodes WHERE id=?");
-            psWriteNodeIp = session.prepare("INSERT INTO nodes_ip (ip_address, id, createdAt) VALUES (?, ?, ?)");
-            psReadNodeIp = session.prepare("SELECT * FROM nodes_ip WHERE ip_address=?");
-            psDeleteNodeIp = session.prepare("DELETE FROM nodes_ip WHERE ip_address=?");
+            psWriteNode = StatementRegistry.prepare(session, "Nodes.writeNode", "INSERT INTO nodes (id, updatedAt, ip_address) VALUES (?, ?, ?)");
+            psReadNode = StatementRegistry.prepare(session, "Nodes.readNode", "SELECT * FROM nodes WHERE id=? ORDER BY updatedAt DESC LIMIT 1");
+            psReadNodeHistory = StatementRegistry.prepare(session, "Nodes.readNodeHistory", "SELECT * FROM nodes WHERE id=?");
+            psReadNodeIds = StatementRegistry.prepare(session, "Nodes.readNodeIds", "SELECT DISTINCT id FROM nodes");
+            psDeleteNode = StatementRegistry.prepare(session, "Nodes.deleteNode", "DELETE FROM nodes WHERE id=?");
+            psWriteNodeIp = StatementRegistry.prepare(session, "Nodes.writeNodeIp", "INSERT INTO nodes_ip (ip_address, id, createdAt) VALUES (?, ?, ?)");
+            psReadNodeIp = StatementRegistry.prepare(session, "Nodes.readNodeIp", "SELECT * FROM nodes_ip WHERE ip_address=?");
+            psDeleteNodeIp = StatementRegistry.prepare(session, "Nodes.deleteNodeIp", "DELETE FROM nodes_ip WHERE ip_address=?");
+            psReadLeases = StatementRegistry.prepare(session, "Nodes.readLeases", "SELECT * FROM node_leases");
+            psCreateLease = StatementRegistry.prepare(session, "Nodes.createLease", "INSERT INTO node_leases (id, owner, ip_address, acquired_at, renewed_at, expires_at) VALUES (?, ?, ?, ?, ?, ?) IF NOT EXISTS");
+            psTakeLease = StatementRegistry.prepare(session, "Nodes.takeLease", "UPDATE node_leases SET owner=?, ip_address=?, acquired_at=?, renewed_at=?, expires_at=? WHERE id=? IF owner=? AND expires_at=?");
+            psRenewLease = StatementRegistry.prepare(session, "Nodes.renewLease", "UPDATE node_leases SET renewed_at=?, expires_at=? WHERE id=? IF owner=?");
+            psReleaseLease = StatementRegistry.prepare(session, "Nodes.releaseLease", "UPDATE node_leases SET owner=?, expires_at=? WHERE id=? IF owner=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -109,7 +140,7 @@ public class Nodes {
     public static List<Node> readNodeHistory(Byte id) {
         List<Node> list = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadNodeHistory.bind((int) id));
-        for (Row row : resultSet.all())
+        for (Row row : resultSet)
             list.add(new Node((byte) row.getInt("id"), row.getInet("ip_address"), row.getTimestamp("updatedAt")));
         return list;
     }
@@ -123,7 +154,7 @@ public class Nodes {
     public static List<Byte> readNodeIds() {
         List<Byte> list = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadNodeIds.bind());
-        for (Row row : resultSet.all())
+        for (Row row : resultSet)
             list.add((byte) row.getInt("id"));
         return list;
     }
@@ -155,28 +186,125 @@ public class Nodes {
     }
 
     /**
-     * Get an auto-assigned node ID reservation for use when initializing a TuidFactory.
+     * Read every Node ID lease, with its state as of now.
+     */
+    public static List<NodeLease> readLeases() {
+        long now = System.currentTimeMillis();
+        List<NodeLease> list = new ArrayList<>();
+        for (Row row : session.execute(psReadLeases.bind())) {
+            NodeLease lease = new NodeLease((byte) row.getInt("id"), row.getString("owner"), row.getInet("ip_address"),
+                    row.getTimestamp("acquired_at"), row.getTimestamp("renewed_at"), row.getTimestamp("expires_at"));
+            lease.setState(stateOf(lease, now));
+            list.add(lease);
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static NodeLease.State stateOf(NodeLease lease, long now) {
+        long expiresAt = lease.getExpiresAt() == null ? 0 : lease.getExpiresAt().getTime();
+        if (now < expiresAt) return NodeLease.State.ACTIVE;
+        if (now < expiresAt + config.getReclaimGapSeconds() * 1000L) return NodeLease.State.EXPIRED;
+        return NodeLease.State.RECLAIMABLE;
+    }
+
+    /**
+     * Acquire a Node ID lease for use when initializing a TuidFactory. A lease last held from this IP address is taken
+     * over once it has been released, or has passed the reclaim gap, so a restarted node usually keeps its ID; one that
+     * has merely lapsed is left alone unless this process owns it, since its holder may still be issuing IDs until the
+     * gap ends (e.g. through a Cassandra outage), and another live process may share the address (e.g. behind NAT, or
+     * during an overlapping restart). Otherwise, the lease is for a randomly-selected ID that has never been assigned, or failing that, the ID whose lease expired
+     * longest ago (and at least the reclaim gap ago). IDs assigned before leases existed are used last, since a node
+     * still running an older version may hold one. Every claim is a lightweight transaction, conditional on the lease
+     * being unchanged since it was read, so concurrent claimants can't both win.
      *
-     * @param ipAddress The IP address of the application server, assuming only one TuidFactory per IP address
-     * @return the previously-assigned Node, or an available Node on first use
+     * @param ipAddress The IP address of the application server
+     * @param owner     A token unique to this process
+     * @return the acquired lease, or null if no Node ID is available
      */
-    public static Node getNode(InetAddress ipAddress) {
+    public static NodeLease acquireLease(InetAddress ipAddress, String owner) {
         if (ipAddress == null) return null;
-        // Look for an existing reservation
-        Node node = readNode(ipAddress);
-        if (node != null) return updateNode(node);
-        // Get a list of currently-used nodeIds
-        List<Byte> existingNodeIds = readNodeIds();
-        // Create a list of available nodeIds
-        List<Byte> availableNodeIds = new ArrayList<>();
-        for (byte b = 127; b >= -127; b--) if (!existingNodeIds.contains(b)) availableNodeIds.add(b);
-        // If we've run out of IDs, return null
-        if (availableNodeIds.isEmpty()) return null;
-        // Create a new Node using a randomly-selected available nodeId
-        node = new Node();
-        node.setId(availableNodeIds.get(ThreadLocalRandom.current().nextInt(0, availableNodeIds.size())));
-        node.setIpAddress(ipAddress);
-        return createNode(node);
+        long now = System.currentTimeMillis();
+        List<NodeLease> leases = readLeases();
+        Set<Byte> leasedIds = new HashSet<>();
+        List<NodeLease> candidates = new ArrayList<>();
+        for (NodeLease lease : leases) {
+            leasedIds.add(lease.getId());
+            if (ipAddress.equals(lease.getIpAddress()) && (lease.getState() == NodeLease.State.RECLAIMABLE
+                    || RELEASED.equals(lease.getOwner()) || owner.equals(lease.getOwner())))
+                candidates.add(lease);
+        }
+        Set<Byte> legacyIds = new HashSet<>(readNodeIds());
+        List<NodeLease> unused = new ArrayList<>();
+        List<NodeLease> legacy = new ArrayList<>();
+        for (byte b = 127; b >= -127; b--) {
+            if (leasedIds.contains(b)) continue;
+            NodeLease lease = new NodeLease();
+            lease.setId(b);
+            (legacyIds.contains(b) ? legacy : unused).add(lease);
+        }
+        Collections.shuffle(unused);
+        candidates.addAll(unused);
+        leases.stream().filter(lease -> lease.getState() == NodeLease.State.RECLAIMABLE && !ipAddress.equals(lease.getIpAddress()))
+                .sorted(Comparator.comparing(NodeLease::getExpiresAt, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .forEach(candidates::add);
+        Collections.shuffle(legacy);
+        candidates.addAll(legacy);
+        for (NodeLease candidate : candidates) {
+            NodeLease lease = takeLease(candidate, ipAddress, owner, now);
+            if (lease != null) {
+                updateNode(new Node(lease.getId(), ipAddress, lease.getAcquiredAt()));
+                return lease;
+            }
+        }
+        return null;
+    }
+
+    private static NodeLease takeLease(NodeLease candidate, InetAddress ipAddress, String owner, long now) {
+        Date acquiredAt = new Date(now);
+        Date expiresAt = new Date(now + config.getLeaseSeconds() * 1000L);
+        boolean applied;
+        if (candidate.getOwner() == null)
+            applied = session.execute(psCreateLease.bind((int) candidate.getId(), owner, ipAddress, acquiredAt, acquiredAt, expiresAt)).wasApplied();
+        else
+            applied = session.execute(psTakeLease.bind(owner, ipAddress, acquiredAt, acquiredAt, expiresAt, (int) candidate.getId(),
+                    candidate.getOwner(), candidate.getExpiresAt())).wasApplied();
+        if (!applied) return null;
+        NodeLease lease = new NodeLease(candidate.getId(), owner, ipAddress, acquiredAt, acquiredAt, expiresAt);
+        lease.setState(NodeLease.State.ACTIVE);
+        return lease;
     }
 
+    /**
+     * Extend a lease, if it's still held by its owner (even if it has expired: nobody else can take it until it's
+     * reclaimable, and then only with a conditional write that this one would fail).
+     *
+     * @return true if the lease was renewed, false if another node has taken its Node ID
+     */
+    public static boolean renewLease(NodeLease lease) {
+        Date renewedAt = new Date();
+        Date expiresAt = new Date(renewedAt.getTime() + config.getLeaseSeconds() * 1000L);
+        if (!session.execute(psRenewLease.bind(renewedAt, expiresAt, (int) lease.getId(), lease.getOwner())).wasApplied())
+            return false;
+        lease.setRenewedAt(renewedAt);
+        lease.setExpiresAt(expiresAt);
+        lease.setState(NodeLease.State.ACTIVE);
+        return true;
+    }
+
+    /**
+     * Expire a lease now (e.g. on shutdown), once its holder has stopped issuing IDs with it. A released lease can be
+     * taken over right away from the same IP address, or by any node once the reclaim gap has passed.
+     */
+    public static void releaseLease(NodeLease lease) {
+        Date expiresAt = new Date();
+        if (session.execute(psReleaseLease.bind(RELEASED, expiresAt, (int) lease.getId(), lease.getOwner())).wasApplied()) {
+            lease.setExpiresAt(expiresAt);
+            lease.setState(NodeLease.State.EXPIRED);
+        }
+    }
+
+    public static NodeLeaseConfiguration getConfig() {
+        return config;
+    }
 }
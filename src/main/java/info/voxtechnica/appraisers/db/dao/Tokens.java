@@ -6,6 +6,8 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.CounterAggregator;
 import info.voxtechnica.appraisers.model.Token;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -66,12 +68,12 @@ public class Tokens {
                 }
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
-            psWriteToken = session.prepare("INSERT INTO oauth_tokens (oauth_token, user_id, last_use) VALUES (?, ?, ?)");
-            psReadToken = session.prepare("SELECT * FROM oauth_tokens WHERE oauth_token=?");
-            psDeleteToken = session.prepare("DELETE FROM oauth_tokens WHERE oauth_token=?");
-            psWriteUserToken = session.prepare("UPDATE oauth_tokens_user SET hits = hits + 1 WHERE user_id=? AND oauth_token=?");
-            psReadUserTokens = session.prepare("SELECT oauth_token, hits FROM oauth_tokens_user WHERE user_id=? LIMIT ?");
-            psDeleteUserTokens = session.prepare("DELETE FROM oauth_tokens_user WHERE user_id=?");
+            psWriteToken = StatementRegistry.prepare(session, "Tokens.writeToken", "INSERT INTO oauth_tokens (oauth_token, user_id, last_use) VALUES (?, ?, ?)");
+            psReadToken = StatementRegistry.prepare(session, "Tokens.readToken", "SELECT * FROM oauth_tokens WHERE oauth_token=?");
+            psDeleteToken = StatementRegistry.prepare(session, "Tokens.deleteToken", "DELETE FROM oauth_tokens WHERE oauth_token=?");
+            psWriteUserToken = StatementRegistry.prepare(session, "Tokens.writeUserToken", "UPDATE oauth_tokens_user SET hits = hits + ? WHERE user_id=? AND oauth_token=?");
+            psReadUserTokens = StatementRegistry.prepare(session, "Tokens.readUserTokens", "SELECT oauth_token, hits FROM oauth_tokens_user WHERE user_id=? LIMIT ?");
+            psDeleteUserTokens = StatementRegistry.prepare(session, "Tokens.deleteUserTokens", "DELETE FROM oauth_tokens_user WHERE user_id=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -83,7 +85,7 @@ public class Tokens {
     public static UUID createOAuthToken(@NotNull String userId) {
         UUID token = UUIDs.timeBased();
         session.executeAsync(psWriteToken.bind(token, userId, new Date(token.timestamp())));
-        session.executeAsync(psWriteUserToken.bind(userId, token));
+        CounterAggregator.increment(psWriteUserToken, session, 1, userId, token);
         return token;
     }
 
@@ -103,13 +105,13 @@ public class Tokens {
 
     public static void updateUserToken(@NotNull String userId, @NotNull UUID token) {
         session.executeAsync(psWriteToken.bind(token, userId, new Date(System.currentTimeMillis())));
-        session.executeAsync(psWriteUserToken.bind(userId, token));
+        CounterAggregator.increment(psWriteUserToken, session, 1, userId, token);
     }
 
     public static List<Token> readUserTokens(@NotNull String userId, Integer limit) {
         ArrayList<Token> tokens = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadUserTokens.bind(userId, limit == null ? 100000 : limit));
-        for (Row row : resultSet.all()) {
+        for (Row row : resultSet) {
             Token token = new Token();
             token.setUserId(userId);
             token.setOAuthToken(row.getUUID("oauth_token"));
@@ -6,11 +6,12 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.db.StorageCodec;
 import info.voxtechnica.appraisers.client.SendGridClient;
 import info.voxtechnica.appraisers.config.ApplicationConfiguration;
 import info.voxtechnica.appraisers.model.User;
 import info.voxtechnica.appraisers.model.Message;
-import info.voxtechnica.appraisers.util.JsonSerializer;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -30,11 +31,13 @@ public class Users {
     private static final Logger LOG = LoggerFactory.getLogger(Users.class);
     private static boolean initialized = false;
     private static Session session;
+    private static StorageCodec codec;
     private static PreparedStatement psWriteVersion;
     private static PreparedStatement psReadAllIds;
     private static PreparedStatement psReadVersion;
     private static PreparedStatement psReadVersions;
     private static PreparedStatement psReadCurrentVersion;
+    private static PreparedStatement psReadCurrentUpdateId;
     private static PreparedStatement psDeleteVersions;
     private static PreparedStatement psWriteEmailId;
     private static PreparedStatement psReadEmailId;
@@ -44,6 +47,7 @@ public class Users {
             "  id text,\n" +
             "  update_id text,\n" +
             "  json text,\n" +
+            "  data blob,\n" +
             "  PRIMARY KEY ((id), update_id)\n" +
             ") WITH\n" +
             "  comment='User Version History' AND\n" +
@@ -62,10 +66,12 @@ public class Users {
     public static void initialize(CassandraClient dbClient) {
         if (!initialized) {
             session = dbClient.getSession();
+            codec = dbClient.getStorageCodec();
             // Create tables if they're missing
             if (dbClient.isCreateIfMissing()) {
                 try {
                     session.execute(createTableUsers);
+                    dbClient.addColumnIfMissing("users", StorageCodec.DATA_COLUMN, "blob");
                     session.execute(createTableUserIdsEmail);
                 } catch (Exception e) {
                     LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
@@ -73,16 +79,17 @@ public class Users {
             }
             // Prepare statements (invokes a call to Cassandra to validate each one):
             // regular object persistence
-            psWriteVersion = session.prepare("INSERT INTO users (id, update_id, json) VALUES (?, ?, ?)");
-            psReadAllIds = session.prepare("SELECT DISTINCT id FROM users LIMIT ?");
-            psReadVersion = session.prepare("SELECT * FROM users WHERE id=? AND update_id=?");
-            psReadVersions = session.prepare("SELECT * FROM users WHERE id=? ORDER BY update_id ASC");
-            psReadCurrentVersion = session.prepare("SELECT * FROM users WHERE id=? ORDER BY update_id DESC LIMIT 1");
-            psDeleteVersions = session.prepare("DELETE FROM users WHERE id=?");
+            psWriteVersion = StatementRegistry.prepare(session, "Users.writeVersion", "INSERT INTO users (id, update_id, " + codec.getColumn() + ") VALUES (?, ?, ?)");
+            psReadAllIds = StatementRegistry.prepare(session, "Users.readAllIds", "SELECT DISTINCT id FROM users LIMIT ?");
+            psReadVersion = StatementRegistry.prepare(session, "Users.readVersion", "SELECT * FROM users WHERE id=? AND update_id=?");
+            psReadVersions = StatementRegistry.prepare(session, "Users.readVersions", "SELECT * FROM users WHERE id=? ORDER BY update_id ASC");
+            psReadCurrentVersion = StatementRegistry.prepare(session, "Users.readCurrentVersion", "SELECT * FROM users WHERE id=? ORDER BY update_id DESC LIMIT 1");
+            psReadCurrentUpdateId = StatementRegistry.prepare(session, "Users.readCurrentUpdateId", "SELECT update_id FROM users WHERE id=? ORDER BY update_id DESC LIMIT 1");
+            psDeleteVersions = StatementRegistry.prepare(session, "Users.deleteVersions", "DELETE FROM users WHERE id=?");
             // look up user from email address
-            psWriteEmailId = session.prepare("INSERT INTO user_ids_email (email, id) VALUES (?, ?)");
-            psReadEmailId = session.prepare("SELECT id FROM user_ids_email WHERE email=?");
-            psDeleteEmailId = session.prepare("DELETE FROM user_ids_email WHERE email=?");
+            psWriteEmailId = StatementRegistry.prepare(session, "Users.writeEmailId", "INSERT INTO user_ids_email (email, id) VALUES (?, ?)");
+            psReadEmailId = StatementRegistry.prepare(session, "Users.readEmailId", "SELECT id FROM user_ids_email WHERE email=?");
+            psDeleteEmailId = StatementRegistry.prepare(session, "Users.deleteEmailId", "DELETE FROM user_ids_email WHERE email=?");
             initialized = true;
         } else LOG.info("Previously initialized");
     }
@@ -112,9 +119,10 @@ public class Users {
         if (user.getStatus() == null) user.setStatus(User.Status.PENDING);
         // persist record(s)
         BatchStatement batch = new BatchStatement();
-        batch.add(psWriteVersion.bind(user.getId(), user.getUpdateId(), JsonSerializer.getJson(user)));
+        batch.add(psWriteVersion.bind(user.getId(), user.getUpdateId(), codec.encode(user)));
         if (validEmailProvided) batch.add(psWriteEmailId.bind(user.getEmail(), user.getId()));
         session.execute(batch);
+        Watermarks.advance(Watermarks.USERS);
         return user;
     }
 
@@ -138,9 +146,10 @@ public class Users {
         if (oldUser != null && oldUser.validEmail() && !oldUser.getEmail().equals(user.getEmail()))
             batch.add(psDeleteEmailId.bind(oldUser.getEmail()));
         // write a new version of the user
-        batch.add(psWriteVersion.bind(user.getId(), user.getUpdateId(), JsonSerializer.getJson(user)));
+        batch.add(psWriteVersion.bind(user.getId(), user.getUpdateId(), codec.encode(user)));
         if (user.validEmail()) batch.add(psWriteEmailId.bind(user.getEmail(), user.getId()));
         session.execute(batch);
+        Watermarks.advance(Watermarks.USERS);
         return user;
     }
 
@@ -157,6 +166,7 @@ public class Users {
             if (user.getEmail() != null) batch.add(psDeleteEmailId.bind(user.getEmail()));
             batch.add(psDeleteVersions.bind(user.getId()));
             session.execute(batch);
+            Watermarks.advance(Watermarks.USERS);
         }
     }
 
@@ -185,7 +195,21 @@ public class Users {
         if (userId == null) return null;
         Row row = session.execute(psReadCurrentVersion.bind(userId)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), User.class);
+        return StorageCodec.decode(row, User.class);
+    }
+
+    /**
+     * Get the current updateId of the specified User (a clustering key read), for validating cached copies.
+     *
+     * @param idOrEmail user ID or email address
+     * @return updateId, or null if the User doesn't exist
+     */
+    public static String readUserUpdateId(String idOrEmail) {
+        if (idOrEmail == null) return null;
+        String userId = idOrEmail.contains("@") ? readUserId(idOrEmail) : idOrEmail;
+        if (userId == null) return null;
+        Row row = session.execute(psReadCurrentUpdateId.bind(userId)).one();
+        return row == null ? null : row.getString("update_id");
     }
 
     /**
@@ -200,7 +224,7 @@ public class Users {
         if (id == null || updateId == null) return null;
         Row row = session.execute(psReadVersion.bind(id, updateId)).one();
         if (row == null) return null;
-        return JsonSerializer.getObject(row.getString("json"), User.class);
+        return StorageCodec.decode(row, User.class);
     }
 
     /**
@@ -216,8 +240,8 @@ public class Users {
         if (userId == null) return null;
         ArrayList<User> versions = new ArrayList<>();
         ResultSet resultSet = session.execute(psReadVersions.bind(userId));
-        for (Row row : resultSet.all()) {
-            versions.add(JsonSerializer.getObject(row.getString("json"), User.class));
+        for (Row row : resultSet) {
+            versions.add(StorageCodec.decode(row, User.class));
         }
         return versions;
     }
@@ -225,7 +249,7 @@ public class Users {
     private static List<String> readIds(BoundStatement query, String idField) {
         ArrayList<String> ids = new ArrayList<>();
         ResultSet resultSet = session.execute(query);
-        for (Row idRow : resultSet.all())
+        for (Row idRow : resultSet)
             ids.add(idRow.getString(idField));
         return ids;
     }
@@ -238,7 +262,7 @@ public class Users {
         ConcurrentSkipListSet<User> users = new ConcurrentSkipListSet<>(order);
         for (ListenableFuture<ResultSet> future : Futures.inCompletionOrder(futures)) {
             Row row = future.get().one();
-            if (row != null) users.add(JsonSerializer.getObject(row.getString("json"), User.class));
+            if (row != null) users.add(StorageCodec.decode(row, User.class));
         }
         return users;
     }
@@ -0,0 +1,77 @@
+package info.voxtechnica.appraisers.db.dao;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watermarks record when a collection (e.g. all Licenses) last changed, as a TUID written on every API create, update,
+ * and delete, and at the start, about once a second during, and at the end of each License import (rather than for
+ * every version it writes). A watermark is a cheap, single-row validator for list responses: if it hasn't moved,
+ * neither has the list.
+ * A fresh TUID is used rather than the entity's updateId, since historical imports write versions with older updateIds.
+ */
+public class Watermarks {
+    private static final Logger LOG = LoggerFactory.getLogger(Watermarks.class);
+    private static boolean initialized = false;
+    private static Session session;
+
+    public static final String LICENSES = "licenses";
+    public static final String USERS = "users";
+
+    private static PreparedStatement psWriteWatermark;
+    private static PreparedStatement psReadWatermark;
+
+    private static final String createTableWatermarks = "CREATE TABLE IF NOT EXISTS watermarks (\n" +
+            "  name text,\n" +
+            "  update_id text,\n" +
+            "  PRIMARY KEY (name)\n" +
+            ") WITH\n" +
+            "  comment='Collection Change Watermarks' AND\n" +
+            "  compaction={'class': 'LeveledCompactionStrategy'} AND\n" +
+            "  compression={'sstable_compression': 'LZ4Compressor'};\n";
+
+    public static void initialize(CassandraClient dbClient) {
+        if (!initialized) {
+            session = dbClient.getSession();
+            // Create tables if they're missing
+            if (dbClient.isCreateIfMissing()) {
+                try {
+                    session.execute(createTableWatermarks);
+                } catch (Exception e) {
+                    LOG.error("Error creating table: {}", ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+            // Prepare statements (invokes a call to Cassandra to validate each one):
+            psWriteWatermark = StatementRegistry.prepare(session, "Watermarks.writeWatermark", "INSERT INTO watermarks (name, update_id) VALUES (?, ?)");
+            psReadWatermark = StatementRegistry.prepare(session, "Watermarks.readWatermark", "SELECT update_id FROM watermarks WHERE name=?");
+            initialized = true;
+        } else LOG.info("Previously initialized");
+    }
+
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Record a change to the named collection.
+     */
+    public static void advance(String name) {
+        if (initialized) session.executeAsync(psWriteWatermark.bind(name, TuidFactory.getId()));
+    }
+
+    /**
+     * @return the named collection's watermark, or null if it has none yet
+     */
+    public static String read(String name) {
+        if (!initialized) return null;
+        Row row = session.execute(psReadWatermark.bind(name)).one();
+        return row == null ? null : row.getString("update_id");
+    }
+}
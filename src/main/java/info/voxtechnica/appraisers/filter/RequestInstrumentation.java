@@ -0,0 +1,186 @@
+package info.voxtechnica.appraisers.filter;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.CountingOutputStream;
+import info.voxtechnica.appraisers.db.dao.Metrics;
+import info.voxtechnica.appraisers.model.User;
+import info.voxtechnica.appraisers.util.RequestTimings;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.uri.UriTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.*;
+import javax.ws.rs.core.Feature;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RequestInstrumentation records where each API request's time goes, and feeds it to the Metric aggregator with
+ * route-level tags (see Metrics.recordDuration). For a route such as GET /v1/licenses/{id}, the tags are:
+ * <ul>
+ * <li>http.GET.v1.licenses.{id}.2xx.bearer: total time, by status class and authentication type (basic, bearer,
+ * config for users defined in the configuration file, or none)</li>
+ * <li>http.GET.v1.licenses.{id}.auth: time spent authenticating and authorizing</li>
+ * <li>http.GET.v1.licenses.{id}.db: summed Cassandra statement time</li>
+ * <li>http.GET.v1.licenses.{id}.serialize: time spent writing the response entity</li>
+ * </ul>
+ * The statement count and response entity size aren't durations, so they're kept out of the duration rollups and
+ * counts, in Dropwizard histograms named http.GET.v1.licenses.{id}.statements and .bytes.
+ * Requests that match no resource are tagged with the route "unmatched".
+ */
+public class RequestInstrumentation implements Feature {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestInstrumentation.class);
+    private static final String ROUTE = RequestInstrumentation.class.getName() + ".route";
+    private static final String TIMINGS = RequestInstrumentation.class.getName() + ".timings";
+
+    private final Set<String> configUserIds;
+    private final MetricRegistry metrics;
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param configUserIds IDs of the API users defined in the configuration file
+     * @param metrics       registry for the statement count and response size histograms
+     */
+    public RequestInstrumentation(Set<String> configUserIds, MetricRegistry metrics) {
+        this.configUserIds = configUserIds;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean configure(FeatureContext context) {
+        context.register(new RequestStart());
+        context.register(new AuthStart());
+        context.register(new AuthEnd());
+        context.register(new ResponseEnd());
+        context.register(new EntityWriter());
+        return true;
+    }
+
+    @PreMatching
+    @Priority(1)
+    private static class RequestStart implements ContainerRequestFilter {
+        @Override
+        public void filter(ContainerRequestContext request) {
+            request.setProperty(TIMINGS, RequestTimings.begin());
+        }
+    }
+
+    @Priority(Priorities.AUTHENTICATION - 1)
+    private static class AuthStart implements ContainerRequestFilter {
+        @Override
+        public void filter(ContainerRequestContext request) {
+            RequestTimings timings = (RequestTimings) request.getProperty(TIMINGS);
+            if (timings != null) timings.authStarted();
+        }
+    }
+
+    @Priority(Priorities.AUTHORIZATION + 1)
+    private static class AuthEnd implements ContainerRequestFilter {
+        @Override
+        public void filter(ContainerRequestContext request) {
+            RequestTimings timings = (RequestTimings) request.getProperty(TIMINGS);
+            if (timings != null) timings.authEnded();
+        }
+    }
+
+    /**
+     * Tag the request once the response status is known. Responses without an entity are recorded here; the rest are
+     * recorded after their entity is written.
+     */
+    @Priority(Priorities.USER)
+    private class ResponseEnd implements ContainerResponseFilter {
+        @Override
+        public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+            RequestTimings timings = (RequestTimings) request.getProperty(TIMINGS);
+            if (timings == null) return;
+            String route = "http." + request.getMethod() + "." + route(request);
+            request.setProperty(ROUTE, route);
+            String tag = route + "." + (response.getStatus() / 100) + "xx." + authType(request);
+            request.setProperty(ROUTE + ".total", tag);
+            if (!response.hasEntity()) record(timings, route, tag);
+        }
+    }
+
+    @Priority(Priorities.USER)
+    private class EntityWriter implements WriterInterceptor {
+        @Override
+        public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+            RequestTimings timings = (RequestTimings) context.getProperty(TIMINGS);
+            if (timings == null) {
+                context.proceed();
+                return;
+            }
+            OutputStream output = context.getOutputStream();
+            CountingOutputStream counter = new CountingOutputStream(output);
+            context.setOutputStream(counter);
+            long start = System.nanoTime();
+            try {
+                context.proceed();
+            } finally {
+                timings.addSerialization(System.nanoTime() - start, counter.getCount());
+                context.setOutputStream(output);
+                String route = (String) context.getProperty(ROUTE);
+                if (route != null) record(timings, route, (String) context.getProperty(ROUTE + ".total"));
+            }
+        }
+    }
+
+    /**
+     * @return the matched resource path template, with slashes as dots (e.g. v1.licenses.{id}), or "unmatched"
+     */
+    private static String route(ContainerRequestContext request) {
+        if (!(request.getUriInfo() instanceof ExtendedUriInfo)) return "unmatched";
+        List<UriTemplate> templates = ((ExtendedUriInfo) request.getUriInfo()).getMatchedTemplates();
+        if (templates.isEmpty()) return "unmatched";
+        StringBuilder path = new StringBuilder();
+        for (int i = templates.size() - 1; i >= 0; i--) path.append('/').append(templates.get(i).getTemplate());
+        String route = path.toString().replaceAll("/+", ".").replaceAll("^\\.|\\.$", "");
+        return route.isEmpty() ? "root" : route;
+    }
+
+    private String authType(ContainerRequestContext request) {
+        Principal principal = request.getSecurityContext() == null ? null : request.getSecurityContext().getUserPrincipal();
+        if (principal instanceof User && configUserIds.contains(((User) principal).getId())) return "config";
+        String authorization = request.getHeaderString(HttpHeaders.AUTHORIZATION);
+        if (authorization == null) return "none";
+        if (authorization.regionMatches(true, 0, "Bearer ", 0, 7)) return "bearer";
+        if (authorization.regionMatches(true, 0, "Basic ", 0, 6)) return "basic";
+        return "other";
+    }
+
+    private void record(RequestTimings timings, String route, String tag) {
+        RequestTimings.end();
+        try {
+            Metrics.recordDuration(tag, millis(System.nanoTime() - timings.getStartNanos()), null);
+            Metrics.recordDuration(route + ".auth", millis(timings.getAuthNanos()), null);
+            Metrics.recordDuration(route + ".db", millis(timings.getStatementNanos()), null);
+            Metrics.recordDuration(route + ".serialize", millis(timings.getSerializeNanos()), null);
+            histogram(route + ".statements").update(timings.getStatements());
+            histogram(route + ".bytes").update(timings.getBytes());
+        } catch (Exception e) {
+            LOG.warn("Unable to record request timings for {}: {}", tag, e.getMessage());
+        }
+    }
+
+    private Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, metrics::histogram);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,24 @@
+package info.voxtechnica.appraisers.health;
+
+import com.codahale.metrics.health.HealthCheck;
+import info.voxtechnica.appraisers.db.NodeLeaseKeeper;
+import info.voxtechnica.appraisers.model.NodeLease;
+import info.voxtechnica.appraisers.util.TuidFactory;
+
+public class NodeLeaseHealthCheck extends HealthCheck {
+    private final NodeLeaseKeeper keeper;
+
+    public NodeLeaseHealthCheck(NodeLeaseKeeper keeper) {
+        this.keeper = keeper;
+    }
+
+    @Override
+    protected Result check() throws Exception {
+        NodeLease lease = keeper.getLease();
+        long remaining = keeper.getRemainingSeconds();
+        String message = "nodeId=" + lease.getId() + " expiresIn=" + remaining + "s";
+        if (lease.getId() != TuidFactory.getServerId())
+            return Result.unhealthy(message + " tuidFactoryNodeId=" + TuidFactory.getServerId());
+        return remaining > 0 ? Result.healthy(message) : Result.unhealthy(message + " (expired)");
+    }
+}
@@ -1,5 +1,6 @@
 package info.voxtechnica.appraisers.model;
 
+import info.voxtechnica.appraisers.util.TuidCodec;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import lombok.Data;
 import org.apache.commons.lang3.ObjectUtils;
@@ -26,6 +27,8 @@ public class Event implements Comparable<Event> {
     private LogLevel logLevel;
     private String message;
     private String stackTrace;
+    private Integer repeatCount; // identical events collapsed into this one (null if just one)
+    private Double sampleRate; // fraction of such events recorded (null if all)
 
     public Event() {}
 
@@ -65,7 +68,7 @@ public class Event implements Comparable<Event> {
     }
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
     
     public void addEntity(String entityId) {
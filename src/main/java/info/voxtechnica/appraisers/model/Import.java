@@ -1,5 +1,6 @@
 package info.voxtechnica.appraisers.model;
 
+import info.voxtechnica.appraisers.util.TuidCodec;
 import lombok.Data;
 import org.apache.commons.lang3.ObjectUtils;
 
@@ -22,7 +23,7 @@ public class Import implements Comparable<Import> {
 
     public Import(String id, Integer day, Long created, Long updated, Long ignored) {
         this.id = id;
-        this.day = day == null ? (new Tuid(id)).getYearMonthDay() : day;
+        this.day = day == null ? TuidCodec.getYearMonthDay(id) : day;
         this.created = created == null ? 0L : created;
         this.updated = updated == null ? 0L : updated;
         this.ignored = ignored == null ? 0L : ignored;
@@ -33,7 +34,7 @@ public class Import implements Comparable<Import> {
     }
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
 
     @Override
@@ -1,6 +1,8 @@
 package info.voxtechnica.appraisers.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import info.voxtechnica.appraisers.util.LicenseStandardizer;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import lombok.Data;
 import org.apache.commons.lang3.ObjectUtils;
 
@@ -24,7 +26,7 @@ public class License implements Comparable<License> {
     private String id;
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
 
     /**
@@ -33,7 +35,7 @@ public class License implements Comparable<License> {
     private String updateId;
 
     public String getUpdatedAt() {
-        return updateId == null ? null : (new Tuid(updateId)).getCreatedAt();
+        return updateId == null ? null : TuidCodec.getCreatedAt(updateId);
     }
 
     /**
@@ -218,6 +220,13 @@ public class License implements Comparable<License> {
      */
     private Map<String, String> rawData;
 
+    /**
+     * versionDepth is the number of delta-encoded versions stored since the last full (keyframe) version. It's a storage
+     * detail, set when the License is read, and it's not serialized.
+     */
+    @JsonIgnore
+    private Integer versionDepth;
+
     /**
      * Default Constructor
      */
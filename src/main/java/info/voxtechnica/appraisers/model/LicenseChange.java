@@ -0,0 +1,44 @@
+package info.voxtechnica.appraisers.model;
+
+import info.voxtechnica.appraisers.util.TuidCodec;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * A LicenseChange records a new License version, identified by its updateId. Changes sort by updateId, which is also
+ * the resumable offset for change feed consumers. The License is omitted when the version no longer exists.
+ */
+@Data
+public class LicenseChange implements Comparable<LicenseChange> {
+    private String id;
+    private String updateId;
+    private Integer day;
+    private License license;
+
+    public LicenseChange() {
+    }
+
+    public LicenseChange(String id, String updateId, Integer day, License license) {
+        this.id = id;
+        this.updateId = updateId;
+        this.day = day;
+        this.license = license;
+    }
+
+    public LicenseChange(License license) {
+        this(license.getId(), license.getUpdateId(), TuidCodec.getYearMonthDay(license.getUpdateId()), license);
+    }
+
+    /**
+     * @return true if this change created the License (the first version's updateId matches its id)
+     */
+    @JsonProperty
+    public boolean isCreated() {
+        return id != null && id.equals(updateId);
+    }
+
+    @Override
+    public int compareTo(LicenseChange that) {
+        return this.updateId.compareTo(that.updateId);
+    }
+}
@@ -0,0 +1,30 @@
+package info.voxtechnica.appraisers.model;
+
+import lombok.Data;
+
+/**
+ * LicenseChangeCounts tally the Licenses created and updated on a given day (YYYYMMDD) in a given state.
+ */
+@Data
+public class LicenseChangeCount implements Comparable<LicenseChangeCount> {
+    private Integer day;
+    private String stateAbbrev;
+    private Long created = 0L;
+    private Long updated = 0L;
+
+    public LicenseChangeCount() {
+    }
+
+    public LicenseChangeCount(Integer day, String stateAbbrev, Long created, Long updated) {
+        this.day = day;
+        this.stateAbbrev = stateAbbrev;
+        this.created = created;
+        this.updated = updated;
+    }
+
+    @Override
+    public int compareTo(LicenseChangeCount that) {
+        int c = this.day.compareTo(that.day);
+        return c != 0 ? c : this.stateAbbrev.compareTo(that.stateAbbrev);
+    }
+}
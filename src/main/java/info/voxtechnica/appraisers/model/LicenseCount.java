@@ -0,0 +1,41 @@
+package info.voxtechnica.appraisers.model;
+
+import lombok.Data;
+import org.apache.commons.lang3.ObjectUtils;
+
+import java.util.Comparator;
+
+/**
+ * LicenseCounts are precomputed counts of current License versions by stateAbbrev, licenseType, status, and county.
+ * When counts are grouped, the dimensions that were summed over are null.
+ */
+@Data
+public class LicenseCount implements Comparable<LicenseCount> {
+    private String stateAbbrev;
+    private String licenseType;
+    private String status;
+    private String county;
+    private Long count = 0L;
+
+    public LicenseCount() {
+    }
+
+    public LicenseCount(String stateAbbrev, String licenseType, String status, String county, Long count) {
+        this.stateAbbrev = stateAbbrev;
+        this.licenseType = licenseType;
+        this.status = status;
+        this.county = county;
+        this.count = count;
+    }
+
+    @Override
+    public int compareTo(LicenseCount that) {
+        return Dimensional.compare(this, that);
+    }
+
+    public static Comparator<LicenseCount> Dimensional = Comparator
+            .comparing(LicenseCount::getStateAbbrev, ObjectUtils::compare)
+            .thenComparing(LicenseCount::getLicenseType, ObjectUtils::compare)
+            .thenComparing(LicenseCount::getStatus, ObjectUtils::compare)
+            .thenComparing(LicenseCount::getCounty, ObjectUtils::compare);
+}
@@ -0,0 +1,27 @@
+package info.voxtechnica.appraisers.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LicenseLookup is a batch of License keys to resolve in a single request. Any mix of License IDs, ASC keys
+ * (st_abbr + lic_number + lic_type), and license numbers may be provided. Duplicate keys are resolved once.
+ */
+@Data
+public class LicenseLookup {
+    @JsonProperty
+    private List<String> ids = new ArrayList<>();
+
+    @JsonProperty
+    private List<String> ascKeys = new ArrayList<>();
+
+    @JsonProperty
+    private List<String> licenseNumbers = new ArrayList<>();
+
+    public int size() {
+        return (ids == null ? 0 : ids.size()) + (ascKeys == null ? 0 : ascKeys.size()) + (licenseNumbers == null ? 0 : licenseNumbers.size());
+    }
+}
@@ -0,0 +1,35 @@
+package info.voxtechnica.appraisers.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A LicenseLookupResult holds the current version of each License found by a LicenseLookup, keyed by the input key.
+ * License numbers are not unique, so each one maps to a list of Licenses. Keys that matched nothing are listed in
+ * notFound.
+ */
+@Data
+public class LicenseLookupResult {
+    @JsonProperty
+    private Map<String, License> ids = new LinkedHashMap<>();
+
+    @JsonProperty
+    private Map<String, License> ascKeys = new LinkedHashMap<>();
+
+    @JsonProperty
+    private Map<String, List<License>> licenseNumbers = new LinkedHashMap<>();
+
+    @JsonProperty
+    private List<String> notFound = new ArrayList<>();
+
+    public int size() {
+        int count = ids.size() + ascKeys.size();
+        for (List<License> licenses : licenseNumbers.values()) count += licenses.size();
+        return count;
+    }
+}
@@ -3,6 +3,7 @@ package info.voxtechnica.appraisers.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import info.voxtechnica.appraisers.config.ApplicationConfiguration;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import lombok.Data;
 import org.apache.commons.lang3.ObjectUtils;
 
@@ -32,11 +33,11 @@ public class Message implements Comparable<Message> {
     private Status status = Status.INITIALIZED;
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
 
     public String getUpdatedAt() {
-        return updateId == null ? null : (new Tuid(updateId)).getCreatedAt();
+        return updateId == null ? null : TuidCodec.getCreatedAt(updateId);
     }
 
     public Message() {
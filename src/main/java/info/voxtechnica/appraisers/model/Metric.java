@@ -1,5 +1,6 @@
 package info.voxtechnica.appraisers.model;
 
+import info.voxtechnica.appraisers.util.TuidCodec;
 import lombok.Data;
 import org.apache.commons.lang3.ObjectUtils;
 
@@ -49,7 +50,7 @@ public class Metric implements Comparable<Metric> {
     }
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
 
     @Override
@@ -0,0 +1,71 @@
+package info.voxtechnica.appraisers.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MetricRollup summarizes the durations recorded for a tag over one fixed time window: count, sum, and a duration
+ * histogram, which can be merged with other windows' histograms to compute percentiles over any range. It may also
+ * keep the IDs of a few of the window's slowest Metrics, as exemplars.
+ */
+@Data
+public class MetricRollup implements Comparable<MetricRollup> {
+    private String tag;
+    private Integer resolution; // window length, in seconds
+    private Long windowStart; // epoch millis
+    private Long count;
+    private Long sum;
+    private Long min;
+    private Long max;
+    private List<String> exemplarIds = new ArrayList<>();
+    @JsonIgnore
+    private Histogram histogram;
+
+    public MetricRollup() {
+    }
+
+    public MetricRollup(String tag, Integer resolution, Long windowStart, Long sum, Histogram histogram) {
+        this.tag = tag;
+        this.resolution = resolution;
+        this.windowStart = windowStart;
+        this.sum = sum;
+        this.histogram = histogram;
+        this.count = histogram.getTotalCount();
+        this.min = count == 0 ? 0 : histogram.getMinValue();
+        this.max = count == 0 ? 0 : histogram.getMaxValue();
+    }
+
+    @JsonProperty
+    public Double getMean() {
+        if (sum == null || count == null || count == 0) return 0.0;
+        else return (double) sum / (double) count;
+    }
+
+    /**
+     * Add another rollup of the same tag (e.g. another node's, or a finer window's) into this one.
+     */
+    public void merge(MetricRollup that) {
+        if (that.count == 0) return;
+        histogram.setAutoResize(true); // the other histogram may track a wider range
+        histogram.add(that.histogram);
+        if (that.exemplarIds != null) { // the slower rollup's exemplars first, so trimming keeps the slowest
+            if (that.max > max) exemplarIds.addAll(0, that.exemplarIds);
+            else exemplarIds.addAll(that.exemplarIds);
+        }
+        min = count == 0 ? that.min : Math.min(min, that.min);
+        max = count == 0 ? that.max : Math.max(max, that.max);
+        count += that.count;
+        sum += that.sum;
+    }
+
+    @Override
+    public int compareTo(MetricRollup that) {
+        int result = this.tag.compareTo(that.tag);
+        return result != 0 ? result : Long.compare(this.windowStart, that.windowStart);
+    }
+}
@@ -3,20 +3,29 @@ package info.voxtechnica.appraisers.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Objects;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import info.voxtechnica.appraisers.util.TuidCodec;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import org.HdrHistogram.Histogram;
 
 import javax.validation.constraints.NotNull;
 import java.util.Map;
 
 /**
- * MetricStats are used for computing summary descriptive statistics for Metrics
+ * MetricStats are used for computing summary descriptive statistics for Metrics. Durations are kept in a fixed-size,
+ * mergeable histogram rather than as raw samples, so memory use doesn't grow with the number of Metrics, and stats
+ * over a range can be built by merging per-window rollups. Count, sum, min, and max are exact; percentiles are
+ * accurate to SIGNIFICANT_DIGITS.
  */
 public class MetricStat implements Comparable<MetricStat> {
+    public static final int SIGNIFICANT_DIGITS = 3;
     @JsonIgnore
-    private final DescriptiveStatistics durationStats = new DescriptiveStatistics();
+    private final Histogram durationStats = new Histogram(SIGNIFICANT_DIGITS); // auto-resizing
     private String tag;
     private String firstId;
     private String lastId;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
 
     public MetricStat() {
     }
@@ -31,17 +40,39 @@ public class MetricStat implements Comparable<MetricStat> {
     }
 
     public void addDuration(@NotNull String id, @NotNull Long duration) {
+        addId(id);
+        long value = Math.max(duration, 0L);
+        durationStats.recordValue(value);
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void addDurations(@NotNull Map<String, Long> durations) {
+        for (Map.Entry<String, Long> entry : durations.entrySet()) addDuration(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Merge a rollup window into these stats. The first and last IDs become the window's bounds, rather than the IDs
+     * of actual Metrics.
+     */
+    public void addRollup(@NotNull MetricRollup rollup) {
+        if (rollup.getCount() == null || rollup.getCount() == 0) return;
+        addId(TuidFactory.getFirstIdFromTimestamp(rollup.getWindowStart()));
+        addId(TuidFactory.getLastIdFromTimestamp(rollup.getWindowStart() + rollup.getResolution() * 1000L - 1));
+        durationStats.add(rollup.getHistogram());
+        sum += rollup.getSum();
+        min = Math.min(min, rollup.getMin());
+        max = Math.max(max, rollup.getMax());
+    }
+
+    private void addId(String id) {
         if (firstId == null || firstId.compareTo(id) > 0) firstId = id;
         if (lastId == null || lastId.compareTo(id) < 0) lastId = id;
-        durationStats.addValue((double) duration);
     }
 
-    public void addDurations(@NotNull Map<String, Long> durations) {
-        for (String id : durations.keySet()) {
-            if (firstId == null || firstId.compareTo(id) > 0) firstId = id;
-            if (lastId == null || lastId.compareTo(id) < 0) lastId = id;
-            durationStats.addValue((double) durations.get(id));
-        }
+    private Long percentile(double percentile) {
+        return durationStats.getTotalCount() == 0 ? 0L : durationStats.getValueAtPercentile(percentile);
     }
 
     @JsonProperty
@@ -60,7 +91,7 @@ public class MetricStat implements Comparable<MetricStat> {
 
     @JsonProperty
     public String getFirstTimestamp() {
-        return firstId == null ? null : new Tuid(firstId).getCreatedAt();
+        return firstId == null ? null : TuidCodec.getCreatedAt(firstId);
     }
 
     @JsonProperty
@@ -70,7 +101,7 @@ public class MetricStat implements Comparable<MetricStat> {
 
     @JsonProperty
     public String getLastTimestamp() {
-        return lastId == null ? null : new Tuid(lastId).getCreatedAt();
+        return lastId == null ? null : TuidCodec.getCreatedAt(lastId);
     }
 
     @JsonProperty
@@ -80,37 +111,57 @@ public class MetricStat implements Comparable<MetricStat> {
 
     @JsonProperty
     public Long getCount() {
-        return durationStats.getN();
+        return durationStats.getTotalCount();
     }
 
     @JsonProperty
     public Long getMin() {
-        return Math.round(durationStats.getMin());
+        return getCount() == 0 ? 0L : min;
     }
 
     @JsonProperty
     public Long getMean() {
-        return Math.round(durationStats.getMean());
+        return getCount() == 0 ? 0L : Math.round((double) sum / getCount());
     }
 
     @JsonProperty
     public Long getMedian() {
-        return Math.round(durationStats.getPercentile(50));
+        return percentile(50.0);
+    }
+
+    @JsonProperty
+    public Long getP50() {
+        return percentile(50.0);
+    }
+
+    @JsonProperty
+    public Long getP90() {
+        return percentile(90.0);
+    }
+
+    @JsonProperty
+    public Long getP99() {
+        return percentile(99.0);
+    }
+
+    @JsonProperty
+    public Long getP999() {
+        return percentile(99.9);
     }
 
     @JsonProperty
     public Long getMax() {
-        return Math.round(durationStats.getMax());
+        return getCount() == 0 ? 0L : max;
     }
 
     @JsonProperty
     public Long getStDev() {
-        return Math.round(durationStats.getStandardDeviation());
+        return getCount() == 0 ? 0L : Math.round(durationStats.getStdDeviation());
     }
 
     @JsonProperty
     public Long getSum() {
-        return Math.round(durationStats.getSum());
+        return sum;
     }
 
     @Override
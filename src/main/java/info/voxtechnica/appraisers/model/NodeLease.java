@@ -0,0 +1,41 @@
+package info.voxtechnica.appraisers.model;
+
+import lombok.Data;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+/**
+ * A NodeLease grants a TuidFactory Node ID to one running application node (its owner, a random token chosen at
+ * startup) until it expires. The holder renews it with a heartbeat; once it has expired, the Node ID is held back for
+ * a reclaim gap before another node may take it.
+ */
+@Data
+public class NodeLease implements Comparable<NodeLease> {
+    public enum State {ACTIVE, EXPIRED, RECLAIMABLE}
+
+    private byte id;
+    private String owner;
+    private InetAddress ipAddress;
+    private Date acquiredAt;
+    private Date renewedAt;
+    private Date expiresAt;
+    private State state;
+
+    public NodeLease() {
+    }
+
+    public NodeLease(byte id, String owner, InetAddress ipAddress, Date acquiredAt, Date renewedAt, Date expiresAt) {
+        this.id = id;
+        this.owner = owner;
+        this.ipAddress = ipAddress;
+        this.acquiredAt = acquiredAt;
+        this.renewedAt = renewedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public int compareTo(NodeLease that) {
+        return Byte.compare(this.id, that.id);
+    }
+}
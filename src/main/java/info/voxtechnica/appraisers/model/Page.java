@@ -0,0 +1,24 @@
+package info.voxtechnica.appraisers.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Page is one page of a paginated listing, along with an opaque cursor for fetching the next page. The cursor is
+ * null on the last page.
+ */
+@Data
+public class Page<T> {
+    private List<T> items = new ArrayList<>();
+    private String next;
+
+    public Page() {
+    }
+
+    public Page(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+}
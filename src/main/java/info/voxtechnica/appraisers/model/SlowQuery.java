@@ -0,0 +1,29 @@
+package info.voxtechnica.appraisers.model;
+
+import info.voxtechnica.appraisers.util.TuidCodec;
+import lombok.Data;
+
+/**
+ * A SlowQuery is a Cassandra statement execution that took longer than the slow query threshold (or failed after it).
+ * The fingerprint identifies the bound values without revealing them: each bind variable's name and a checksum of its
+ * serialized value, so repeated slow reads of the same partition stand out. Entries are recorded on the driver's I/O
+ * threads, so they're identified by a sequence number and wall-clock timestamp rather than a TUID.
+ */
+@Data
+public class SlowQuery {
+    private long sequence;
+    private long timestamp; // epoch millis
+    private String name; // statement name, e.g. Licenses.readCurrentVersion
+    private Long latencyMillis;
+    private String host;
+    private String error;
+    private String fingerprint;
+    private String traceId; // set when the execution was traced (see CassandraConfiguration.traceProbability)
+
+    public SlowQuery() {
+    }
+
+    public String getCreatedAt() {
+        return TuidCodec.getDefault().isoDateTime(timestamp);
+    }
+}
@@ -4,16 +4,15 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import info.voxtechnica.appraisers.util.TuidFactory;
-import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
 
 /**
  * A ‘tuid’ is a time-based unique identifier with an embedded millisecond-resolution createdAt timestamp. It’s guaranteed
  * to be cluster-unique, and it sorts chronologically. It’s a 64-bit long integer, expressed as a base-36 string. 
  * Example: 2TNSOS9L376Y, or 371688814796603434 decimal, with a createdAt timestamp of 2014-12-06T07:38:25.468-08:00. 
  * The left 46 bits are the embedded milliseconds since epoch, and the right 18 bits are ‘entropy’ (a 10-bit counter 
- * plus an 8-bit node id), designed to ensure uniqueness.
+ * plus an 8-bit node id), designed to ensure uniqueness. Calendar fields are derived by TuidCodec.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Tuid implements Comparable<Tuid> {
@@ -21,17 +20,17 @@ public class Tuid implements Comparable<Tuid> {
     private final String id;
 
     @JsonIgnore
-    private final DateTime createdAt;
+    private final long millis;
 
     public Tuid() {
         id = TuidFactory.getId();
-        createdAt = new DateTime(Long.parseLong(id, 36) >> 18);
+        millis = TuidCodec.getMillis(id);
     }
 
     @JsonCreator
     public Tuid(@JsonProperty("id") String id) throws NumberFormatException {
         this.id = id.trim().toUpperCase();
-        createdAt = new DateTime(Long.parseLong(id, 36) >> 18);
+        millis = TuidCodec.getMillis(this.id);
     }
 
     @JsonProperty
@@ -41,7 +40,7 @@ public class Tuid implements Comparable<Tuid> {
 
     @JsonProperty
     public String getCreatedAt() {
-        return ISODateTimeFormat.dateTime().print(createdAt);
+        return TuidCodec.getDefault().isoDateTime(millis);
     }
 
     /**
@@ -51,7 +50,7 @@ public class Tuid implements Comparable<Tuid> {
      */
     @JsonProperty
     public long getMillis() {
-        return Long.parseLong(id, 36) >> 18;
+        return millis;
     }
 
     /**
@@ -61,7 +60,7 @@ public class Tuid implements Comparable<Tuid> {
      */
     @JsonProperty
     public int getYearMonth() {
-        return createdAt.getYear() * 100 + createdAt.getMonthOfYear();
+        return TuidCodec.getDefault().yearMonth(millis);
     }
 
     /**
@@ -71,7 +70,7 @@ public class Tuid implements Comparable<Tuid> {
      */
     @JsonProperty
     public int getYearMonthDay() {
-        return (createdAt.getYear() * 10000) + (createdAt.getMonthOfYear() * 100) + createdAt.getDayOfMonth();
+        return TuidCodec.getDefault().yearMonthDay(millis);
     }
 
     /**
@@ -83,7 +82,7 @@ public class Tuid implements Comparable<Tuid> {
      */
     @JsonProperty
     public int getYearWeek() {
-        return createdAt.getWeekyear() * 100 + createdAt.getWeekOfWeekyear();
+        return TuidCodec.getDefault().yearWeek(millis);
     }
 
     /**
@@ -93,7 +92,7 @@ public class Tuid implements Comparable<Tuid> {
      */
     @JsonProperty
     public int getYearDay() {
-        return createdAt.getYear() * 1000 + createdAt.getDayOfYear();
+        return TuidCodec.getDefault().yearDay(millis);
     }
 
     /**
@@ -113,7 +112,7 @@ public class Tuid implements Comparable<Tuid> {
     public String toString() {
         return "Tuid{" +
                 "id='" + id + '\'' +
-                ", createdAt=" + createdAt +
+                ", createdAt=" + getCreatedAt() +
                 '}';
     }
 
@@ -0,0 +1,94 @@
+package info.voxtechnica.appraisers.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import info.voxtechnica.appraisers.util.TuidCodec;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TuidRange is a contiguous block of TUIDs reserved for one node (see TuidFactory.reserve). Its IDs share the node ID
+ * in their low 8 bits, and the rest of each ID (the millisecond and counter) increases by one from the first ID: the
+ * i-th ID is ((firstId >> 8) + i) << 8 | nodeId. A range is described by its first ID and count, so it's cheap to
+ * hand out; next() draws IDs from it in order, and is safe to call from multiple threads.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TuidRange {
+
+    private final String firstId;
+    private final int count;
+
+    @JsonIgnore
+    private final long firstPosition;
+    @JsonIgnore
+    private final long nodeId;
+    @JsonIgnore
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    @JsonCreator
+    public TuidRange(@JsonProperty("firstId") String firstId, @JsonProperty("count") int count) throws NumberFormatException {
+        if (count < 1) throw new IllegalArgumentException("count must be positive");
+        this.firstId = firstId.trim().toUpperCase();
+        this.count = count;
+        long id = TuidCodec.decode(this.firstId);
+        firstPosition = id >>> 8;
+        nodeId = id & 0xFF;
+    }
+
+    @JsonProperty
+    public String getFirstId() {
+        return firstId;
+    }
+
+    @JsonProperty
+    public String getLastId() {
+        return get(count - 1);
+    }
+
+    @JsonProperty
+    public int getCount() {
+        return count;
+    }
+
+    @JsonProperty
+    public int getNodeId() {
+        return (int) nodeId;
+    }
+
+    /**
+     * @param index position in the range, from 0 to count - 1
+     * @return the TUID at that position
+     */
+    public String get(int index) {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("index " + index + " of " + count);
+        return TuidCodec.encode(((firstPosition + index) << 8) | nodeId);
+    }
+
+    /**
+     * Draw the next unused TUID from the range.
+     *
+     * @return the TUID, or null if the range is used up
+     */
+    public String next() {
+        int index = cursor.getAndIncrement();
+        return index < count ? get(index) : null;
+    }
+
+    /**
+     * @return the number of TUIDs not yet drawn
+     */
+    @JsonIgnore
+    public int getRemaining() {
+        return Math.max(0, count - cursor.get());
+    }
+
+    @Override
+    public String toString() {
+        return "TuidRange{" +
+                "firstId='" + firstId + '\'' +
+                ", count=" + count +
+                '}';
+    }
+}
@@ -1,5 +1,6 @@
 package info.voxtechnica.appraisers.model;
 
+import info.voxtechnica.appraisers.util.TuidCodec;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Charsets;
@@ -35,11 +36,11 @@ public class User implements Principal, Comparable<User> {
     private Status status;
 
     public String getCreatedAt() {
-        return id == null ? null : (new Tuid(id)).getCreatedAt();
+        return id == null ? null : TuidCodec.getCreatedAt(id);
     }
 
     public String getUpdatedAt() {
-        return updateId == null ? null : (new Tuid(updateId)).getCreatedAt();
+        return updateId == null ? null : TuidCodec.getCreatedAt(updateId);
     }
 
     /**
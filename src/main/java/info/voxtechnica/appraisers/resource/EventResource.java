@@ -2,10 +2,13 @@ package info.voxtechnica.appraisers.resource;
 
 import com.codahale.metrics.annotation.Timed;
 import com.wordnik.swagger.annotations.*;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.model.Page;
 import info.voxtechnica.appraisers.model.Tuid;
 import info.voxtechnica.appraisers.model.User;
+import info.voxtechnica.appraisers.service.RecentEventFeed;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
 import io.dropwizard.jersey.params.IntParam;
@@ -16,11 +19,13 @@ import javax.annotation.security.RolesAllowed;
 import javax.validation.Valid;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
-import java.util.SortedSet;
+import java.util.List;
 
 @Path("/v1/events")
 @Api(value = "/v1/events", description = "Events")
@@ -43,8 +48,8 @@ public class EventResource {
             if (event.getId() != null) throw new WebApplicationException(Response.Status.NOT_ACCEPTABLE);
             // Users cannot associate events with other users
             event.setUserId(apiUser.getId());
-            // No need to log the event of creating the event :)
-            Event created = Events.createEvent(event);
+            // No need to log the event of creating the event :) but it must be stored, so it skips sampling and dedupe
+            Event created = Events.createPostedEvent(event);
             if (created == null) throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
             URI uri = uriInfo.getAbsolutePathBuilder().path(created.getId()).build();
             return Response.created(uri).entity(created).build();
@@ -61,9 +66,11 @@ public class EventResource {
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
     @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
-    @ApiOperation(value = "List Events", response = Event.class)
-    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
-    public SortedSet<Event> readEvents(
+    @ApiOperation(value = "List Events", response = Event.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readEvents(
             @Auth User apiUser,
             @ApiParam(value = "Recent Events", required = false) @QueryParam("seconds") IntParam seconds,
             @ApiParam(value = "Entity ID", required = false) @QueryParam("entity_id") String entityId,
@@ -71,31 +78,121 @@ public class EventResource {
             @ApiParam(value = "Log Level", required = false) @QueryParam("log_level") Event.LogLevel logLevel,
             @ApiParam(value = "Integer Date YYYYMMDD", required = false) @QueryParam("day") IntParam day,
             @ApiParam(value = "Number of Events", required = false) @QueryParam("limit") @DefaultValue("1000") IntParam limit,
-            @ApiParam(value = "Last Event ID", required = false) @QueryParam("offset") String offset) {
+            @ApiParam(value = "Last Event ID", required = false) @QueryParam("offset") String offset,
+            @ApiParam(value = "Cursor (from a Link rel=\"next\" header)", required = false) @QueryParam("cursor") String cursor) {
         try {
-            SortedSet<Event> events;
+            Page<Event> page;
             // Default query date is today
             Integer queryDay = day == null ? (new Tuid().getYearMonthDay()) : day.get();
             // Administrators can query the entire event log
             if (apiUser.isAdmin()) {
-                if (seconds != null) events = Events.readRecentEvents(seconds.get());
-                else if (entityId != null) events = Events.readEventsByEntity(entityId, limit.get(), offset);
+                if (seconds != null)
+                    page = Events.readRecentEvents(seconds.get(), logLevel, limit.get(), offset, cursor);
+                else if (entityId != null) page = Events.readEventsByEntity(entityId, limit.get(), offset, cursor);
                 else if (userId != null)
-                    events = Events.readEventsByUserDay(userId, queryDay, limit.get(), offset);
+                    page = Events.readEventsByUserDay(userId, queryDay, limit.get(), offset, cursor);
                 else if (logLevel != null)
-                    events = Events.readEventsByLevelDay(logLevel, queryDay, limit.get(), offset);
-                else events = Events.readEventsByDay(queryDay, limit.get(), offset);
+                    page = Events.readEventsByLevelDay(logLevel, queryDay, limit.get(), offset, cursor);
+                else page = Events.readEventsByDay(queryDay, limit.get(), offset, cursor);
             } else {
                 // Regular users can only see their own event log
-                events = Events.readEventsByUserDay(apiUser.getId(), queryDay, limit.get(), offset);
+                page = Events.readEventsByUserDay(apiUser.getId(), queryDay, limit.get(), offset, cursor);
             }
             // Filter by log level if specified
-            if (logLevel != null)
-                for (Event event : events) if (!logLevel.equals(event.getLogLevel())) events.remove(event);
-            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Events", events.size()));
-            return events;
+            if (logLevel != null) page.getItems().removeIf(event -> !logLevel.equals(event.getLogLevel()));
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Events", page.getItems().size()));
+            Response.ResponseBuilder response = Response.ok(page.getItems());
+            if (page.getNext() != null)
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("cursor", page.getNext()).build(), "next");
+            return response.build();
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RolesAllowed("admin")
+    @Path("/recent")
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "List recent Events from memory, across the cluster", response = Event.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readRecentEvents(
+            @Auth User apiUser,
+            @ApiParam(value = "Last Event ID seen (default: the latest Events)", required = false) @QueryParam("after") String after,
+            @ApiParam(value = "Log Level", required = false) @QueryParam("log_level") Event.LogLevel logLevel,
+            @ApiParam(value = "User ID", required = false) @QueryParam("user_id") String userId,
+            @ApiParam(value = "Entity ID", required = false) @QueryParam("entity_id") String entityId,
+            @ApiParam(value = "Number of Events", required = false) @QueryParam("limit") @DefaultValue("100") IntParam limit,
+            @ApiParam(value = "This node only", required = false) @QueryParam("local") @DefaultValue("false") boolean local,
+            @HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        try {
+            if (limit.get() < 1 || limit.get() > RecentEventFeed.MAX_LIMIT)
+                throw new WebApplicationException(String.format("limit must be 1 to %d", RecentEventFeed.MAX_LIMIT), Response.Status.BAD_REQUEST);
+            List<Event> events = RecentEventFeed.read(after, limit.get(), logLevel, userId, entityId, local, authorization);
+            // Other nodes poll this node for a cluster-wide tail; logging their reads would feed the tail itself
+            if (!local)
+                Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d recent Events", events.size()));
+            Response.ResponseBuilder response = Response.ok(events);
+            if (after != null && events.size() == limit.get())
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", events.get(events.size() - 1).getId()).build(), "next");
+            return response.build();
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @RolesAllowed("admin")
+    @Path("/recent/stream")
+    @GET
+    @Produces("text/event-stream")
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Stream a live tail of the Event log as server-sent events; resume with Last-Event-ID or 'after'")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized"),
+            @ApiResponse(code = 503, message = "Too many subscribers")})
+    public Response streamRecentEvents(
+            @Auth User apiUser,
+            @ApiParam(value = "Last Event ID seen (default: new Events only)", required = false) @QueryParam("after") String after,
+            @ApiParam(value = "Log Level", required = false) @QueryParam("log_level") Event.LogLevel logLevel,
+            @ApiParam(value = "User ID", required = false) @QueryParam("user_id") String userId,
+            @ApiParam(value = "Entity ID", required = false) @QueryParam("entity_id") String entityId,
+            @ApiParam(value = "This node only", required = false) @QueryParam("local") @DefaultValue("false") boolean local,
+            @HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
+        try {
+            String offset = lastEventId != null && !lastEventId.trim().isEmpty() ? lastEventId.trim() : after;
+            RecentEventFeed.validateOffset(offset); // before committing to a stream
+            if (!RecentEventFeed.subscribe())
+                throw new WebApplicationException("Too many Event tail subscribers", Response.Status.SERVICE_UNAVAILABLE);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET,
+                    String.format("Streaming recent Events after %s", offset == null ? "now" : offset));
+            StreamingOutput stream = output -> {
+                try {
+                    RecentEventFeed.stream(offset, logLevel, userId, entityId, local, authorization, output);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+            return Response.ok(stream).header("X-Accel-Buffering", "no").build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
         } catch (Exception e) {
             Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
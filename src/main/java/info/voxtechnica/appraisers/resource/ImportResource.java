@@ -6,8 +6,8 @@ import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Imports;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Import;
-import info.voxtechnica.appraisers.model.Tuid;
 import info.voxtechnica.appraisers.model.User;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
 import io.dropwizard.jersey.params.IntParam;
@@ -72,7 +72,7 @@ public class ImportResource {
             @ApiParam(value = "Import ID", required = true) @PathParam("id") final String id,
             @ApiParam(value = "Day (YYYYMMDD)", required = false) @QueryParam("day") IntParam day) {
         try {
-            Import licenseImport = Imports.readImport(id, day == null ? (new Tuid(id)).getYearMonthDay() : day.get());
+            Import licenseImport = Imports.readImport(id, day == null ? TuidCodec.getYearMonthDay(id) : day.get());
             if (licenseImport == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), licenseImport.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read Import %s", licenseImport.getId()));
             return licenseImport;
@@ -95,9 +95,9 @@ public class ImportResource {
             @ApiParam(value = "Import ID", required = true) @PathParam("id") final String id,
             @ApiParam(value = "Day (YYYYMMDD)", required = false) @QueryParam("day") IntParam day) {
         try {
-            Import licenseImport = Imports.readImport(id, day == null ? (new Tuid(id)).getYearMonthDay() : day.get());
+            Import licenseImport = Imports.readImport(id, day == null ? TuidCodec.getYearMonthDay(id) : day.get());
             if (licenseImport == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
-            Imports.deleteImport(id, day == null ? (new Tuid(id)).getYearMonthDay() : day.get());
+            Imports.deleteImport(id, day == null ? TuidCodec.getYearMonthDay(id) : day.get());
             Events.info(apiUser.getId(), id, uriInfo.getRequestUri(), Event.HttpMethod.DELETE, String.format("Deleted Import %s", id));
             return Response.noContent().build();
         } catch (WebApplicationException e) {
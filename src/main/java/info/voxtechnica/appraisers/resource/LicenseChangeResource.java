@@ -0,0 +1,108 @@
+package info.voxtechnica.appraisers.resource;
+
+import com.codahale.metrics.annotation.Timed;
+import com.wordnik.swagger.annotations.*;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
+import info.voxtechnica.appraisers.db.dao.Events;
+import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.model.LicenseChange;
+import info.voxtechnica.appraisers.model.User;
+import info.voxtechnica.appraisers.service.LicenseChangeFeed;
+import io.dropwizard.auth.Auth;
+import io.dropwizard.jersey.caching.CacheControl;
+import io.dropwizard.jersey.params.IntParam;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import javax.annotation.security.PermitAll;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+@Path("/v1/licenses/changes")
+@Api(value = "/v1/licenses/changes", description = "License Change Feed")
+public class LicenseChangeResource {
+    private static final int MAX_LIMIT = 1000;
+
+    @Context
+    private UriInfo uriInfo;
+
+    @PermitAll
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "List License changes in updateId order, after an offset", response = LicenseChange.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readLicenseChanges(
+            @Auth User apiUser,
+            @ApiParam(value = "Last updateId processed (default: start of today)", required = false) @QueryParam("after") String after,
+            @ApiParam(value = "Number of changes", required = false) @QueryParam("limit") @DefaultValue("100") IntParam limit) {
+        try {
+            if (limit.get() < 1 || limit.get() > MAX_LIMIT)
+                throw new WebApplicationException(String.format("limit must be 1 to %d", MAX_LIMIT), Response.Status.BAD_REQUEST);
+            List<LicenseChange> changes = LicenseChangeFeed.readChanges(after, limit.get());
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d License Changes", changes.size()));
+            Response.ResponseBuilder response = Response.ok(changes);
+            if (changes.size() == limit.get())
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", changes.get(changes.size() - 1).getUpdateId()).build(), "next");
+            return response.build();
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @PermitAll
+    @Path("/stream")
+    @GET
+    @Produces("text/event-stream")
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Stream License changes as server-sent events; resume with Last-Event-ID or 'after'")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized"),
+            @ApiResponse(code = 503, message = "Too many subscribers")})
+    public Response streamLicenseChanges(
+            @Auth User apiUser,
+            @ApiParam(value = "Last updateId processed (default: live changes only)", required = false) @QueryParam("after") String after,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
+        try {
+            String offset = lastEventId != null && !lastEventId.trim().isEmpty() ? lastEventId.trim() : after;
+            LicenseChangeFeed.validateOffset(offset); // before committing to a stream
+            LicenseChangeFeed.Subscription subscription = LicenseChangeFeed.subscribe();
+            if (subscription == null)
+                throw new WebApplicationException("Too many change feed subscribers", Response.Status.SERVICE_UNAVAILABLE);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET,
+                    String.format("Streaming License Changes after %s", offset == null ? "now" : offset));
+            StreamingOutput stream = output -> {
+                try {
+                    LicenseChangeFeed.stream(subscription, offset, output);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IOException(e);
+                }
+            };
+            return Response.ok(stream).header("X-Accel-Buffering", "no").build();
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+}
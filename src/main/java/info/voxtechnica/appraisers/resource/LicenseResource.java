@@ -2,10 +2,15 @@ package info.voxtechnica.appraisers.resource;
 
 import com.codahale.metrics.annotation.Timed;
 import com.wordnik.swagger.annotations.*;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Licenses;
+import info.voxtechnica.appraisers.db.dao.Watermarks;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.License;
+import info.voxtechnica.appraisers.model.LicenseLookup;
+import info.voxtechnica.appraisers.model.LicenseLookupResult;
+import info.voxtechnica.appraisers.model.Page;
 import info.voxtechnica.appraisers.model.User;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
@@ -14,68 +19,130 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import javax.annotation.security.PermitAll;
 import javax.annotation.security.RolesAllowed;
+import javax.validation.Valid;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedSet;
 
 @Path("/v1/licenses")
 @Api(value = "/v1/licenses", description = "Licenses")
 public class LicenseResource {
+    private static final int MAX_LOOKUP_KEYS = 10000;
+
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private Request request;
+
     @PermitAll
     @GET
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
-    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
-    @ApiOperation(value = "List Licenses", response = License.class)
-    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
-    public SortedSet<License> readLicenses(
+    @CacheControl(noCache = true)
+    @ApiOperation(value = "List Licenses", response = License.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readLicenses(
             @Auth User apiUser,
             @ApiParam(value = "State", required = false) @QueryParam("state") String state,
             @ApiParam(value = "License Number", required = false) @QueryParam("license_number") String licenseNumber,
             @ApiParam(value = "Update Day (YYYYMMDD)", required = false) @QueryParam("day") IntParam day,
             @ApiParam(value = "Number of Licenses", required = false) @QueryParam("limit") @DefaultValue("100") IntParam limit,
-            @ApiParam(value = "Last License ID", required = false) @QueryParam("offset") String offset) {
+            @ApiParam(value = "Last License ID", required = false) @QueryParam("offset") String offset,
+            @ApiParam(value = "Cursor (from a Link rel=\"next\" header)", required = false) @QueryParam("cursor") String cursor) {
         try {
-            SortedSet<License> licenses;
+            // any License change moves the watermark, so an unchanged watermark means an unchanged list
+            EntityTag tag = Preconditions.weakTag(Watermarks.read(Watermarks.LICENSES));
+            Response notModified = Preconditions.notModified(request, tag);
+            if (notModified != null) return notModified;
+            Page<License> page;
             if (licenseNumber != null) {
-                licenses = Licenses.readLicensesByLicenseNumber(licenseNumber);
+                SortedSet<License> licenses = Licenses.readLicensesByLicenseNumber(licenseNumber);
                 // filter by state if provided
                 if (state != null) for (License license : licenses)
                     if (!state.equalsIgnoreCase(license.getState())) licenses.remove(license);
-            } else if (state != null) licenses = Licenses.readLicensesByState(state, limit.get(), offset);
-            else if (day != null) licenses = Licenses.readLicenseUpdatesByDay(day.get(), limit.get());
-            else licenses = Licenses.readLicenses(limit.get());
-            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Licenses", licenses.size()));
-            return licenses;
+                page = new Page<>(new ArrayList<>(licenses), null);
+            } else if (state != null) page = Licenses.readLicensesByState(state, limit.get(), offset, cursor);
+            else if (day != null) page = Licenses.readLicenseUpdatesByDay(day.get(), limit.get(), cursor);
+            else page = Licenses.readLicenses(limit.get(), cursor);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Licenses", page.getItems().size()));
+            Response.ResponseBuilder response = Response.ok(page.getItems()).tag(tag);
+            if (page.getNext() != null)
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("cursor", page.getNext()).build(), "next");
+            return response.build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
         } catch (Exception e) {
             Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
     }
 
+    @PermitAll
+    @Path("/lookup")
+    @POST
+    @Timed
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Look up a batch of Licenses by ID, ASC key, or license number", response = LicenseLookupResult.class)
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public LicenseLookupResult lookupLicenses(@Auth User apiUser, @Valid LicenseLookup lookup) {
+        try {
+            if (lookup == null || lookup.size() == 0 || lookup.size() > MAX_LOOKUP_KEYS)
+                throw new WebApplicationException(String.format("Provide 1 to %d keys", MAX_LOOKUP_KEYS), Response.Status.BAD_REQUEST);
+            LicenseLookupResult result = Licenses.lookupLicenses(lookup);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.POST,
+                    String.format("Looked up %d keys: found %d Licenses, %d keys not found", lookup.size(), result.size(), result.getNotFound().size()));
+            return result;
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.POST, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @PermitAll
     @Path("/{id}")
     @GET
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
-    @CacheControl(immutable = true)
+    @CacheControl(noCache = true)
     @ApiOperation(value = "Read License", response = License.class)
-    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
-    public License readLicense(@Auth User apiUser, @ApiParam(value = "License ID", required = true) @PathParam("id") final String id) {
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
+            @ApiResponse(code = 401, message = "Unauthorized"),
+            @ApiResponse(code = 404, message = "Not Found")})
+    public Response readLicense(
+            @Auth User apiUser,
+            @ApiParam(value = "License ID", required = true) @PathParam("id") final String id,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
         try {
+            // validate a cached copy against the current updateId alone, without reading the License
+            if (ifNoneMatch != null) {
+                Response notModified = Preconditions.notModified(request, Preconditions.tag(Licenses.readLicenseUpdateId(id)));
+                if (notModified != null) return notModified;
+            }
             License license = Licenses.readLicense(id);
             if (license == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), license.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read License %s", license.getId()));
-            return license;
+            return Response.ok(license).tag(Preconditions.tag(license.getUpdateId())).build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
         } catch (Exception e) {
@@ -116,18 +183,25 @@ public class LicenseResource {
     @CacheControl(immutable = true)
     @ApiOperation(value = "Get License version", response = License.class)
     @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
             @ApiResponse(code = 401, message = "Unauthorized"),
             @ApiResponse(code = 404, message = "Not Found")})
-    public License readLicenseVersion(
+    public Response readLicenseVersion(
             @Auth User apiUser,
             @ApiParam(value = "License ID", required = true) @PathParam("id") final String id,
             @ApiParam(value = "Update ID", required = true) @PathParam("update_id") final String updateId) {
         try {
+            // versions are immutable, so a matching tag only needs the version's existence confirmed
+            Response notModified = Preconditions.notModified(request, Preconditions.tag(updateId));
+            if (notModified != null) {
+                if (!Licenses.existsLicenseVersion(id, updateId)) throw new WebApplicationException(Response.Status.NOT_FOUND);
+                return notModified;
+            }
             License license = Licenses.readLicenseVersion(id, updateId);
             if (license == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), id, uriInfo.getRequestUri(), Event.HttpMethod.GET,
                     String.format("Read License %s Update %s", id, updateId));
-            return license;
+            return Response.ok(license).tag(Preconditions.tag(updateId)).build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
         } catch (Exception e) {
@@ -0,0 +1,111 @@
+package info.voxtechnica.appraisers.resource;
+
+import com.codahale.metrics.annotation.Timed;
+import com.wordnik.swagger.annotations.*;
+import info.voxtechnica.appraisers.db.dao.Events;
+import info.voxtechnica.appraisers.db.dao.LicenseStats;
+import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.model.LicenseChangeCount;
+import info.voxtechnica.appraisers.model.LicenseCount;
+import info.voxtechnica.appraisers.model.User;
+import io.dropwizard.auth.Auth;
+import io.dropwizard.jersey.caching.CacheControl;
+import io.dropwizard.jersey.params.IntParam;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import javax.annotation.security.PermitAll;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+@Path("/v1/licenses/stats")
+@Api(value = "/v1/licenses/stats", description = "License Statistics")
+public class LicenseStatsResource {
+    private static final int MAX_DAYS = 366;
+
+    @Context
+    private UriInfo uriInfo;
+
+    @PermitAll
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Count Licenses by state, license type, status, and county", response = LicenseCount.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public List<LicenseCount> readLicenseCounts(
+            @Auth User apiUser,
+            @ApiParam(value = "State", required = false) @QueryParam("state") String state,
+            @ApiParam(value = "License Type (1-6)", required = false) @QueryParam("license_type") String licenseType,
+            @ApiParam(value = "Status (A or I)", required = false) @QueryParam("status") String status,
+            @ApiParam(value = "County", required = false) @QueryParam("county") String county,
+            @ApiParam(value = "Group by (comma-separated: state, license_type, status, county; empty for a total)", required = false)
+            @QueryParam("group_by") @DefaultValue("state,license_type,status,county") String groupBy) {
+        try {
+            Set<String> dimensions = new LinkedHashSet<>();
+            for (String dimension : groupBy.split(","))
+                if (!dimension.trim().isEmpty()) dimensions.add(dimension.trim().toLowerCase());
+            if (!LicenseStats.DIMENSIONS.containsAll(dimensions))
+                throw new WebApplicationException("group_by must be a subset of " + LicenseStats.DIMENSIONS, Response.Status.BAD_REQUEST);
+            List<LicenseCount> counts = LicenseStats.readCounts(upper(state), licenseType, upper(status), upper(county), dimensions);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d License Counts", counts.size()));
+            return counts;
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @PermitAll
+    @Path("/changes")
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Count Licenses created and updated per day and state", response = LicenseChangeCount.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public SortedSet<LicenseChangeCount> readLicenseChangeCounts(
+            @Auth User apiUser,
+            @ApiParam(value = "State", required = false) @QueryParam("state") String state,
+            @ApiParam(value = "Last Day (YYYYMMDD, default today)", required = false) @QueryParam("day") IntParam day,
+            @ApiParam(value = "Number of Days", required = false) @QueryParam("days") @DefaultValue("30") IntParam days) {
+        try {
+            if (days.get() < 1 || days.get() > MAX_DAYS)
+                throw new WebApplicationException(String.format("days must be 1 to %d", MAX_DAYS), Response.Status.BAD_REQUEST);
+            LocalDate lastDay = day == null ? LocalDate.now() : LocalDate.parse(day.get().toString(), DateTimeFormatter.BASIC_ISO_DATE);
+            List<Integer> queryDays = new ArrayList<>();
+            for (int i = 0; i < days.get(); i++)
+                queryDays.add(Integer.parseInt(lastDay.minusDays(i).format(DateTimeFormatter.BASIC_ISO_DATE)));
+            SortedSet<LicenseChangeCount> changes = LicenseStats.readChanges(queryDays, upper(state));
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d License Change Counts", changes.size()));
+            return changes;
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (DateTimeParseException e) {
+            throw new WebApplicationException("day must be YYYYMMDD", Response.Status.BAD_REQUEST);
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private static String upper(String value) {
+        return value == null ? null : value.trim().toUpperCase();
+    }
+}
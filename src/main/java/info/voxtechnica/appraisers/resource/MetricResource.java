@@ -2,10 +2,12 @@ package info.voxtechnica.appraisers.resource;
 
 import com.codahale.metrics.annotation.Timed;
 import com.wordnik.swagger.annotations.*;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Metrics;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Metric;
+import info.voxtechnica.appraisers.model.Page;
 import info.voxtechnica.appraisers.model.User;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
@@ -20,7 +22,6 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
-import java.util.SortedSet;
 
 @Path("/v1/metrics")
 @Api(value = "/v1/metrics", description = "Metrics")
@@ -58,23 +59,31 @@ public class MetricResource {
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
     @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
-    @ApiOperation(value = "List Metrics", response = Metric.class)
-    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
-    public SortedSet<Metric> readMetrics(
+    @ApiOperation(value = "List Metrics", response = Metric.class, responseContainer = "List")
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readMetrics(
             @Auth User apiUser,
             @ApiParam(value = "Entity ID", required = false) @QueryParam("entity_id") String entityId,
             @ApiParam(value = "Tag", required = false) @QueryParam("tag") String tag,
             @ApiParam(value = "Number of Metrics", required = false) @QueryParam("limit") @DefaultValue("1000") IntParam limit,
-            @ApiParam(value = "Last Metric ID", required = false) @QueryParam("offset") String offset) {
+            @ApiParam(value = "Last Metric ID", required = false) @QueryParam("offset") String offset,
+            @ApiParam(value = "Cursor (from a Link rel=\"next\" header)", required = false) @QueryParam("cursor") String cursor) {
         try {
             if (entityId == null && tag == null) throw new WebApplicationException(Response.Status.NOT_ACCEPTABLE);
-            SortedSet<Metric> metrics;
-            if (entityId != null) metrics = Metrics.readMetricsByEntity(entityId, limit.get(), offset);
-            else metrics = Metrics.readMetricsByTag(tag, limit.get(), offset);
-            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Metrics", metrics.size()));
-            return metrics;
+            Page<Metric> page;
+            if (entityId != null) page = Metrics.readMetricsByEntity(entityId, limit.get(), offset, cursor);
+            else page = Metrics.readMetricsByTag(tag, limit.get(), offset, cursor);
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Metrics", page.getItems().size()));
+            Response.ResponseBuilder response = Response.ok(page.getItems());
+            if (page.getNext() != null)
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("cursor", page.getNext()).build(), "next");
+            return response.build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
+        } catch (InvalidPagingException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
         } catch (Exception e) {
             Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
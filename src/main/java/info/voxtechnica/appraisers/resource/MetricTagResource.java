@@ -3,9 +3,11 @@ package info.voxtechnica.appraisers.resource;
 import com.codahale.metrics.annotation.Timed;
 import com.wordnik.swagger.annotations.*;
 import info.voxtechnica.appraisers.db.dao.Events;
+import info.voxtechnica.appraisers.db.dao.MetricRollups;
 import info.voxtechnica.appraisers.db.dao.Metrics;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.MetricCount;
+import info.voxtechnica.appraisers.model.MetricRollup;
 import info.voxtechnica.appraisers.model.MetricStat;
 import info.voxtechnica.appraisers.model.User;
 import io.dropwizard.auth.Auth;
@@ -59,11 +61,12 @@ public class MetricTagResource {
             @Auth User apiUser,
             @ApiParam(value = "Metric Tag", required = true) @PathParam("tag") final String tag,
             @ApiParam(value = "Recent Metrics", required = false) @QueryParam("seconds") IntParam seconds,
+            @ApiParam(value = "Coarsest Rollup Resolution (seconds)", required = false) @QueryParam("resolution") IntParam resolution,
             @ApiParam(value = "Number of Metrics", required = false) @QueryParam("limit") @DefaultValue("100000") IntParam limit,
             @ApiParam(value = "Last Metric ID", required = false) @QueryParam("offset") String offset) {
         try {
             MetricStat stat;
-            if (seconds != null) stat = Metrics.readRecentMetricDurationStatsByTag(tag, seconds.get());
+            if (seconds != null) stat = Metrics.readRecentMetricDurationStatsByTag(tag, seconds.get(), resolution == null ? null : resolution.get());
             else stat = Metrics.readMetricDurationStatsByTag(tag, limit.get(), offset);
             if (stat.getCount() == 0) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Metric Durations for Tag %s", stat.getCount(), tag));
@@ -75,4 +78,30 @@ public class MetricTagResource {
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
     }
+
+    @RolesAllowed("admin")
+    @Path("/{tag}/rollups")
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "Read Metric Tag Rollups", response = MetricRollup.class)
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
+    public List<MetricRollup> readMetricTagRollups(
+            @Auth User apiUser,
+            @ApiParam(value = "Metric Tag", required = true) @PathParam("tag") final String tag,
+            @ApiParam(value = "Recent Windows", required = false) @QueryParam("seconds") @DefaultValue("3600") IntParam seconds,
+            @ApiParam(value = "Coarsest Rollup Resolution (seconds)", required = false) @QueryParam("resolution") IntParam resolution) {
+        try {
+            long to = System.currentTimeMillis();
+            List<MetricRollup> rollups = MetricRollups.readRange(tag, to - seconds.get() * 1000L, to, resolution == null ? null : resolution.get());
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Metric Rollups for Tag %s", rollups.size(), tag));
+            return rollups;
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
 }
@@ -6,6 +6,7 @@ import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Nodes;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Node;
+import info.voxtechnica.appraisers.model.NodeLease;
 import info.voxtechnica.appraisers.model.User;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
@@ -51,6 +52,29 @@ public class NodeResource {
         }
     }
 
+    @RolesAllowed("admin")
+    @Path("/leases")
+    @GET
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @ApiOperation(value = "List Node ID Leases", response = NodeLease.class)
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
+    public List<NodeLease> readLeases(@Auth User apiUser) {
+        try {
+            List<NodeLease> leases = Nodes.readLeases();
+            long active = leases.stream().filter(lease -> lease.getState() == NodeLease.State.ACTIVE).count();
+            Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET,
+                    String.format("Listed %d Node ID Leases (%d active)", leases.size(), active));
+            return leases;
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @RolesAllowed("admin")
     @Path("/{id}")
     @GET
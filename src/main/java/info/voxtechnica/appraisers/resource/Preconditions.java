@@ -0,0 +1,29 @@
+package info.voxtechnica.appraisers.resource;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+/**
+ * Conditional GET support. Entities are tagged with their updateId (a strong validator), and lists with a collection
+ * watermark (a weak validator, since a list's representation also depends on its query parameters).
+ */
+class Preconditions {
+
+    static EntityTag tag(String updateId) {
+        return updateId == null ? null : new EntityTag(updateId);
+    }
+
+    static EntityTag weakTag(String watermark) {
+        return watermark == null ? null : new EntityTag(watermark, true);
+    }
+
+    /**
+     * @return a 304 Not Modified response if the request's If-None-Match matches the tag, otherwise null
+     */
+    static Response notModified(Request request, EntityTag tag) {
+        if (tag == null) return null;
+        Response.ResponseBuilder builder = request.evaluatePreconditions(tag);
+        return builder == null ? null : builder.tag(tag).build();
+    }
+}
@@ -1,17 +1,22 @@
 package info.voxtechnica.appraisers.resource;
 
 import com.codahale.metrics.annotation.Timed;
+import com.google.common.util.concurrent.RateLimiter;
 import com.wordnik.swagger.annotations.*;
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.model.TuidRange;
+import info.voxtechnica.appraisers.model.User;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import info.voxtechnica.appraisers.view.TuidView;
 import info.voxtechnica.appraisers.view.TuidsView;
+import io.dropwizard.auth.Auth;
 import io.dropwizard.jersey.caching.CacheControl;
 import io.dropwizard.jersey.params.IntParam;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
+import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import java.net.URI;
@@ -20,6 +25,10 @@ import java.util.ArrayList;
 @Path("/v1/tuids")
 @Api(value = "/v1/tuids", description = "Time-based Unique IDs")
 public class TuidResource {
+    public static final int MAX_RESERVATIONS_PER_SECOND = 50; // per node: at most about 5% of its TUID capacity
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final RateLimiter reservations = RateLimiter.create(MAX_RESERVATIONS_PER_SECOND);
+
     @Context
     private UriInfo uriInfo;
     @Context
@@ -50,6 +59,43 @@ public class TuidResource {
         }
     }
 
+    /**
+     * Reserve a contiguous block of TUIDs for a batch client: up to count of the current millisecond's IDs (the range
+     * may be shorter; reserve again for more). See TuidRange for how to derive the IDs. Reservations are limited to
+     * admin and batch users, and to MAX_RESERVATIONS_PER_SECOND per node, so they can't starve the node's own IDs.
+     *
+     * @param count maximum number of TUIDs to reserve
+     * @return the reserved range
+     */
+    @RolesAllowed({"admin", "batch"})
+    @Path("/reservations")
+    @POST
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Reserve a range of Tuids", response = TuidRange.class)
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 400, message = "Bad Request"),
+            @ApiResponse(code = 401, message = "Unauthorized"),
+            @ApiResponse(code = 429, message = "Too Many Requests")})
+    public Response reserveTuids(@Auth User apiUser,
+            @ApiParam(value = "Number of Tuids to reserve", required = false) @QueryParam("count") @DefaultValue("1024") IntParam count) {
+        try {
+            if (count.get() < 1 || count.get() > TuidFactory.MAX_RESERVATION)
+                throw new WebApplicationException(String.format("count must be 1 to %d", TuidFactory.MAX_RESERVATION), Response.Status.BAD_REQUEST);
+            if (!reservations.tryAcquire())
+                throw new WebApplicationException(Response.status(TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, 1).build());
+            TuidRange range = TuidFactory.reserve(count.get());
+            Events.info(apiUser.getId(), range.getFirstId(), uriInfo.getRequestUri(), Event.HttpMethod.POST,
+                    String.format("Reserved %d Tuids %s to %s", range.getCount(), range.getFirstId(), range.getLastId()));
+            return Response.ok(range).build();
+        } catch (WebApplicationException e) {
+            throw e; // rethrow web application exceptions and log the rest
+        } catch (Exception e) {
+            Events.error(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.POST, e.getMessage(), ExceptionUtils.getStackTrace(e));
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     /**
      * Fetch a list of TUIDs
      *
@@ -71,7 +117,10 @@ public class TuidResource {
                 String[] values = ids.split(",");
                 count = values.length;
                 for (String id : values) tuids.add(new Tuid(id));
-            } else for (int i = 0; i < count; i++) tuids.add(TuidFactory.generateTuid());
+            } else while (tuids.size() < count) {
+                TuidRange range = TuidFactory.reserve(Math.min(count - tuids.size(), TuidFactory.MAX_RESERVATION));
+                for (String id = range.next(); id != null; id = range.next()) tuids.add(new Tuid(id));
+            }
             Events.info(null, uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read %d Tuids", tuids.size()));
             if (requestHeaders.getAcceptableMediaTypes().contains(MediaType.APPLICATION_JSON_TYPE))
                 return Response.ok(tuids).build();
@@ -5,6 +5,7 @@ import com.wordnik.swagger.annotations.*;
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Tokens;
 import info.voxtechnica.appraisers.db.dao.Users;
+import info.voxtechnica.appraisers.db.dao.Watermarks;
 import info.voxtechnica.appraisers.model.Event;
 import info.voxtechnica.appraisers.model.Message;
 import info.voxtechnica.appraisers.model.Token;
@@ -21,7 +22,10 @@ import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
@@ -34,6 +38,9 @@ public class UserResource {
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private Request request;
+
     @RolesAllowed("admin")
     @POST
     @Timed
@@ -68,17 +75,22 @@ public class UserResource {
     @GET
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
-    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @CacheControl(isPrivate = true, noCache = true)
     @ApiOperation(value = "List Users", response = User.class)
-    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"), @ApiResponse(code = 401, message = "Unauthorized")})
-    public SortedSet<User> readUsers(
+    @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
+            @ApiResponse(code = 401, message = "Unauthorized")})
+    public Response readUsers(
             @Auth User apiUser,
             @ApiParam(value = "Number of Users", required = false) @QueryParam("limit") @DefaultValue("100") IntParam limit,
             @ApiParam(value = "Offset (last ID received)", required = false) @QueryParam("offset") String offset) {
         try {
+            EntityTag tag = Preconditions.weakTag(Watermarks.read(Watermarks.USERS));
+            Response notModified = Preconditions.notModified(request, tag);
+            if (notModified != null) return notModified;
             SortedSet<User> users = Users.readUsers(limit.get());
             Events.info(apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Listed %d Users Limit %d", users.size(), limit.get()));
-            return users;
+            return Response.ok(users).tag(tag).build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
         } catch (Exception e) {
@@ -92,25 +104,36 @@ public class UserResource {
     @GET
     @Timed
     @Produces(MediaType.APPLICATION_JSON)
-    @CacheControl(noCache = true, noStore = true, mustRevalidate = true, maxAge = 0)
+    @CacheControl(isPrivate = true, noCache = true)
     @ApiOperation(value = "Get User", response = User.class)
     @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
             @ApiResponse(code = 401, message = "Unauthorized"),
             @ApiResponse(code = 404, message = "Not Found")})
-    public User readUser(
+    public Response readUser(
             @Auth User apiUser,
-            @ApiParam(value = "User ID or email", required = true) @PathParam("id") @NotNull final String id) {
+            @ApiParam(value = "User ID or email", required = true) @PathParam("id") @NotNull final String id,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
         try {
             if (id.equals(apiUser.getId()) || id.equals(apiUser.getEmail())) {
+                // the authenticated User is already loaded
+                EntityTag tag = Preconditions.tag(apiUser.getUpdateId());
+                Response notModified = Preconditions.notModified(request, tag);
+                if (notModified != null) return notModified;
                 Events.info(apiUser.getId(), apiUser.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET, String.format("Read API User %s", apiUser.getId()));
-                return apiUser;
+                return Response.ok(apiUser).tag(tag).build();
             }
             if (!apiUser.isAdmin()) throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+            // validate a cached copy against the current updateId alone, without reading the User
+            if (ifNoneMatch != null) {
+                Response notModified = Preconditions.notModified(request, Preconditions.tag(Users.readUserUpdateId(id)));
+                if (notModified != null) return notModified;
+            }
             User user = Users.readUser(id);
             if (user == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), user.getId(), uriInfo.getRequestUri(), Event.HttpMethod.GET,
                     String.format("Read User %s", user.getId()));
-            return user;
+            return Response.ok(user).tag(Preconditions.tag(user.getUpdateId())).build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
         } catch (Exception e) {
@@ -226,18 +249,22 @@ public class UserResource {
     @CacheControl(immutable = true)
     @ApiOperation(value = "Get User version", response = User.class)
     @ApiResponses(value = {@ApiResponse(code = 200, message = "OK"),
+            @ApiResponse(code = 304, message = "Not Modified"),
             @ApiResponse(code = 401, message = "Unauthorized"),
             @ApiResponse(code = 404, message = "Not Found")})
-    public User readUserVersion(
+    public Response readUserVersion(
             @Auth User apiUser,
             @ApiParam(value = "User ID", required = true) @PathParam("id") final String id,
             @ApiParam(value = "Update ID", required = true) @PathParam("update_id") final String updateId) {
         try {
+            // versions are immutable, so a matching tag needs no read at all
+            Response notModified = Preconditions.notModified(request, Preconditions.tag(updateId));
+            if (notModified != null) return notModified;
             User user = Users.readUserVersion(id, updateId);
             if (user == null) throw new WebApplicationException(Response.Status.NOT_FOUND);
             Events.info(apiUser.getId(), id, uriInfo.getRequestUri(), Event.HttpMethod.GET,
                     String.format("Read User %s Update %s", id, updateId));
-            return user;
+            return Response.ok(user).tag(Preconditions.tag(updateId)).build();
         } catch (WebApplicationException e) {
             throw e; // rethrow web application exceptions and log the rest
         } catch (Exception e) {
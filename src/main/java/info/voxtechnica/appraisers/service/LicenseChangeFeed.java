@@ -0,0 +1,211 @@
+package info.voxtechnica.appraisers.service;
+
+import info.voxtechnica.appraisers.db.InvalidPagingException;
+import info.voxtechnica.appraisers.db.dao.Licenses;
+import info.voxtechnica.appraisers.model.LicenseChange;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+import info.voxtechnica.appraisers.util.TuidCodec;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LicenseChangeFeed serves new License versions to downstream consumers, in updateId order, from the license_changes_day
+ * table. Consumers resume from the last updateId they processed. Live subscribers share a single poller, which tails the
+ * same table and hands each new version to every subscriber's queue, so they see every version written by any node,
+ * whether by an import or an API edit, for the cost of one poll a second however many are listening. A subscriber
+ * resuming from an offset first catches up from the table itself, while its queue fills.
+ * <p/>
+ * Importer workers and nodes write concurrently, so versions may be committed slightly out of updateId order. Reads
+ * therefore start a few seconds before the requested offset (and polls a few seconds before the last poll), and
+ * delivery is at-least-once: consumers should dedupe on updateId. A subscriber that falls more than QUEUE_CAPACITY
+ * versions behind is disconnected, and resumes from the table when it reconnects with its Last-Event-ID.
+ */
+public class LicenseChangeFeed {
+    private static final Logger LOG = LoggerFactory.getLogger(LicenseChangeFeed.class);
+    public static final int MAX_SUBSCRIBERS = 64;
+    public static final int QUEUE_CAPACITY = 10000;
+    public static final int MAX_CATCH_UP_DAYS = 366;
+    public static final int PAGE_SIZE = 1000;
+    public static final long POLL_MILLIS = 1000L;
+    public static final long REPLAY_MILLIS = 5000L;
+    public static final long HEARTBEAT_MILLIS = 15000L;
+
+    private static final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService poller;
+    // poller state, touched only by the poller thread once it's started
+    private static long pollFrom;
+    private static final TreeSet<String> polled = new TreeSet<>(); // updateIds handed out within the replay window
+
+    /**
+     * @return a new live subscription, or null if the maximum number of subscribers has been reached
+     */
+    public static synchronized Subscription subscribe() {
+        if (subscriptions.size() >= MAX_SUBSCRIBERS) return null;
+        Subscription subscription = new Subscription();
+        subscriptions.add(subscription);
+        if (poller == null) {
+            pollFrom = subscription.since;
+            poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "license-change-feed");
+                thread.setDaemon(true);
+                return thread;
+            });
+            poller.scheduleWithFixedDelay(LicenseChangeFeed::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return subscription;
+    }
+
+    /**
+     * Read the versions written since the last poll (re-reading the replay window), and queue the new ones for every
+     * live subscriber. With no subscribers, the poller idles.
+     */
+    private static void poll() {
+        try {
+            long pollStart = System.currentTimeMillis();
+            if (subscriptions.isEmpty()) {
+                pollFrom = pollStart;
+                polled.clear();
+                return;
+            }
+            String offset = TuidFactory.getFirstIdFromTimestamp(pollFrom);
+            polled.headSet(offset).clear();
+            List<LicenseChange> changes;
+            do {
+                changes = readChanges(offset, PAGE_SIZE);
+                for (LicenseChange change : changes) {
+                    if (polled.add(change.getUpdateId()))
+                        for (Subscription subscription : subscriptions) subscription.offer(change);
+                    offset = change.getUpdateId();
+                }
+            } while (changes.size() == PAGE_SIZE);
+            pollFrom = Math.max(pollFrom, pollStart - REPLAY_MILLIS);
+        } catch (Exception e) {
+            LOG.warn("License change feed poll failed: {}", e.getMessage());
+        }
+    }
+
+    public static int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Read stored changes after the specified updateId, through today. Without an offset, changes start at the
+     * beginning of today.
+     *
+     * @param after last updateId processed (optional)
+     * @param limit maximum number of changes
+     * @return changes in updateId order
+     * @throws InvalidPagingException if the offset is not a TUID or is too old to resume from
+     */
+    public static List<LicenseChange> readChanges(String after, int limit) throws IOException, ExecutionException, InterruptedException {
+        LocalDate today = LocalDate.now(ZoneId.systemDefault());
+        LocalDate day = validateOffset(after);
+        List<LicenseChange> changes = new ArrayList<>();
+        String offset = after;
+        for (; !day.isAfter(today) && changes.size() < limit; day = day.plusDays(1), offset = null) {
+            int yearMonthDay = Integer.parseInt(day.format(DateTimeFormatter.BASIC_ISO_DATE));
+            changes.addAll(Licenses.readLicenseChanges(yearMonthDay, offset, limit - changes.size()));
+        }
+        return changes;
+    }
+
+    /**
+     * Validate a change feed offset.
+     *
+     * @param after last updateId processed (optional)
+     * @return the day to resume reading from
+     * @throws InvalidPagingException if the offset is not a TUID or is too old to resume from
+     */
+    public static LocalDate validateOffset(String after) {
+        LocalDate today = LocalDate.now(ZoneId.systemDefault());
+        if (after == null) return today;
+        LocalDate day;
+        try {
+            day = LocalDate.parse(String.valueOf(TuidCodec.getYearMonthDay(after)), DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (RuntimeException e) { // NumberFormatException or DateTimeParseException
+            throw new InvalidPagingException("Invalid offset " + after, e);
+        }
+        if (day.isBefore(today.minusDays(MAX_CATCH_UP_DAYS)))
+            throw new InvalidPagingException("Offset is more than " + MAX_CATCH_UP_DAYS + " days old; use /v1/licenses?day=YYYYMMDD");
+        return day;
+    }
+
+    /**
+     * Stream changes as server-sent events: stored changes after the offset, then new changes as the shared poller finds
+     * them, with periodic heartbeats, until the client disconnects or falls too far behind. Each event's id is its
+     * updateId, so a reconnecting client's Last-Event-ID header resumes the feed.
+     *
+     * @param subscription live subscription, closed when the stream ends
+     * @param after        last updateId processed (optional; without it, only new changes are sent)
+     * @param output       response output stream
+     */
+    public static void stream(Subscription subscription, String after, OutputStream output) throws IOException, ExecutionException, InterruptedException {
+        try {
+            write(output, "retry: 5000\n\n");
+            // caught-up updateIds the poller may queue again (those within its replay window when this subscription began)
+            TreeSet<String> sent = new TreeSet<>();
+            if (after != null) {
+                String overlap = TuidFactory.getFirstIdFromTimestamp(subscription.since - POLL_MILLIS - REPLAY_MILLIS);
+                String offset = TuidFactory.getFirstIdFromTimestamp(TuidCodec.getMillis(after) - REPLAY_MILLIS);
+                List<LicenseChange> changes;
+                do {
+                    changes = readChanges(offset, PAGE_SIZE);
+                    for (LicenseChange change : changes) {
+                        writeChange(output, change);
+                        if (change.getUpdateId().compareTo(overlap) >= 0) sent.add(change.getUpdateId());
+                        offset = change.getUpdateId();
+                    }
+                } while (changes.size() == PAGE_SIZE);
+            }
+            while (!subscription.overflowed) {
+                LicenseChange change = subscription.queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (change == null) write(output, ": heartbeat\n\n");
+                else if (!sent.remove(change.getUpdateId())) writeChange(output, change);
+            }
+        } finally {
+            subscription.close();
+        }
+    }
+
+    private static void writeChange(OutputStream output, LicenseChange change) throws IOException {
+        write(output, "id: " + change.getUpdateId() + "\nevent: " + (change.isCreated() ? "created" : "updated") +
+                "\ndata: " + JsonSerializer.getJson(change) + "\n\n");
+    }
+
+    private static void write(OutputStream output, String text) throws IOException {
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * A live subscription to License changes, queueing the poller's new versions, and counted against the subscriber
+     * limit until it's closed.
+     */
+    public static class Subscription implements AutoCloseable {
+        private final long since = System.currentTimeMillis();
+        private final BlockingQueue<LicenseChange> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean overflowed = false;
+
+        private Subscription() {
+        }
+
+        private void offer(LicenseChange change) {
+            if (!queue.offer(change)) overflowed = true;
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+    }
+}
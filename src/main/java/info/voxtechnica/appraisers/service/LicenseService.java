@@ -3,8 +3,10 @@ package info.voxtechnica.appraisers.service;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import info.voxtechnica.appraisers.db.dao.Events;
-import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.db.dao.Watermarks;
+import info.voxtechnica.appraisers.model.TuidRange;
 import info.voxtechnica.appraisers.util.LicenseImporter;
+import info.voxtechnica.appraisers.util.TuidCodec;
 import info.voxtechnica.appraisers.util.TuidFactory;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
@@ -15,9 +17,12 @@ import java.io.IOException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LicenseService {
     private static final Logger LOG = LoggerFactory.getLogger(LicenseService.class);
+    private static final int ID_BLOCK = 1024;
+    private static final long WATERMARK_INTERVAL_MILLIS = 1000;
     private static boolean initialized = false;
     private static ListeningExecutorService importService;
 
@@ -34,6 +39,8 @@ public class LicenseService {
 
     /**
      * Import ASC appraiser licenses from an ASC license data snapshot. Licenses are imported using concurrent workers.
+     * The Licenses watermark is advanced when the import starts, at most once a second as workers finish while it runs,
+     * and when the last worker finishes, so list validators go stale for no more than a second mid-import.
      *
      * @param reader   Buffered reader
      * @param date     Optional local date used for importing historical data
@@ -42,10 +49,19 @@ public class LicenseService {
     public static String importLicenses(BufferedReader reader, LocalDate date) {
         boolean historical = (date != null);
         String importId = TuidFactory.getId();
-        Integer day = date == null ? (new Tuid(importId)).getYearMonthDay() : (date.getYear() * 10000) + (date.getMonthValue() * 100) + date.getDayOfMonth();
+        Integer day = date == null ? TuidCodec.getYearMonthDay(importId) : (date.getYear() * 10000) + (date.getMonthValue() * 100) + date.getDayOfMonth();
         Long millis = date == null ? null : date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
         long count = 0;
         String[] fieldNames = {};
+        TuidRange ids = null; // License IDs are drawn from reserved blocks, rather than one at a time
+        AtomicLong pending = new AtomicLong(1); // workers still running, plus this reader
+        AtomicLong advanced = new AtomicLong(System.currentTimeMillis());
+        Watermarks.advance(Watermarks.LICENSES);
+        Runnable finished = () -> {
+            long now = System.currentTimeMillis(), last = advanced.get();
+            if (pending.decrementAndGet() == 0 || (now - last >= WATERMARK_INTERVAL_MILLIS && advanced.compareAndSet(last, now)))
+                Watermarks.advance(Watermarks.LICENSES);
+        };
         String line;
         try {
             while ((line = reader.readLine()) != null) {
@@ -56,13 +72,21 @@ public class LicenseService {
                 // the first line is a header line
                 if (++count == 1) fieldNames = line.split("\t");
                 else {
-                    String id = historical ? TuidFactory.getIdFromTimestamp(millis + count) : TuidFactory.getId();
-                    importService.submit(new LicenseImporter(importId, day, fieldNames, line, id));
+                    if (!historical && (ids == null || ids.getRemaining() == 0)) ids = TuidFactory.reserve(ID_BLOCK);
+                    String id = historical ? TuidFactory.getIdFromTimestamp(millis + count) : ids.next();
+                    pending.incrementAndGet();
+                    try {
+                        importService.submit(new LicenseImporter(importId, day, fieldNames, line, id)).addListener(finished, MoreExecutors.directExecutor());
+                    } catch (RuntimeException e) {
+                        finished.run();
+                        throw e;
+                    }
                 }
             }
         } catch (Exception e) {
             Events.error(null, importId, "LicenseService error: " + ExceptionUtils.getRootCauseMessage(e), ExceptionUtils.getStackTrace(e));
         } finally {
+            finished.run();
             try {
                 reader.close();
             } catch (IOException e) {
@@ -0,0 +1,245 @@
+package info.voxtechnica.appraisers.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import info.voxtechnica.appraisers.config.EventConfiguration;
+import info.voxtechnica.appraisers.config.RecentEventsConfiguration;
+import info.voxtechnica.appraisers.db.InvalidPagingException;
+import info.voxtechnica.appraisers.db.dao.Nodes;
+import info.voxtechnica.appraisers.model.Event;
+import info.voxtechnica.appraisers.model.NodeLease;
+import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.util.EvictingRing;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+import info.voxtechnica.appraisers.util.TuidCodec;
+import info.voxtechnica.appraisers.util.TuidFactory;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * RecentEventFeed serves a live tail of the Event log from memory: each node keeps the Events it writes in a fixed-size
+ * ring, and a tail merges this node's ring with the other nodes' rings (fetched over HTTP from their
+ * /v1/events/recent?local=true endpoints, when a peerPort is configured), in Event ID order. The other nodes are those
+ * holding active Node ID leases. Watching the log therefore adds no load to Cassandra, which remains the source for
+ * history (see /v1/events).
+ * <p/>
+ * Nodes write concurrently, and the auditor may hold an Event for its dedupe window before it's written, so the stream
+ * re-reads the other nodes' Events from the dedupe window plus a few seconds back on every poll (paging through each
+ * node's ring), and drops Events it has already sent.
+ * <p/>
+ * Other nodes are read with the configured peerAuthorization, or else the caller's Authorization header; either is only
+ * sent when the peerScheme is https.
+ */
+public class RecentEventFeed {
+    private static final Logger LOG = LoggerFactory.getLogger(RecentEventFeed.class);
+    public static final int MAX_SUBSCRIBERS = 32;
+    public static final int MAX_LIMIT = 1000;
+    public static final long POLL_MILLIS = 1000L;
+    public static final long REPLAY_MILLIS = 5000L;
+    public static final long HEARTBEAT_MILLIS = 15000L;
+
+    private static EvictingRing<Event> ring = new EvictingRing<>(8192);
+    private static RecentEventsConfiguration config = new RecentEventsConfiguration();
+    private static long replayMillis = REPLAY_MILLIS;
+    private static HttpClient httpClient;
+    private static ExecutorService executor;
+    private static final AtomicInteger subscribers = new AtomicInteger();
+
+    public static void initialize(EvictingRing<Event> recentEvents, EventConfiguration configuration, HttpClient client) {
+        ring = recentEvents;
+        config = configuration.getRecent();
+        replayMillis = configuration.getAudit().getDedupeWindowSeconds() * 1000L + REPLAY_MILLIS;
+        httpClient = client;
+        if (config.getPeerPort() > 0 && !"https".equalsIgnoreCase(config.getPeerScheme()))
+            LOG.warn("Recent Event peers are read over {}, without credentials", config.getPeerScheme());
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "recent-event-peers");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Predicate<Event> filter(Event.LogLevel logLevel, String userId, String entityId) {
+        return event -> (logLevel == null || logLevel.equals(event.getLogLevel())) &&
+                (userId == null || userId.equals(event.getUserId())) &&
+                (entityId == null || (event.getEntityIds() != null && event.getEntityIds().contains(entityId)));
+    }
+
+    /**
+     * Validate a tail offset.
+     *
+     * @param after last Event ID seen (optional)
+     * @throws InvalidPagingException if the offset is not a TUID
+     */
+    public static void validateOffset(String after) {
+        if (after == null) return;
+        try {
+            new Tuid(after);
+        } catch (NumberFormatException e) {
+            throw new InvalidPagingException("Invalid offset " + after, e);
+        }
+    }
+
+    /**
+     * Read recent Events from memory, in ID order: with an offset, the first Events after it; otherwise the latest.
+     *
+     * @param after         last Event ID seen (optional)
+     * @param limit         maximum number of Events
+     * @param logLevel      log level filter (optional)
+     * @param userId        user filter (optional)
+     * @param entityId      entity filter (optional)
+     * @param local         read this node only, rather than the whole cluster
+     * @param authorization Authorization header to present to the other nodes
+     * @throws InvalidPagingException if the offset is not a TUID
+     */
+    public static List<Event> read(String after, int limit, Event.LogLevel logLevel, String userId, String entityId, boolean local, String authorization) {
+        validateOffset(after);
+        Predicate<Event> filter = filter(logLevel, userId, entityId);
+        List<Event> events = new ArrayList<>();
+        ring.readFrom(0, Integer.MAX_VALUE, event -> filter.test(event) && (after == null || event.getId().compareTo(after) > 0), events);
+        if (!local) events.addAll(readPeers(after, limit, false, authorization, logLevel, userId, entityId));
+        events.sort(Comparator.comparing(Event::getId));
+        if (events.size() <= limit) return events;
+        return new ArrayList<>(after == null ? events.subList(events.size() - limit, events.size()) : events.subList(0, limit));
+    }
+
+    /**
+     * Read recent Events from the other nodes' rings (those with active leases). Nodes that don't answer within the peer
+     * timeout are skipped.
+     *
+     * @param allPages with an offset, keep reading each node until it returns less than a full page
+     */
+    private static List<Event> readPeers(String after, int limit, boolean allPages, String authorization, Event.LogLevel logLevel, String userId, String entityId) {
+        List<Event> events = new ArrayList<>();
+        if (config.getPeerPort() <= 0 || httpClient == null) return events;
+        List<Future<List<Event>>> futures = new ArrayList<>();
+        try {
+            for (NodeLease node : Nodes.readLeases())
+                if (node.getState() == NodeLease.State.ACTIVE && node.getId() != TuidFactory.getServerId() && node.getIpAddress() != null)
+                    futures.add(executor.submit(() -> readPeer(node, after, limit, allPages, authorization, logLevel, userId, entityId)));
+            for (Future<List<Event>> future : futures) {
+                try {
+                    events.addAll(future.get(config.getPeerTimeoutMillis(), TimeUnit.MILLISECONDS));
+                } catch (ExecutionException | TimeoutException e) {
+                    future.cancel(true);
+                    LOG.warn("Unable to read recent Events from a peer: {}", e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.warn("Unable to read Node ID Leases: {}", e.getMessage());
+        }
+        return events;
+    }
+
+    private static List<Event> readPeer(NodeLease node, String after, int limit, boolean allPages, String authorization, Event.LogLevel logLevel, String userId, String entityId) throws Exception {
+        List<Event> events = new ArrayList<>();
+        String offset = after;
+        List<Event> page;
+        do {
+            page = readPeerPage(node, offset, limit, authorization, logLevel, userId, entityId);
+            events.addAll(page);
+            if (!page.isEmpty()) offset = page.get(page.size() - 1).getId();
+        } while (allPages && after != null && page.size() >= limit);
+        return events;
+    }
+
+    private static List<Event> readPeerPage(NodeLease node, String after, int limit, String authorization, Event.LogLevel logLevel, String userId, String entityId) throws Exception {
+        URIBuilder uri = new URIBuilder().setScheme(config.getPeerScheme()).setHost(node.getIpAddress().getHostAddress()).setPort(config.getPeerPort())
+                .setPath("/v1/events/recent").addParameter("local", "true").addParameter("limit", String.valueOf(limit));
+        if (after != null) uri.addParameter("after", after);
+        if (logLevel != null) uri.addParameter("log_level", logLevel.name());
+        if (userId != null) uri.addParameter("user_id", userId);
+        if (entityId != null) uri.addParameter("entity_id", entityId);
+        HttpGet request = new HttpGet(uri.build());
+        request.setConfig(RequestConfig.custom().setConnectTimeout(config.getPeerTimeoutMillis()).setSocketTimeout(config.getPeerTimeoutMillis()).build());
+        String credentials = config.getPeerAuthorization() != null ? config.getPeerAuthorization() : authorization;
+        if (credentials != null && "https".equalsIgnoreCase(config.getPeerScheme()))
+            request.setHeader(HttpHeaders.AUTHORIZATION, credentials);
+        HttpResponse response = httpClient.execute(request);
+        String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        if (response.getStatusLine().getStatusCode() != 200)
+            throw new IOException("Node " + node.getId() + " returned " + response.getStatusLine().getStatusCode());
+        return JsonSerializer.getObject(body, new TypeReference<List<Event>>() {
+        });
+    }
+
+    /**
+     * @return true if there's room for another stream subscriber (release it with unsubscribe)
+     */
+    public static boolean subscribe() {
+        if (subscribers.incrementAndGet() <= MAX_SUBSCRIBERS) return true;
+        subscribers.decrementAndGet();
+        return false;
+    }
+
+    public static void unsubscribe() {
+        subscribers.decrementAndGet();
+    }
+
+    /**
+     * Stream recent Events as server-sent events until the client disconnects: Events after the offset still in
+     * memory, then new Events as they're written, with periodic heartbeats. Each event's id is the Event ID, so a
+     * reconnecting client's Last-Event-ID header resumes the tail.
+     *
+     * @param after  last Event ID seen (optional; without it, only new Events are sent)
+     * @param output response output stream
+     */
+    public static void stream(String after, Event.LogLevel logLevel, String userId, String entityId, boolean local, String authorization, OutputStream output) throws IOException, InterruptedException {
+        Predicate<Event> filter = filter(logLevel, userId, entityId);
+        try {
+            write(output, "retry: 5000\n\n");
+            // Event IDs sent within the replay window, which the next poll re-reads; older ones are dropped
+            TreeSet<String> sent = new TreeSet<>();
+            long position = after == null ? ring.getSequence() : 0;
+            long peersFrom = after == null ? System.currentTimeMillis() : TuidCodec.getMillis(after);
+            long lastWrite = System.currentTimeMillis();
+            while (true) {
+                long pollStart = System.currentTimeMillis();
+                List<Event> events = new ArrayList<>();
+                position = ring.readFrom(position, Integer.MAX_VALUE, event -> filter.test(event) && (after == null || event.getId().compareTo(after) > 0), events);
+                String peerAfter = TuidFactory.getFirstIdFromTimestamp(peersFrom - replayMillis);
+                sent.headSet(peerAfter).clear();
+                if (!local) {
+                    for (Event event : readPeers(peerAfter, MAX_LIMIT, true, authorization, logLevel, userId, entityId))
+                        if (after == null || event.getId().compareTo(after) > 0) events.add(event);
+                }
+                peersFrom = pollStart;
+                events.sort(Comparator.comparing(Event::getId));
+                for (Event event : events)
+                    if (sent.add(event.getId())) {
+                        write(output, "id: " + event.getId() + "\nevent: " + (event.getLogLevel() == null ? "event" : event.getLogLevel().name().toLowerCase()) +
+                                "\ndata: " + JsonSerializer.getJson(event) + "\n\n");
+                        lastWrite = System.currentTimeMillis();
+                    }
+                if (System.currentTimeMillis() - lastWrite >= HEARTBEAT_MILLIS) {
+                    write(output, ": heartbeat\n\n");
+                    lastWrite = System.currentTimeMillis();
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } finally {
+            unsubscribe();
+        }
+    }
+
+    private static void write(OutputStream output, String text) throws IOException {
+        output.write(text.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+}
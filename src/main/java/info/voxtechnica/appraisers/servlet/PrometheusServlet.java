@@ -0,0 +1,167 @@
+package info.voxtechnica.appraisers.servlet;
+
+import com.codahale.metrics.*;
+import info.voxtechnica.appraisers.db.MetricAggregator;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrometheusServlet exposes metrics in the Prometheus text format (or OpenMetrics, when the scraper accepts it), for
+ * the admin connector. It covers the Dropwizard registry (resource timers, Cassandra driver metrics, caches, and our
+ * own components' gauges and meters) and the MetricAggregator's per-tag duration histograms, as
+ * appraisers_metric_duration_seconds{tag="..."}.
+ * <p/>
+ * Scrapes are cheap: values are written straight to the response, and sanitized metric names are cached. Counters are
+ * exposed as gauges (Dropwizard counters can go down), meters as counters, and histograms and timers as summaries.
+ */
+public class PrometheusServlet extends HttpServlet {
+    public static final String OPENMETRICS_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    public static final String TEXT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String DURATION_NAME = "appraisers_metric_duration_seconds";
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    private static final String[] BUCKET_LABELS = new String[MetricAggregator.BUCKET_MILLIS.length + 1];
+    private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    static {
+        for (int i = 0; i < MetricAggregator.BUCKET_MILLIS.length; i++)
+            BUCKET_LABELS[i] = Double.toString(MetricAggregator.BUCKET_MILLIS[i] / 1000.0);
+        BUCKET_LABELS[MetricAggregator.BUCKET_MILLIS.length] = "+Inf";
+    }
+
+    private final MetricRegistry registry;
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+
+    public PrometheusServlet(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String accept = request.getHeader("Accept");
+        boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(openMetrics ? OPENMETRICS_TYPE : TEXT_TYPE);
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        PrintWriter writer = response.getWriter();
+        for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet())
+            writeGauge(writer, name(entry.getKey()), entry.getValue().getValue());
+        for (Map.Entry<String, Counter> entry : registry.getCounters().entrySet())
+            writeGauge(writer, name(entry.getKey()), entry.getValue().getCount());
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet())
+            writeCounter(writer, name(entry.getKey()), entry.getValue().getCount(), openMetrics);
+        for (Map.Entry<String, Histogram> entry : registry.getHistograms().entrySet())
+            writeSummary(writer, name(entry.getKey()), entry.getValue().getSnapshot(), entry.getValue().getCount(), 1.0);
+        for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet())
+            writeSummary(writer, name(entry.getKey()) + "_seconds", entry.getValue().getSnapshot(), entry.getValue().getCount(), SECONDS_PER_NANO);
+        writeDurations(writer);
+        if (openMetrics) writer.write("# EOF\n");
+        writer.flush();
+    }
+
+    /**
+     * @return a Dropwizard metric name as a valid Prometheus metric name (e.g. dots and dashes become underscores)
+     */
+    private String name(String name) {
+        String cached = names.get(name);
+        if (cached != null) return cached;
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9');
+            builder.append(valid ? c : '_');
+        }
+        String sanitized = builder.toString();
+        names.put(name, sanitized);
+        return sanitized;
+    }
+
+    private static void writeType(PrintWriter writer, String name, String type) {
+        writer.write("# TYPE ");
+        writer.write(name);
+        writer.write(' ');
+        writer.write(type);
+        writer.write('\n');
+    }
+
+    private static void writeGauge(PrintWriter writer, String name, Object value) {
+        double number;
+        if (value instanceof Number) number = ((Number) value).doubleValue();
+        else if (value instanceof Boolean) number = (Boolean) value ? 1 : 0;
+        else return; // not representable
+        writeType(writer, name, "gauge");
+        writer.write(name);
+        writer.write(' ');
+        writer.print(number);
+        writer.write('\n');
+    }
+
+    private static void writeCounter(PrintWriter writer, String name, long count, boolean openMetrics) {
+        writeType(writer, openMetrics ? name : name + "_total", "counter");
+        writer.write(name);
+        writer.write("_total ");
+        writer.print(count);
+        writer.write('\n');
+    }
+
+    private static void writeSummary(PrintWriter writer, String name, Snapshot snapshot, long count, double scale) {
+        writeType(writer, name, "summary");
+        for (double quantile : QUANTILES) {
+            writer.write(name);
+            writer.write("{quantile=\"");
+            writer.print(quantile);
+            writer.write("\"} ");
+            writer.print(snapshot.getValue(quantile) * scale);
+            writer.write('\n');
+        }
+        writer.write(name);
+        writer.write("_count ");
+        writer.print(count);
+        writer.write('\n');
+    }
+
+    /**
+     * Write the aggregated Metric durations as one histogram family, labeled by tag, with cumulative buckets.
+     */
+    private static void writeDurations(PrintWriter writer) {
+        writeType(writer, DURATION_NAME, "histogram");
+        MetricAggregator.forEachTotals((tag, totals) -> {
+            String label = escape(tag);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_LABELS.length; i++) {
+                cumulative += totals.getBucket(i);
+                writer.write(DURATION_NAME);
+                writer.write("_bucket{tag=\"");
+                writer.write(label);
+                writer.write("\",le=\"");
+                writer.write(BUCKET_LABELS[i]);
+                writer.write("\"} ");
+                writer.print(cumulative);
+                writer.write('\n');
+            }
+            writer.write(DURATION_NAME);
+            writer.write("_count{tag=\"");
+            writer.write(label);
+            writer.write("\"} ");
+            writer.print(cumulative); // the +Inf bucket, so the count never disagrees with the buckets
+            writer.write('\n');
+            writer.write(DURATION_NAME);
+            writer.write("_sum{tag=\"");
+            writer.write(label);
+            writer.write("\"} ");
+            writer.print(totals.getSum() / 1000.0);
+            writer.write('\n');
+        });
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
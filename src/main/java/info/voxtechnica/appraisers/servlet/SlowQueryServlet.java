@@ -0,0 +1,23 @@
+package info.voxtechnica.appraisers.servlet;
+
+import info.voxtechnica.appraisers.db.StatementRegistry;
+import info.voxtechnica.appraisers.util.JsonSerializer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * SlowQueryServlet lists recent slow Cassandra statement executions (see StatementRegistry), newest first, for the
+ * admin connector. The optional name parameter filters by statement name, e.g. ?name=Licenses.readCurrentVersion
+ */
+public class SlowQueryServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json; charset=utf-8");
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        response.getWriter().write(JsonSerializer.getJson(StatementRegistry.readSlowQueries(request.getParameter("name"))));
+    }
+}
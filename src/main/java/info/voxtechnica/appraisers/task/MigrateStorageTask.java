@@ -0,0 +1,58 @@
+package info.voxtechnica.appraisers.task;
+
+import com.codahale.metrics.annotation.Timed;
+import com.google.common.collect.ImmutableMultimap;
+import info.voxtechnica.appraisers.client.CassandraClient;
+import info.voxtechnica.appraisers.db.StorageCodec;
+import info.voxtechnica.appraisers.db.StorageMigration;
+import info.voxtechnica.appraisers.db.dao.Events;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Task: convert legacy JSON text rows to the compact Smile binary encoding. The migration runs in a background thread,
+ * since the larger tables can take a while. Optionally specify one or more tables; otherwise all are migrated.
+ * <p/>
+ * Usage: curl -X POST http://localhost:8081/tasks/migrate-storage?table=licenses
+ */
+public class MigrateStorageTask extends Task {
+    private final CassandraClient dbClient;
+
+    public MigrateStorageTask(CassandraClient dbClient) {
+        super("migrate-storage");
+        this.dbClient = dbClient;
+    }
+
+    @Override
+    @Timed
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter printWriter) throws Exception {
+        if (dbClient.getStorageCodec() != StorageCodec.SMILE) {
+            printWriter.println("MigrateStorageTask: storageCodec is " + dbClient.getStorageCodec() + "; set it to SMILE first");
+            printWriter.close();
+            return;
+        }
+        List<String> tables = new ArrayList<>(parameters.get("table"));
+        for (String table : tables)
+            if (!StorageMigration.TABLES.containsKey(table)) {
+                printWriter.println("MigrateStorageTask: unsupported table " + table);
+                printWriter.close();
+                return;
+            }
+        Thread worker = new Thread(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                long count = new StorageMigration(dbClient.getSession()).migrate(tables);
+                Events.info(null, (String) null, String.format("MigrateStorageTask: migrated %d rows in %d ms", count, System.currentTimeMillis() - startTime));
+            } catch (Exception e) {
+                Events.error("MigrateStorageTask: " + e.getMessage(), null);
+            }
+        }, "migrate-storage");
+        worker.setDaemon(true);
+        worker.start();
+        printWriter.println("MigrateStorageTask: started for " + (tables.isEmpty() ? StorageMigration.TABLES.keySet() : tables));
+        printWriter.close();
+    }
+}
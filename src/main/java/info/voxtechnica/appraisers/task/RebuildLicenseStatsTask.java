@@ -0,0 +1,76 @@
+package info.voxtechnica.appraisers.task;
+
+import com.codahale.metrics.annotation.Timed;
+import com.google.common.collect.ImmutableMultimap;
+import info.voxtechnica.appraisers.db.dao.Events;
+import info.voxtechnica.appraisers.db.dao.LicenseStats;
+import info.voxtechnica.appraisers.db.dao.Licenses;
+import info.voxtechnica.appraisers.model.License;
+import info.voxtechnica.appraisers.model.Page;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Task: recount current License versions by state, type, status, and county, and reconcile the precomputed License
+ * statistics with the result. Use it to seed the statistics for Licenses imported before they were maintained, or to
+ * repair drift. The rebuild runs in a background thread, since it reads every License; progress and the result are
+ * logged as Events. Only one rebuild runs at a time.
+ * <p/>
+ * Usage: curl -X POST http://localhost:8081/tasks/rebuild-license-stats
+ */
+public class RebuildLicenseStatsTask extends Task {
+    private static final long PROGRESS_INTERVAL = 100000;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public RebuildLicenseStatsTask() {
+        super("rebuild-license-stats");
+    }
+
+    @Override
+    @Timed
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter printWriter) throws Exception {
+        if (!running.compareAndSet(false, true)) {
+            printWriter.println("RebuildLicenseStatsTask: a rebuild is already running");
+            printWriter.close();
+            return;
+        }
+        Thread worker = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                Events.error("RebuildLicenseStatsTask: " + e.getMessage(), null);
+            } finally {
+                running.set(false);
+            }
+        }, "rebuild-license-stats");
+        worker.setDaemon(true);
+        worker.start();
+        printWriter.println("RebuildLicenseStatsTask: started; progress is logged as Events");
+        printWriter.close();
+    }
+
+    private void rebuild() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Map<List<String>, Long> counts = new HashMap<>();
+        long licenses = 0;
+        String cursor = null;
+        do {
+            Page<License> page = Licenses.readLicenses(null, cursor);
+            for (License license : page.getItems()) {
+                counts.merge(LicenseStats.dimensions(license), 1L, Long::sum);
+                if (++licenses % PROGRESS_INTERVAL == 0)
+                    Events.info(null, (String) null, String.format("RebuildLicenseStatsTask: counted %d Licenses in %d ms",
+                            licenses, System.currentTimeMillis() - startTime));
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        int adjusted = LicenseStats.reconcile(counts);
+        Events.info(null, (String) null, String.format("RebuildLicenseStatsTask: counted %d Licenses in %d groups, adjusted %d counters in %d ms",
+                licenses, counts.size(), adjusted, System.currentTimeMillis() - startTime));
+    }
+}
@@ -0,0 +1,85 @@
+package info.voxtechnica.appraisers.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * A fixed-size, lock-free ring that keeps the most recently added elements, overwriting the oldest. Each add claims a
+ * sequence number and publishes the element with it in a slot, so readers can copy out everything after a sequence
+ * number without blocking writers: a slot not yet published ends the read, and a slot already overwritten is skipped.
+ * Capacity is rounded up to a power of two.
+ *
+ * @param <E> element type
+ */
+public class EvictingRing<E> {
+    private final int mask;
+    private final AtomicReferenceArray<Slot<E>> slots;
+    private final AtomicLong sequence = new AtomicLong(); // sequence number of the next add
+
+    public EvictingRing(int capacity) {
+        if (capacity < 2 || capacity > (1 << 30)) throw new IllegalArgumentException("Capacity must be 2 to 2^30");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * Add an element, evicting the oldest if the ring is full.
+     *
+     * @return the element's sequence number
+     */
+    public long add(E element) {
+        if (element == null) throw new NullPointerException();
+        long position = sequence.getAndIncrement();
+        slots.set((int) position & mask, new Slot<>(position, element));
+        return position;
+    }
+
+    /**
+     * @return the sequence number the next element will get (i.e. the number of elements ever added)
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Copy out elements from a sequence number onward, oldest first. Elements already evicted are skipped.
+     *
+     * @param from   first sequence number to read
+     * @param limit  maximum number of elements to copy
+     * @param filter elements to copy
+     * @param target collection to copy them to
+     * @return the sequence number to resume reading from
+     */
+    public long readFrom(long from, int limit, Predicate<? super E> filter, Collection<? super E> target) {
+        long end = sequence.get();
+        long position = Math.max(from, end - capacity());
+        int count = 0;
+        for (; position < end && count < limit; position++) {
+            Slot<E> slot = slots.get((int) position & mask);
+            if (slot == null || slot.position < position) break; // claimed, but not yet published
+            if (slot.position > position) continue; // overwritten
+            if (filter.test(slot.element)) {
+                target.add(slot.element);
+                count++;
+            }
+        }
+        return position;
+    }
+
+    private static class Slot<E> {
+        private final long position;
+        private final E element;
+
+        Slot(long position, E element) {
+            this.position = position;
+            this.element = element;
+        }
+    }
+}
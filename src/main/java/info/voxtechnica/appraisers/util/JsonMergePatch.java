@@ -0,0 +1,68 @@
+package info.voxtechnica.appraisers.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON Merge Patch (RFC 7386) support: compute the field-level difference between two documents, and apply it again.
+ * Objects are compared recursively, removed fields are represented by null, and any other changed value (including an
+ * array) is replaced whole. Documents are assumed not to contain explicit nulls, which holds for our serialized models.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7386">RFC 7386</a>
+ */
+public class JsonMergePatch {
+
+    /**
+     * Compute a merge patch that transforms source into target.
+     *
+     * @param source original document
+     * @param target modified document
+     * @return patch, which is an empty object if the documents are equal
+     */
+    public static JsonNode diff(JsonNode source, JsonNode target) {
+        if (source == null || !source.isObject() || target == null || !target.isObject()) return target;
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> sourceFields = source.fields();
+        while (sourceFields.hasNext()) {
+            Map.Entry<String, JsonNode> field = sourceFields.next();
+            if (!target.has(field.getKey())) patch.putNull(field.getKey());
+        }
+        Iterator<Map.Entry<String, JsonNode>> targetFields = target.fields();
+        while (targetFields.hasNext()) {
+            Map.Entry<String, JsonNode> field = targetFields.next();
+            JsonNode sourceValue = source.get(field.getKey());
+            JsonNode targetValue = field.getValue();
+            if (sourceValue == null) patch.set(field.getKey(), targetValue);
+            else if (!sourceValue.equals(targetValue)) {
+                if (sourceValue.isObject() && targetValue.isObject())
+                    patch.set(field.getKey(), diff(sourceValue, targetValue));
+                else patch.set(field.getKey(), targetValue);
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * Apply a merge patch to a document. The document is not modified; a patched copy is returned.
+     *
+     * @param target document to patch
+     * @param patch  merge patch
+     * @return patched document
+     */
+    public static JsonNode apply(JsonNode target, JsonNode patch) {
+        if (patch == null) return target;
+        if (!patch.isObject()) return patch;
+        ObjectNode result = (target != null && target.isObject()) ? ((ObjectNode) target).deepCopy() : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> patchFields = patch.fields();
+        while (patchFields.hasNext()) {
+            Map.Entry<String, JsonNode> field = patchFields.next();
+            if (field.getValue().isNull()) result.remove(field.getKey());
+            else result.set(field.getKey(), apply(result.get(field.getKey()), field.getValue()));
+        }
+        return result;
+    }
+}
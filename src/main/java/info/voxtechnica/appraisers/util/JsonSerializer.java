@@ -9,6 +9,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import io.dropwizard.jackson.Jackson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +30,7 @@ import java.util.List;
 public class JsonSerializer {
     private static final Logger LOG = LoggerFactory.getLogger(JsonSerializer.class);
     static ObjectMapper objectMapper = null;
+    static ObjectMapper smileMapper = null;
 
     static public ObjectMapper setObjectMapper(final ObjectMapper mapper) {
         objectMapper = mapper;
@@ -107,6 +111,20 @@ public class JsonSerializer {
         return getObjectMapper().readValue(jsonString, typeFactory.constructCollectionType(List.class, targetClass));
     }
 
+    /**
+     * Serialize an object to Smile, Jackson's binary JSON encoding. Repeated field names and short string values are
+     * written once and back-referenced, so documents with many keys (e.g. License rawData) shrink considerably.
+     */
+    static public byte[] getSmile(final Object val) throws JsonProcessingException {
+        if (val == null) return null;
+        return getSmileMapper().writeValueAsBytes(val);
+    }
+
+    static public <T> T getObjectFromSmile(final byte[] smile, final Class<T> type) throws IOException {
+        if (smile == null || type == null) return null;
+        return type.cast(getSmileMapper().readValue(smile, type));
+    }
+
     static public ObjectMapper getObjectMapper() {
         if (objectMapper == null) {
             setObjectMapper(new ObjectMapper());
@@ -114,4 +132,14 @@ public class JsonSerializer {
         }
         return objectMapper;
     }
+
+    static public ObjectMapper getSmileMapper() {
+        if (smileMapper == null) {
+            SmileFactory factory = new SmileFactory();
+            factory.enable(SmileGenerator.Feature.CHECK_SHARED_NAMES);
+            factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+            smileMapper = configureObjectMapper(Jackson.newObjectMapper(factory));
+        }
+        return smileMapper;
+    }
 }
\ No newline at end of file
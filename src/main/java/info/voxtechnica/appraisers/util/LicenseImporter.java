@@ -2,9 +2,9 @@ package info.voxtechnica.appraisers.util;
 
 import info.voxtechnica.appraisers.db.dao.Events;
 import info.voxtechnica.appraisers.db.dao.Imports;
+import info.voxtechnica.appraisers.db.dao.LicenseStats;
 import info.voxtechnica.appraisers.db.dao.Licenses;
 import info.voxtechnica.appraisers.model.License;
-import info.voxtechnica.appraisers.model.Tuid;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import java.util.Map;
@@ -23,7 +23,7 @@ public class LicenseImporter implements Runnable {
 
     public LicenseImporter(String importId, Integer day, String[] fieldNames, String record, String id) {
         this.importId = importId;
-        this.day = day != null ? day : (new Tuid(importId)).getYearMonthDay();
+        this.day = day != null ? day : TuidCodec.getYearMonthDay(importId);
         this.fieldNames = fieldNames;
         this.record = record;
         this.id = id;
@@ -48,13 +48,15 @@ public class LicenseImporter implements Runnable {
                 else {
                     newLicense.setId(oldLicense.getId());
                     newLicense.setUpdateId(id);
-                    Licenses.createLicenseVersion(newLicense);
+                    Licenses.createLicenseVersion(newLicense, oldLicense);
+                    LicenseStats.recordUpdated(oldLicense, newLicense, day);
                     Imports.incrementUpdated(importId, day);
                 }
             } else {
                 // create a new license
                 newLicense.setId(id);
                 Licenses.createLicense(newLicense);
+                LicenseStats.recordCreated(newLicense, day);
                 Imports.incrementCreated(importId, day);
             }
         } catch (Exception e) {
@@ -0,0 +1,92 @@
+package info.voxtechnica.appraisers.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RequestTimings accumulates where an API request's time goes: authentication, Cassandra statements, and response
+ * serialization. The current request's timings are bound to the request thread; code that completes work on other
+ * threads (e.g. driver callbacks) captures the instance first, and adds to it when the work completes.
+ * <p/>
+ * Statement time is the sum of the request's statement latencies, so parallel reads can add up to more than the
+ * request's wall-clock time; the statement count shows the fan-out.
+ */
+public class RequestTimings {
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+    private volatile long authStartNanos;
+    private volatile long authEndNanos;
+    private final LongAdder statementNanos = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private volatile long serializeNanos;
+    private volatile long bytes;
+
+    /**
+     * Start timing a request on this thread (replacing any timings left over from a previous request).
+     */
+    public static RequestTimings begin() {
+        RequestTimings timings = new RequestTimings();
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    /**
+     * @return the current thread's request timings, or null if it isn't serving a request
+     */
+    public static RequestTimings current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stop attributing work on this thread to the request.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void authStarted() {
+        authStartNanos = System.nanoTime();
+    }
+
+    public void authEnded() {
+        authEndNanos = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds spent authenticating and authorizing, up to now if it hasn't ended (e.g. it failed)
+     */
+    public long getAuthNanos() {
+        if (authStartNanos == 0) return 0;
+        return (authEndNanos == 0 ? System.nanoTime() : authEndNanos) - authStartNanos;
+    }
+
+    public void addStatement(long nanos) {
+        statementNanos.add(nanos);
+        statements.increment();
+    }
+
+    public long getStatementNanos() {
+        return statementNanos.sum();
+    }
+
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    public void addSerialization(long nanos, long byteCount) {
+        serializeNanos += nanos;
+        bytes += byteCount;
+    }
+
+    public long getSerializeNanos() {
+        return serializeNanos;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,107 @@
+package info.voxtechnica.appraisers.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer (after Dmitry Vyukov's bounded MPMC queue). Each slot
+ * carries a sequence number that tells producers and consumers whether it is free or full for their lap around the
+ * ring, so offer and poll each cost a single CAS when uncontended. Capacity is rounded up to a power of two.
+ *
+ * @param <E> element type
+ */
+public class RingBuffer<E> {
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(); // next position to poll
+    private final AtomicLong tail = new AtomicLong(); // next position to offer
+
+    public RingBuffer(int capacity) {
+        if (capacity < 2 || capacity > (1 << 30)) throw new IllegalArgumentException("Capacity must be 2 to 2^30");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+
+    /**
+     * Add an element, if there's room.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) throw new NullPointerException();
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.set(index, position + 1); // publish
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) return false; // full
+            else position = tail.get();
+        }
+    }
+
+    /**
+     * Remove the oldest element.
+     *
+     * @return the element, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    sequences.set(index, position + mask + 1); // free the slot for the next lap
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) return null; // empty
+            else position = head.get();
+        }
+    }
+
+    /**
+     * Remove up to max elements, oldest first, into the collection.
+     *
+     * @return number of elements drained
+     */
+    public int drainTo(Collection<? super E> collection, int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return approximate number of elements (exact when quiescent)
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,57 @@
+package info.voxtechnica.appraisers.util;
+
+import java.util.*;
+
+/**
+ * K-way merge of sorted runs (e.g. the IDs read from several index partitions), using a priority queue of run heads.
+ * Merging k runs into n results costs O(n log k), and stops as soon as the limit is reached.
+ */
+public class SortedMerge {
+
+    /**
+     * Merge sorted lists into one sorted list, dropping duplicates.
+     *
+     * @param runs  lists, each sorted in natural order
+     * @param limit maximum number of results
+     * @return the first limit distinct elements, in order
+     */
+    public static <T extends Comparable<? super T>> List<T> merge(Collection<? extends List<T>> runs, int limit) {
+        PriorityQueue<PeekingIterator<T>> heads = new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparing(PeekingIterator::peek));
+        for (List<T> run : runs)
+            if (run != null && !run.isEmpty()) heads.add(new PeekingIterator<>(run.iterator()));
+        List<T> merged = new ArrayList<>();
+        T last = null;
+        while (!heads.isEmpty() && merged.size() < limit) {
+            PeekingIterator<T> head = heads.poll();
+            T next = head.next();
+            if (last == null || next.compareTo(last) != 0) merged.add(next);
+            last = next;
+            if (head.hasNext()) heads.add(head);
+        }
+        return merged;
+    }
+
+    private static class PeekingIterator<T> {
+        private final Iterator<T> iterator;
+        private T peeked;
+
+        PeekingIterator(Iterator<T> iterator) {
+            this.iterator = iterator;
+            this.peeked = iterator.next();
+        }
+
+        T peek() {
+            return peeked;
+        }
+
+        boolean hasNext() {
+            return peeked != null;
+        }
+
+        T next() {
+            T next = peeked;
+            peeked = iterator.hasNext() ? iterator.next() : null;
+            return next;
+        }
+    }
+}
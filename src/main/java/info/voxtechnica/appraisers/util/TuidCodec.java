@@ -0,0 +1,201 @@
+package info.voxtechnica.appraisers.util;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.IsoFields;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+
+/**
+ * TuidCodec converts TUIDs between their base-36 string form and their 64-bit value, and derives their calendar fields
+ * (yyyymmdd, yyyymm, yyyyww, yyyyddd, and the ISO createdAt string) without building date-time objects. These run for
+ * every Event, License version and serialized entity, so they avoid the general-purpose parsers and formatters:
+ * base-36 digits go through lookup tables, and each local day's calendar fields are computed once and cached, so a
+ * derivation is a range check and some arithmetic.
+ * <p/>
+ * Calendar fields are in the system default time zone, matching what Tuid reported when it was backed by Joda DateTime.
+ * The static methods use that zone; instances for other zones are available for tests and reports.
+ */
+public class TuidCodec {
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    private static final int CACHED_DAYS = 16; // a power of two
+    private static final TuidCodec DEFAULT = new TuidCodec(ZoneId.systemDefault());
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < DIGITS.length; i++) {
+            VALUES[DIGITS[i]] = (byte) i;
+            VALUES[Character.toLowerCase(DIGITS[i])] = (byte) i;
+        }
+    }
+
+    /**
+     * The calendar fields of a span of local time with a constant UTC offset: a whole day, or the part of a day on
+     * one side of an offset transition (e.g. daylight saving time).
+     */
+    private static class Day {
+        final long start; // inclusive epoch millis
+        final long end; // exclusive epoch millis
+        final long midnight; // epoch millis of local midnight at this offset
+        final int yearMonthDay;
+        final int yearWeek;
+        final int yearDay;
+        final String datePrefix; // yyyy-MM-ddT
+        final String offset; // Z or ±HH:mm[:ss]
+
+        Day(long start, long end, long midnight, LocalDate date, ZoneOffset offset) {
+            this.start = start;
+            this.end = end;
+            this.midnight = midnight;
+            this.yearMonthDay = date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+            this.yearWeek = date.get(IsoFields.WEEK_BASED_YEAR) * 100 + date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+            this.yearDay = date.getYear() * 1000 + date.getDayOfYear();
+            this.datePrefix = String.format("%04d-%02d-%02dT", date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+            this.offset = offset.getId();
+        }
+    }
+
+    private final ZoneRules rules;
+    private final Day[] days = new Day[CACHED_DAYS]; // Days are immutable, so racing writers are harmless
+
+    public TuidCodec(ZoneId zone) {
+        this.rules = zone.getRules();
+    }
+
+    /**
+     * Decode a base-36 TUID (either case) into its value.
+     *
+     * @throws NumberFormatException if it's not a base-36 number
+     */
+    public static long decode(final String id) throws NumberFormatException {
+        int length = id.length();
+        if (length == 0 || length > 12) return Long.parseLong(id, 36); // 12 digits can't overflow a long
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            int digit = c < 128 ? VALUES[c] : -1;
+            if (digit < 0) return Long.parseLong(id, 36); // signs, whitespace, or a NumberFormatException
+            value = value * 36 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Encode a TUID value as an upper-case base-36 string.
+     */
+    public static String encode(long value) {
+        if (value < 0) return Long.toString(value, 36).toUpperCase();
+        char[] buffer = new char[13];
+        int position = buffer.length;
+        do {
+            buffer[--position] = DIGITS[(int) (value % 36)];
+            value /= 36;
+        } while (value != 0);
+        return new String(buffer, position, buffer.length - position);
+    }
+
+    /**
+     * @return the embedded timestamp of a TUID value, in milliseconds since epoch
+     */
+    public static long millis(final long value) {
+        return value >> 18;
+    }
+
+    public static long getMillis(final String id) throws NumberFormatException {
+        return millis(decode(id));
+    }
+
+    /**
+     * @return the embedded timestamp of a TUID as an ISO date-time string with offset (e.g. 2014-12-06T07:38:25.468-08:00)
+     */
+    public static String getCreatedAt(final String id) throws NumberFormatException {
+        return DEFAULT.isoDateTime(getMillis(id));
+    }
+
+    public static int getYearMonthDay(final String id) throws NumberFormatException {
+        return DEFAULT.yearMonthDay(getMillis(id));
+    }
+
+    public static TuidCodec getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return year-month-day integer of the form 'yyyymmdd'
+     */
+    public int yearMonthDay(final long millis) {
+        return day(millis).yearMonthDay;
+    }
+
+    /**
+     * @return year-month integer of the form 'yyyymm'
+     */
+    public int yearMonth(final long millis) {
+        return day(millis).yearMonthDay / 100;
+    }
+
+    /**
+     * @return ISO week-based year and week integer of the form 'yyyyww'
+     */
+    public int yearWeek(final long millis) {
+        return day(millis).yearWeek;
+    }
+
+    /**
+     * @return year and ordinal day integer of the form 'yyyyddd'
+     */
+    public int yearDay(final long millis) {
+        return day(millis).yearDay;
+    }
+
+    /**
+     * @return ISO date-time string with millis and offset, as Joda's ISODateTimeFormat.dateTime() prints it
+     */
+    public String isoDateTime(final long millis) {
+        Day day = day(millis);
+        int time = (int) (millis - day.midnight);
+        StringBuilder builder = new StringBuilder(day.datePrefix.length() + 12 + day.offset.length());
+        builder.append(day.datePrefix);
+        pad(builder, time / 3600000, 2).append(':');
+        pad(builder, time / 60000 % 60, 2).append(':');
+        pad(builder, time / 1000 % 60, 2).append('.');
+        pad(builder, time % 1000, 3);
+        return builder.append(day.offset).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder builder, int value, int width) {
+        if (width == 3 && value < 100) builder.append('0');
+        if (value < 10) builder.append('0');
+        return builder.append(value);
+    }
+
+    private Day day(final long millis) {
+        int slot = (int) Math.floorDiv(millis, MILLIS_PER_DAY) & (CACHED_DAYS - 1);
+        Day day = days[slot];
+        if (day == null || millis < day.start || millis >= day.end) {
+            day = computeDay(millis);
+            days[slot] = day;
+        }
+        return day;
+    }
+
+    private Day computeDay(final long millis) {
+        Instant instant = Instant.ofEpochMilli(millis);
+        ZoneOffset offset = rules.getOffset(instant);
+        long offsetMillis = offset.getTotalSeconds() * 1000L;
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(millis + offsetMillis, MILLIS_PER_DAY));
+        long midnight = date.toEpochDay() * MILLIS_PER_DAY - offsetMillis;
+        long start = midnight;
+        long end = midnight + MILLIS_PER_DAY;
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        if (previous != null) start = Math.max(start, previous.getInstant().toEpochMilli());
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        if (next != null) end = Math.min(end, next.getInstant().toEpochMilli());
+        return new Day(start, end, midnight, date, offset);
+    }
+}
@@ -1,21 +1,39 @@
 package info.voxtechnica.appraisers.util;
 
 import info.voxtechnica.appraisers.model.Tuid;
+import info.voxtechnica.appraisers.model.TuidRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * This factory generates a time-based cluster-unique identifier (TUID) that includes the creation time with millisecond
  * resolution, along with 18 bits of entropy to ensure uniqueness. The resulting ID is a simple 64-bit long integer that
  * can be sorted chronologically. Expressed in base 36, it becomes a 12-digit string (e.g. 2TNSOS9L376Y).
+ * <p/>
+ * Bit layout: 46 bits of epoch milliseconds, a 10-bit sequence counter within the millisecond, and the 8-bit server ID.
+ * The millisecond and counter together form a sequence position (millis * 1024 + counter), and the generator's state,
+ * the next free position, is a single AtomicLong advanced by compare-and-set, so concurrent callers never block each
+ * other. The state never moves back in time, so IDs stay unique and increasing on a node even if a caller's clock
+ * reading is stale or the system clock steps backwards.
+ * <p/>
+ * IDs are never stamped ahead of the clock: once a millisecond's 1024 counters are used up, callers wait for the next
+ * one, which throttles a node to about 1M IDs per second. High-rate producers can reserve a contiguous block of the
+ * current millisecond's counters at once (see reserve()) and draw IDs from it locally.
  */
 public class TuidFactory {
     private static final Logger LOG = LoggerFactory.getLogger(TuidFactory.class);
-    private static final Object sync = new Object();
-    private static long counter = 0;
-    private static long counterpeg = 0;
+    private static final int COUNTER_BITS = 10;
+    private static final int COUNTERS_PER_MILLI = 1 << COUNTER_BITS;
+    public static final int MAX_RESERVATION = COUNTERS_PER_MILLI;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final AtomicLong state = new AtomicLong(); // next free position: (millis << COUNTER_BITS) | counter
+    private static final AtomicLong historicalState = new AtomicLong(); // last position, for getIdFromTimestamp
     private static boolean initialized = false;
-    private static byte serverId = 0;
+    private static volatile byte serverId = 0;
+    private static volatile long validUntil = Long.MAX_VALUE; // when the serverId may be reclaimed (less a margin)
 
     /**
      * serverId must be unique across a cluster (1 per app server). It's used to ensure the cluster-uniqueness of TUIDs.
@@ -32,6 +50,36 @@ public class TuidFactory {
         } else LOG.info("Previously initialized: nodeId={}", getServerId());
     }
 
+    /**
+     * Switch to a new serverId, e.g. when this node's Node ID lease was lost and another acquired. IDs generated after
+     * the switch carry the new serverId.
+     *
+     * @param serverId Unique Server Node ID
+     */
+    public static void reassign(final byte serverId) {
+        if (!initialized) throw new IllegalStateException("TuidFactory not initialized.");
+        LOG.warn("Reassigned: nodeId={} (was {})", serverId, getServerId());
+        TuidFactory.serverId = serverId;
+    }
+
+    /**
+     * Stop issuing IDs at the given time unless it's extended, e.g. shortly before this node's Node ID lease could be
+     * reclaimed: after that, another node may be granted the same serverId.
+     *
+     * @param millis epoch milliseconds when the serverId stops being valid
+     */
+    public static void setValidUntil(final long millis) {
+        TuidFactory.validUntil = millis;
+    }
+
+    public static long getValidUntil() {
+        return validUntil;
+    }
+
+    private static void checkValid(final long now) {
+        if (now >= validUntil) throw new IllegalStateException("TuidFactory nodeId " + serverId + " lease expired.");
+    }
+
     public static boolean isInitialized() {
         return initialized;
     }
@@ -52,28 +100,55 @@ public class TuidFactory {
 
     public static String getId(final long offset) {
         if (!TuidFactory.initialized) throw new IllegalStateException("TuidFactory not initialized.");
-        long id = System.currentTimeMillis();
-        synchronized (sync) {
-            if (counterpeg != id) {
-                counterpeg = id;
-                counter = 0;
-            } else if (counter == 1023) {
-                // Throttle to about 1M per second per server.
-                try {
-                    // It's necessary to remain blocked, even if it looks inefficient for multi-threading.
-                    while (System.currentTimeMillis() == id) {
-                        // Guarantee a different currentTimeMillis();
-                        Thread.sleep(0, 50000);
-                    }
-                } catch (InterruptedException ex) {
-                    // resume
-                }
-                counterpeg = id;
-                counter = 0;
+        long position = claim(1);
+        return encode((position >>> COUNTER_BITS) + offset, position & COUNTER_MASK);
+    }
+
+    /**
+     * Reserve a contiguous block of TUIDs for this node: the next unused counters of the current millisecond, up to the
+     * requested count. The IDs are increasing, and no other caller on this node will be issued any of them, so a
+     * producer can draw from the range without touching the shared generator. The range may hold fewer IDs than
+     * requested (when the millisecond is partly used); callers that need more reserve again.
+     *
+     * @param count maximum number of IDs (1 to MAX_RESERVATION)
+     * @return the reserved range
+     */
+    public static TuidRange reserve(final int count) {
+        if (!TuidFactory.initialized) throw new IllegalStateException("TuidFactory not initialized.");
+        if (count < 1 || count > MAX_RESERVATION)
+            throw new IllegalArgumentException(String.format("count must be 1 to %d", MAX_RESERVATION));
+        long position = claim(count);
+        return new TuidRange(encode(position), (int) Math.min(count, COUNTERS_PER_MILLI - (position & COUNTER_MASK)));
+    }
+
+    /**
+     * Claim up to count consecutive sequence positions, within a single millisecond that the clock has reached.
+     *
+     * @return the first claimed position (the number claimed is the smaller of count and the millisecond's remainder)
+     */
+    private static long claim(final int count) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            checkValid(now);
+            long current = state.get();
+            long position = Math.max(current, now << COUNTER_BITS); // the state's, even if this caller's clock is older
+            long counter = position & COUNTER_MASK;
+            if (counter == 0 && (position >>> COUNTER_BITS) > now) {
+                // Throttle to about 1M per second per server: wait for the next millisecond, without holding anything
+                LockSupport.parkNanos(20_000L);
+                continue;
             }
-            id = (((id + offset) << 18) & 0xFFFFFFFFFFFC0000L) | ((counter++ << 8) & 0x000000000003FF00L) | (serverId & 0x00000000000000FFL);
+            if (state.compareAndSet(current, position + Math.min(count, COUNTERS_PER_MILLI - counter))) return position;
         }
-        return Long.toString(id, 36).toUpperCase(); // Convert to 12-digit base 36 String
+    }
+
+    private static String encode(final long millis, final long counter) {
+        return encode((millis << COUNTER_BITS) | (counter & COUNTER_MASK));
+    }
+
+    private static String encode(final long position) {
+        long id = (position << 8) | (serverId & 0x00000000000000FFL);
+        return TuidCodec.encode(id); // Convert to 12-digit base 36 String
     }
 
     public static String getFirstId(final long offsetMillis) {
@@ -86,18 +161,20 @@ public class TuidFactory {
         return Long.toString(id, 36).toUpperCase();
     }
     
+    /**
+     * Generate a TUID for a given (e.g. historical) time. These IDs have their own counter, so backdated IDs never
+     * disturb the current clock's sequence.
+     */
     public static String getIdFromTimestamp(final long millis) {
         if (!TuidFactory.initialized) throw new IllegalStateException("TuidFactory not initialized.");
-        long id = millis;
-        synchronized (sync) {
-            // note: this version can wrap around at > 1024 IDs/millisecond
-            if (counterpeg != id) {
-                counterpeg = id;
-                counter = 0;
-            }
-            id = ((id << 18) & 0xFFFFFFFFFFFC0000L) | ((counter++ << 8) & 0x000000000003FF00L) | (serverId & 0x00000000000000FFL);
+        checkValid(System.currentTimeMillis());
+        // note: this version can wrap around at > 1024 IDs/millisecond
+        while (true) {
+            long current = historicalState.get();
+            long counter = (current >>> COUNTER_BITS) == millis ? ((current & COUNTER_MASK) + 1) & COUNTER_MASK : 0;
+            long updated = (millis << COUNTER_BITS) | counter;
+            if (historicalState.compareAndSet(current, updated)) return encode(updated);
         }
-        return Long.toString(id, 36).toUpperCase(); // Convert to 12-digit base 36 String
     }
 
     public static String getFirstIdFromTimestamp(final long millis) {
@@ -0,0 +1,43 @@
+package info.voxtechnica.appraisers.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EvictingRingTest {
+
+    @Test
+    public void keepsMostRecentElements() {
+        EvictingRing<Integer> ring = new EvictingRing<>(4);
+        for (int i = 0; i < 10; i++) ring.add(i);
+        List<Integer> elements = new ArrayList<>();
+        assertThat(ring.readFrom(0, 100, e -> true, elements)).isEqualTo(10);
+        assertThat(elements).containsExactly(6, 7, 8, 9);
+    }
+
+    @Test
+    public void resumesFromSequence() {
+        EvictingRing<Integer> ring = new EvictingRing<>(8);
+        for (int i = 0; i < 5; i++) ring.add(i);
+        List<Integer> elements = new ArrayList<>();
+        long next = ring.readFrom(0, 2, e -> true, elements);
+        assertThat(elements).containsExactly(0, 1);
+        assertThat(next).isEqualTo(2);
+        ring.add(5);
+        elements.clear();
+        assertThat(ring.readFrom(next, 100, e -> true, elements)).isEqualTo(6);
+        assertThat(elements).containsExactly(2, 3, 4, 5);
+    }
+
+    @Test
+    public void filtersElements() {
+        EvictingRing<Integer> ring = new EvictingRing<>(16);
+        for (int i = 0; i < 10; i++) ring.add(i);
+        List<Integer> elements = new ArrayList<>();
+        ring.readFrom(0, 3, e -> e % 2 == 0, elements);
+        assertThat(elements).containsExactly(0, 2, 4);
+    }
+}
@@ -0,0 +1,50 @@
+package info.voxtechnica.appraisers.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JsonMergePatchTest {
+
+    private static JsonNode json(String text) throws IOException {
+        return JsonSerializer.getObjectMapper().readTree(text.replace('\'', '"'));
+    }
+
+    @Test
+    public void diffChangedField() throws IOException {
+        JsonNode source = json("{'id':'A','status':'A','rawData':{'status':'A','zip':'97201'}}");
+        JsonNode target = json("{'id':'A','status':'I','rawData':{'status':'I','zip':'97201'}}");
+        assertThat(JsonMergePatch.diff(source, target)).isEqualTo(json("{'status':'I','rawData':{'status':'I'}}"));
+    }
+
+    @Test
+    public void diffAddedAndRemovedFields() throws IOException {
+        JsonNode source = json("{'id':'A','company':'ACME'}");
+        JsonNode target = json("{'id':'A','telephone':'555-1212'}");
+        assertThat(JsonMergePatch.diff(source, target)).isEqualTo(json("{'company':null,'telephone':'555-1212'}"));
+    }
+
+    @Test
+    public void diffEqualDocuments() throws IOException {
+        JsonNode source = json("{'id':'A','tags':[1,2]}");
+        assertThat(JsonMergePatch.diff(source, source.deepCopy()).size()).isZero();
+    }
+
+    @Test
+    public void applyRoundTrip() throws IOException {
+        JsonNode source = json("{'id':'A','company':'ACME','tags':[1,2],'rawData':{'status':'A','zip':'97201'}}");
+        JsonNode target = json("{'id':'A','tags':[3],'rawData':{'status':'I','zip':'97201','county':'MULTNOMAH'}}");
+        JsonNode patch = JsonMergePatch.diff(source, target);
+        assertThat(JsonMergePatch.apply(source, patch)).isEqualTo(target);
+        assertThat(source.get("company").asText()).isEqualTo("ACME"); // source is not modified
+    }
+
+    @Test
+    public void applyNullPatch() throws IOException {
+        JsonNode source = json("{'id':'A'}");
+        assertThat(JsonMergePatch.apply(source, null)).isEqualTo(source);
+    }
+}
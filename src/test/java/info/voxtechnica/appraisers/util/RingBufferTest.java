@@ -0,0 +1,63 @@
+package info.voxtechnica.appraisers.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTest {
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertThat(new RingBuffer<Integer>(1000).capacity()).isEqualTo(1024);
+        assertThat(new RingBuffer<Integer>(1024).capacity()).isEqualTo(1024);
+    }
+
+    @Test
+    public void firstInFirstOut() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) assertThat(ring.offer(i)).isTrue();
+        assertThat(ring.offer(4)).isFalse(); // full
+        assertThat(ring.size()).isEqualTo(4);
+        assertThat(ring.poll()).isEqualTo(0);
+        assertThat(ring.offer(4)).isTrue(); // wraps around
+        List<Integer> drained = new ArrayList<>();
+        assertThat(ring.drainTo(drained, 10)).isEqualTo(4);
+        assertThat(drained).containsExactly(1, 2, 3, 4);
+        assertThat(ring.poll()).isNull();
+        assertThat(ring.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws InterruptedException {
+        RingBuffer<Long> ring = new RingBuffer<>(256);
+        int producers = 4, consumers = 4, perProducer = 50000;
+        AtomicLong sum = new AtomicLong(), count = new AtomicLong();
+        CountDownLatch produced = new CountDownLatch(producers);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++)
+            threads.add(new Thread(() -> {
+                for (long i = 1; i <= perProducer; i++) while (!ring.offer(i)) Thread.yield();
+                produced.countDown();
+            }));
+        for (int c = 0; c < consumers; c++)
+            threads.add(new Thread(() -> {
+                while (produced.getCount() > 0 || !ring.isEmpty()) {
+                    Long value = ring.poll();
+                    if (value == null) Thread.yield();
+                    else {
+                        sum.addAndGet(value);
+                        count.incrementAndGet();
+                    }
+                }
+            }));
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertThat(count.get()).isEqualTo((long) producers * perProducer);
+        assertThat(sum.get()).isEqualTo((long) producers * perProducer * (perProducer + 1) / 2);
+    }
+}
@@ -0,0 +1,30 @@
+package info.voxtechnica.appraisers.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SortedMergeTest {
+
+    @Test
+    public void mergeInterleavedRuns() {
+        List<List<String>> runs = Arrays.asList(Arrays.asList("A", "D", "G"), Arrays.asList("B", "E"), Arrays.asList("C", "F", "H"));
+        assertThat(SortedMerge.merge(runs, 100)).containsExactly("A", "B", "C", "D", "E", "F", "G", "H");
+    }
+
+    @Test
+    public void mergeStopsAtLimit() {
+        List<List<Integer>> runs = Arrays.asList(Arrays.asList(1, 4, 7), Arrays.asList(2, 5, 8), Arrays.asList(3, 6, 9));
+        assertThat(SortedMerge.merge(runs, 4)).containsExactly(1, 2, 3, 4);
+    }
+
+    @Test
+    public void mergeDropsDuplicatesAndEmptyRuns() {
+        List<List<Integer>> runs = Arrays.asList(Arrays.asList(1, 2, 3), Collections.emptyList(), Arrays.asList(2, 3, 4), null);
+        assertThat(SortedMerge.merge(runs, 100)).containsExactly(1, 2, 3, 4);
+    }
+}
@@ -0,0 +1,44 @@
+package info.voxtechnica.appraisers.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * A rough comparison of TuidCodec with the Joda-backed derivations Tuid used before it (parse, then build a DateTime).
+ * Run its main method with the test classpath; it isn't a unit test. There's no JMH in this build, so it warms up and
+ * takes the best of several timed rounds.
+ */
+public class TuidCodecBenchmark {
+    private static final int IDS = 100000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        String[] ids = new String[IDS];
+        long millis = System.currentTimeMillis();
+        for (int i = 0; i < IDS; i++) ids[i] = Long.toString(((millis + i / 50) << 18) | ((i % 1024L) << 8) | 7, 36).toUpperCase();
+        run("decode: Long.parseLong", ids, id -> Long.parseLong(id, 36));
+        run("decode: TuidCodec", ids, TuidCodec::decode);
+        run("yearMonthDay: Joda", ids, id -> {
+            DateTime createdAt = new DateTime(Long.parseLong(id, 36) >> 18);
+            return createdAt.getYear() * 10000 + createdAt.getMonthOfYear() * 100 + createdAt.getDayOfMonth();
+        });
+        run("yearMonthDay: TuidCodec", ids, TuidCodec::getYearMonthDay);
+        run("createdAt: Joda", ids, id -> ISODateTimeFormat.dateTime().print(new DateTime(Long.parseLong(id, 36) >> 18)).length());
+        run("createdAt: TuidCodec", ids, id -> TuidCodec.getCreatedAt(id).length());
+        run("encode: Long.toString", ids, id -> Long.toString(Long.parseLong(id, 36), 36).toUpperCase().length());
+        run("encode: TuidCodec", ids, id -> TuidCodec.encode(TuidCodec.decode(id)).length());
+    }
+
+    private static void run(String name, String[] ids, ToLongFunction<String> function) {
+        long best = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < ROUNDS * 2; round++) {
+            long start = System.nanoTime();
+            for (String id : ids) sink += function.applyAsLong(id);
+            if (round >= ROUNDS) best = Math.min(best, System.nanoTime() - start); // the first half is warm-up
+        }
+        System.out.printf("%-28s %8.1f ns/op (%d)%n", name, (double) best / ids.length, sink & 1);
+    }
+}
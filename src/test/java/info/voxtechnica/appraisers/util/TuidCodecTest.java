@@ -0,0 +1,74 @@
+package info.voxtechnica.appraisers.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TuidCodecTest {
+    private static final String[] ZONES = {"UTC", "America/Los_Angeles", "Asia/Kolkata", "Australia/Lord_Howe"};
+    private static final long FROM = 946684800000L; // 2000-01-01
+    private static final long TO = 1893456000000L; // 2030-01-01
+
+    @Test
+    public void encodesAndDecodesBase36() {
+        Random random = new Random(36);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong() >>> 1 >>> random.nextInt(63);
+            String id = Long.toString(value, 36).toUpperCase();
+            assertThat(TuidCodec.encode(value)).isEqualTo(id);
+            assertThat(TuidCodec.decode(id)).isEqualTo(value);
+            assertThat(TuidCodec.decode(id.toLowerCase())).isEqualTo(value);
+        }
+        assertThat(TuidCodec.getMillis("2TNSOS9L376Y")).isEqualTo(1417880305468L);
+    }
+
+    @Test
+    public void rejectsInvalidIds() {
+        assertThatThrownBy(() -> TuidCodec.decode("2TNSOS9L376_")).isInstanceOf(NumberFormatException.class);
+        assertThatThrownBy(() -> TuidCodec.decode("")).isInstanceOf(NumberFormatException.class);
+        assertThatThrownBy(() -> TuidCodec.decode(" 2TNSOS9L376Y")).isInstanceOf(NumberFormatException.class);
+    }
+
+    @Test
+    public void matchesJodaCalendarFields() {
+        Random random = new Random(42);
+        for (String zone : ZONES) {
+            TuidCodec codec = new TuidCodec(ZoneId.of(zone));
+            DateTimeZone jodaZone = DateTimeZone.forID(zone);
+            long millis = FROM;
+            for (int i = 0; i < 20000; i++) {
+                // mostly nearby times (as TUIDs arrive), with occasional jumps
+                millis = i % 100 == 0 ? FROM + (long) (random.nextDouble() * (TO - FROM)) : millis + random.nextInt(3600000);
+                assertCalendarFields(codec, jodaZone, millis);
+            }
+        }
+    }
+
+    @Test
+    public void matchesJodaAcrossOffsetTransitions() {
+        for (String zone : ZONES) {
+            TuidCodec codec = new TuidCodec(ZoneId.of(zone));
+            DateTimeZone jodaZone = DateTimeZone.forID(zone);
+            long transition = FROM;
+            for (int i = 0; i < 20 && (transition = jodaZone.nextTransition(transition)) < TO; i++)
+                for (long millis = transition - 2; millis <= transition + 1; millis++)
+                    assertCalendarFields(codec, jodaZone, millis);
+        }
+    }
+
+    private static void assertCalendarFields(TuidCodec codec, DateTimeZone zone, long millis) {
+        DateTime dateTime = new DateTime(millis, zone);
+        assertThat(codec.isoDateTime(millis)).isEqualTo(ISODateTimeFormat.dateTime().withZone(zone).print(millis));
+        assertThat(codec.yearMonthDay(millis)).isEqualTo(dateTime.getYear() * 10000 + dateTime.getMonthOfYear() * 100 + dateTime.getDayOfMonth());
+        assertThat(codec.yearMonth(millis)).isEqualTo(dateTime.getYear() * 100 + dateTime.getMonthOfYear());
+        assertThat(codec.yearWeek(millis)).isEqualTo(dateTime.getWeekyear() * 100 + dateTime.getWeekOfWeekyear());
+        assertThat(codec.yearDay(millis)).isEqualTo(dateTime.getYear() * 1000 + dateTime.getDayOfYear());
+    }
+}
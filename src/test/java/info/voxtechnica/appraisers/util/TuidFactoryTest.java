@@ -0,0 +1,112 @@
+package info.voxtechnica.appraisers.util;
+
+import info.voxtechnica.appraisers.model.TuidRange;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TuidFactoryTest {
+    private static final byte SERVER_ID = 42;
+
+    @BeforeClass
+    public static void initialize() {
+        if (!TuidFactory.isInitialized()) TuidFactory.initialize(SERVER_ID);
+    }
+
+    @Test
+    public void encodesTimeCounterAndServer() {
+        long before = System.currentTimeMillis();
+        long id = Long.parseLong(TuidFactory.getId(), 36);
+        long after = System.currentTimeMillis();
+        assertThat(id >>> 18).isBetween(before, after);
+        assertThat((byte) (id & 0xFF)).isEqualTo(TuidFactory.getServerId());
+    }
+
+    @Test
+    public void countsWithinHistoricalMillisecond() {
+        long millis = 1417880305468L;
+        long first = Long.parseLong(TuidFactory.getIdFromTimestamp(millis), 36);
+        long second = Long.parseLong(TuidFactory.getIdFromTimestamp(millis), 36);
+        assertThat(first >>> 18).isEqualTo(millis);
+        assertThat(second >>> 18).isEqualTo(millis);
+        assertThat(((second >>> 8) & 0x3FF) - ((first >>> 8) & 0x3FF)).isEqualTo(1);
+    }
+
+    @Test
+    public void uniqueAndIncreasingUnderContention() throws Exception {
+        int threads = 8;
+        int perThread = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+            futures.add(executor.submit(() -> {
+                List<Long> ids = new ArrayList<>(perThread);
+                start.await();
+                for (int i = 0; i < perThread; i++) ids.add(Long.parseLong(TuidFactory.getId(), 36));
+                return ids;
+            }));
+        start.countDown();
+        Set<Long> all = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            List<Long> ids = future.get(30, TimeUnit.SECONDS);
+            for (int i = 1; i < ids.size(); i++) assertThat(ids.get(i)).isGreaterThan(ids.get(i - 1));
+            all.addAll(ids);
+        }
+        executor.shutdown();
+        assertThat(all).hasSize(threads * perThread);
+    }
+
+    @Test
+    public void reservesContiguousRanges() {
+        long before = System.currentTimeMillis();
+        TuidRange range = TuidFactory.reserve(1000);
+        String after = TuidFactory.getId();
+        assertThat(range.getCount()).isBetween(1, 1000);
+        assertThat(range.getNodeId()).isEqualTo(SERVER_ID);
+        assertThat(TuidCodec.getMillis(range.getLastId())).isBetween(before, System.currentTimeMillis()); // never ahead
+        long previous = Long.parseLong(range.getFirstId(), 36) - 256;
+        String id;
+        int drawn = 0;
+        while ((id = range.next()) != null) {
+            long value = Long.parseLong(id, 36);
+            assertThat(value - previous).isEqualTo(256); // the next position, same node
+            previous = value;
+            drawn++;
+        }
+        assertThat(drawn).isEqualTo(range.getCount());
+        assertThat(range.getLastId()).isEqualTo(Long.toString(previous, 36).toUpperCase());
+        assertThat(after.compareTo(range.getLastId())).isGreaterThan(0);
+        assertThat(range.getRemaining()).isZero();
+    }
+
+    @Test
+    public void describesRangeByFirstIdAndCount() {
+        TuidRange range = TuidFactory.reserve(TuidFactory.MAX_RESERVATION);
+        TuidRange copy = new TuidRange(range.getFirstId(), range.getCount());
+        assertThat(copy.getLastId()).isEqualTo(range.getLastId());
+        assertThat(copy.get(range.getCount() - 1)).isEqualTo(range.get(range.getCount() - 1));
+    }
+
+    @Test
+    public void stopsIssuingIdsWhenLeaseExpires() {
+        try {
+            TuidFactory.setValidUntil(System.currentTimeMillis() - 1);
+            assertThatThrownBy(TuidFactory::getId).isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> TuidFactory.reserve(10)).isInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> TuidFactory.getIdFromTimestamp(1417880305468L)).isInstanceOf(IllegalStateException.class);
+            TuidFactory.setValidUntil(System.currentTimeMillis() + 60000L);
+            assertThat(TuidFactory.getId()).isNotNull();
+        } finally {
+            TuidFactory.setValidUntil(Long.MAX_VALUE);
+        }
+    }
+}